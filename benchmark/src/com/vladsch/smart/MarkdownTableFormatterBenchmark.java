@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and formatting of markdown tables with unbalanced column widths
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarkdownTableFormatterBenchmark {
+    @Param({ "10", "100", "10000" })
+    public int rows;
+
+    @Param({ "5" })
+    public int columns;
+
+    private SmartCharSequence myTable;
+    private MarkdownTableFormatter myFormatter;
+    private SmartCharSequence myEditedTable;
+    private MarkdownFormattedTable myFormattedTable;
+    private int myEditRow;
+    private boolean myEdited;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        appendRow(sb, "Header", 0);
+        for (int col = 0; col < columns; col++) {
+            sb.append(col == 0 ? "|:---" : col == columns - 1 ? "|---:" : "|:---:");
+        }
+        sb.append("|\n");
+        for (int row = 1; row <= rows; row++) {
+            appendRow(sb, "cell", row);
+        }
+
+        myTable = new SmartCharArraySequence(sb.toString().toCharArray());
+        myFormatter = new MarkdownTableFormatter();
+
+        // same table with a longer first cell in the middle row
+        String table = sb.toString();
+        int editPos = 0;
+        for (int row = 0; row < (rows + 2) / 2; row++) {
+            editPos = table.indexOf('\n', editPos) + 1;
+        }
+        myEditRow = (rows + 2) / 2;
+        myEditedTable = new SmartCharArraySequence((table.substring(0, editPos + 2) + "edited cell text " + table.substring(editPos + 2)).toCharArray());
+        myFormattedTable = new MarkdownFormattedTable(myFormatter);
+        myFormattedTable.format(myTable, -1);
+    }
+
+    private void appendRow(StringBuilder sb, String text, int row) {
+        for (int col = 0; col < columns; col++) {
+            sb.append("| ").append(text).append(' ').append((row * 31 + col * 17) % 1000).append(' ');
+        }
+        sb.append("|\n");
+    }
+
+    @Benchmark
+    public MarkdownTable parseTable() {
+        return MarkdownTableFormatter.Companion.parseTable(myTable, -1, false);
+    }
+
+    @Benchmark
+    public char[] formatTable() {
+        return myFormatter.formatTable(myTable).getChars();
+    }
+
+    @Benchmark
+    public char[] updateRow() {
+        // alternately edit and restore one cell
+        myEdited = !myEdited;
+        return myFormattedTable.update(myEdited ? myEditedTable : myTable, myEditRow, myEditRow + 1, -1).getChars();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scanning helpers on a large segmented sequence, chunked bulk copies versus per character access
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartCharScanBenchmark {
+    @Param({ "1000", "100000" })
+    public int length;
+
+    private SmartSegmentedCharSequence myChars;
+    private String myText;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        ArrayList<CharSequence> segments = new ArrayList<>();
+        while (sb.length() < length) {
+            int start = sb.length();
+            sb.append(start % 3 == 0 ? "    \t" : "word ").append(start).append('\n');
+            String segment = sb.substring(start);
+            segments.add(new SmartCharSequenceWrapper(segment, 0, segment.length()));
+        }
+        myText = sb.toString();
+        myChars = new SmartSegmentedCharSequence(segments);
+    }
+
+    @Benchmark
+    public int charAtLoop() {
+        int count = 0;
+        int iMax = myChars.length();
+        for (int i = 0; i < iMax; i++) {
+            if (myChars.charAt(i) == '\t') count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int chunkCursor() {
+        int count = 0;
+        CharChunkCursor cursor = new CharChunkCursor(myChars, true);
+        while (cursor.next()) {
+            char[] chunk = cursor.getChunk();
+            int iMax = cursor.getChunkLength();
+            for (int i = 0; i < iMax; i++) {
+                if (chunk[i] == '\t') count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public boolean equivalent() {
+        return myChars.equivalent(myText);
+    }
+
+    @Benchmark
+    public int countLeading() {
+        return myChars.countLeading("    \tword0123456789\n");
+    }
+
+    @Benchmark
+    public int expandTabs() {
+        return myChars.expandTabs(4).length();
+    }
+}
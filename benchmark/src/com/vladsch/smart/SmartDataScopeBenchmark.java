@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.vladsch.smart;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Table like data scope tree, one child scope per row with a width per column and the maximum width of each column
+ * consumed in the top scope
+ * <p>
+ * finalizeAllScopes builds and finalizes the tree, readWidths reads the column widths of a finalized tree,
+ * finalizeMinMax and finalizeMinMaxParallel also consume the minimum width which is in the same compute level
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartDataScopeBenchmark {
+    static final SmartVolatileDataKey<Integer> WIDTH = new SmartVolatileDataKey<>("WIDTH", 0);
+    static final SmartAggregatedScopesDataKey<Integer> MAX_WIDTH = new SmartAggregatedScopesDataKey<>("MAX_WIDTH", 0, WIDTH, SmartScopes.getSELF_DOWN(), (IterableDataComputable<Integer>) iterable -> {
+        int max = 0;
+        for (Integer value : iterable) {
+            if (max < value) max = value;
+        }
+        return max;
+    });
+    static final SmartAggregatedScopesDataKey<Integer> MIN_WIDTH = new SmartAggregatedScopesDataKey<>("MIN_WIDTH", 0, WIDTH, SmartScopes.getSELF_DOWN(), (IterableDataComputable<Integer>) iterable -> {
+        int min = Integer.MAX_VALUE;
+        for (Integer value : iterable) {
+            if (min > value) min = value;
+        }
+        return min;
+    });
+
+    @Param({ "100", "1000" })
+    public int rows;
+
+    @Param({ "10" })
+    public int columns;
+
+    private SmartDataScope myScope;
+    private SmartVersionedDataHolder<?>[] myWidths;
+
+    SmartDataScope createScope() {
+        SmartDataScope topScope = SmartDataScopeManager.Companion.createDataScope("top");
+
+        for (int row = 0; row < rows; row++) {
+            SmartDataScope rowScope = topScope.createDataScope("row" + row);
+            for (int col = 0; col < columns; col++) {
+                WIDTH.set(rowScope, col, (row * 31 + col * 17) % 40);
+            }
+        }
+        return topScope;
+    }
+
+    @Setup
+    public void setup() {
+        myScope = createScope();
+        myWidths = new SmartVersionedDataHolder<?>[columns];
+        for (int col = 0; col < columns; col++) {
+            myWidths[col] = myScope.get(MAX_WIDTH, col);
+        }
+        myScope.finalizeAllScopes();
+    }
+
+    @Benchmark
+    public SmartDataScope finalizeAllScopes() {
+        SmartDataScope topScope = createScope();
+        for (int col = 0; col < columns; col++) {
+            topScope.get(MAX_WIDTH, col);
+        }
+        topScope.finalizeAllScopes();
+        return topScope;
+    }
+
+    SmartDataScope createMinMaxScope() {
+        SmartDataScope topScope = createScope();
+        for (int col = 0; col < columns; col++) {
+            topScope.get(MAX_WIDTH, col);
+            topScope.get(MIN_WIDTH, col);
+        }
+        return topScope;
+    }
+
+    @Benchmark
+    public SmartDataScope finalizeMinMax() {
+        SmartDataScope topScope = createMinMaxScope();
+        topScope.finalizeAllScopes();
+        return topScope;
+    }
+
+    @Benchmark
+    public SmartDataScope finalizeMinMaxParallel() {
+        SmartDataScope topScope = createMinMaxScope();
+        topScope.finalizeAllScopes(ForkJoinPool.commonPool());
+        return topScope;
+    }
+
+    @Benchmark
+    public int readWidths() {
+        int sum = 0;
+        for (SmartVersionedDataHolder<?> width : myWidths) {
+            sum += (Integer) width.get();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Recomputation of dependent data aggregating a number of properties
+ * <p>
+ * recompute changes one property and reads the aggregate, read only reads the up to date aggregate
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartDependentDataBenchmark {
+    @Param({ "1", "10", "100" })
+    public int dependencies;
+
+    private ArrayList<SmartVersionedProperty<Integer>> myProperties;
+    private SmartDependentData<Integer> mySum;
+    private int myValue;
+    private int myIndex;
+
+    @Setup
+    public void setup() {
+        myProperties = new ArrayList<>(dependencies);
+        for (int i = 0; i < dependencies; i++) {
+            myProperties.add(new SmartVersionedProperty<>("property" + i, i));
+        }
+
+        ArrayList<SmartVersionedProperty<Integer>> properties = myProperties;
+        mySum = new SmartDependentData<>("sum", properties, (Supplier<Integer>) () -> {
+            int sum = 0;
+            for (SmartVersionedProperty<Integer> property : properties) {
+                sum += property.get();
+            }
+            return sum;
+        });
+        mySum.get();
+    }
+
+    @Benchmark
+    public int recompute() {
+        myIndex = (myIndex + 1) % dependencies;
+        myProperties.get(myIndex).set(++myValue);
+        return mySum.get();
+    }
+
+    @Benchmark
+    public int read() {
+        return mySum.get();
+    }
+}
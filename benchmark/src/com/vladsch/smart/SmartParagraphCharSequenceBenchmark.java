@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reflow of a paragraph when its width changes or its text is edited, result is materialized with getChars()
+ * <p>
+ * repeat of 170 is a paragraph of about 10k words
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartParagraphCharSequenceBenchmark {
+    private static final String PARAGRAPH = "Lorem ipsum dolor sit amet, consectetaur adipisicing elit,\n" +
+            "sed do eiusmod tempor incididunt ut labore et dolore magna aliqua.\n" +
+            "Ut enim ad minim veniam, quis nostrud exercitation ullamco laboris\n" +
+            "nisi ut aliquip ex ea commodo consequat.  \n" +
+            "Duis aute irure dolor in reprehenderit in voluptate velit esse cillum dolore eu fugiat nulla pariatur.\n";
+
+    @Param({ "LEFT", "JUSTIFIED" })
+    public TextAlignment alignment;
+
+    @Param({ "1", "10", "100", "170" })
+    public int repeat;
+
+    private SmartParagraphCharSequence myParagraph;
+    private SmartParagraphCharSequence myOptimalParagraph;
+    private EditableCharSequence myEditable;
+    private SmartParagraphCharSequence myEditedParagraph;
+    private int myWidth;
+    private int myOptimalWidth;
+    private int myEditPos;
+    private boolean myInserted;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < repeat; i++) {
+            sb.append(PARAGRAPH);
+        }
+
+        myParagraph = new SmartParagraphCharSequence(sb.toString());
+        myParagraph.setAlignment(alignment);
+        myParagraph.setFirstIndent(2);
+        myParagraph.setWidth(60);
+
+        myOptimalParagraph = new SmartParagraphCharSequence(sb.toString());
+        myOptimalParagraph.setAlignment(alignment);
+        myOptimalParagraph.setFirstIndent(2);
+        myOptimalParagraph.setOptimalLineBreaks(true);
+        myOptimalParagraph.setWidth(60);
+
+        myEditable = new EditableCharSequence(sb.toString());
+        myEditedParagraph = new SmartParagraphCharSequence(myEditable);
+        myEditedParagraph.setAlignment(alignment);
+        myEditedParagraph.setFirstIndent(2);
+        myEditedParagraph.setWidth(60);
+        myEditedParagraph.getChars();
+        myEditPos = myEditable.length() / 2;
+    }
+
+    @Benchmark
+    public char[] reflow() {
+        // alternate widths so every invocation reflows
+        myWidth = myWidth == 60 ? 61 : 60;
+        myParagraph.setWidth(myWidth);
+        return myParagraph.getChars();
+    }
+
+    @Benchmark
+    public char[] optimalReflow() {
+        myOptimalWidth = myOptimalWidth == 60 ? 61 : 60;
+        myOptimalParagraph.setWidth(myOptimalWidth);
+        return myOptimalParagraph.getChars();
+    }
+
+    @Benchmark
+    public char[] editReflow() {
+        // alternately insert and delete a char in the middle, as when typing
+        if (myInserted) {
+            myEditable.set(new kotlin.ranges.IntRange(myEditPos, myEditPos), "");
+        } else {
+            myEditable.insert("x", myEditPos);
+        }
+        myInserted = !myInserted;
+        return myEditedParagraph.getChars();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-flow of a document of paragraphs after a width change, one paragraph at a time or in parallel
+ * on the common fork join pool with SmartParagraphReflow
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartParagraphReflowBenchmark {
+    private static final String PARAGRAPH = "Lorem ipsum dolor sit amet, consectetaur adipisicing elit,\n" +
+            "sed do eiusmod tempor incididunt ut labore et dolore magna aliqua.\n" +
+            "Ut enim ad minim veniam, quis nostrud exercitation ullamco laboris\n" +
+            "nisi ut aliquip ex ea commodo consequat.  \n" +
+            "Duis aute irure dolor in reprehenderit in voluptate velit esse cillum dolore eu fugiat nulla pariatur.\n";
+
+    @Param({ "16", "256" })
+    public int paragraphs;
+
+    @Param({ "1", "10" })
+    public int repeat;
+
+    private List<SmartParagraphCharSequence> myParagraphs;
+    private List<CharSequence> myChars;
+    private int myWidth;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < repeat; i++) {
+            sb.append(PARAGRAPH);
+        }
+
+        myParagraphs = new ArrayList<>();
+        myChars = new ArrayList<>();
+        for (int i = 0; i < paragraphs; i++) {
+            SmartParagraphCharSequence paragraph = new SmartParagraphCharSequence(sb.toString());
+            paragraph.setAlignment(TextAlignment.JUSTIFIED);
+            paragraph.setWidth(60);
+            myParagraphs.add(paragraph);
+            myChars.add(paragraph);
+            myChars.add("\n");
+        }
+    }
+
+    private void nextWidth() {
+        // alternate widths so every invocation reflows
+        myWidth = myWidth == 60 ? 61 : 60;
+        for (SmartParagraphCharSequence paragraph : myParagraphs) {
+            paragraph.setWidth(myWidth);
+        }
+    }
+
+    @Benchmark
+    public char[] sequential() {
+        nextWidth();
+        return new SmartSegmentedCharSequence(myChars).getChars();
+    }
+
+    @Benchmark
+    public char[] parallel() {
+        nextWidth();
+        return SmartParagraphReflow.reflow(myChars).getChars();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sequences built by repeated insert, segmented sequences nest, ropes stay balanced
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartRopeCharSequenceBenchmark {
+    @Param({ "segmented", "rope" })
+    public String kind;
+
+    @Param({ "1000" })
+    public int inserts;
+
+    private SmartCharSequence mySequence;
+    private int myLength;
+
+    @Setup
+    public void setup() {
+        SmartCharSequence sequence = kind.equals("rope") ? new SmartRopeCharSequence("start") : new SmartSegmentedCharSequence("start");
+        for (int i = 0; i < inserts; i++) {
+            sequence = sequence.insert("insert " + i + " ", sequence.length() / 2);
+        }
+        mySequence = sequence;
+        myLength = sequence.length();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public int charAtRandom() {
+        int sum = 0;
+        SmartCharSequence sequence = mySequence;
+        int length = myLength;
+        int index = 0;
+        for (int i = 0; i < 1000; i++) {
+            index = (index + 7919) % length;
+            sum += sequence.charAt(index);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int insert() {
+        return mySequence.insert("inserted", myLength / 3).length();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per character and bulk access of segmented sequences
+ * <p>
+ * depth is the nesting of segmented sequences over the leaf segments, 1 is a single flat segmented sequence
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartSegmentedCharSequenceBenchmark {
+    @Param({ "10000" })
+    public int segments;
+
+    @Param({ "1", "2", "4" })
+    public int depth;
+
+    private SmartSegmentedCharSequence mySequence;
+    private int myLength;
+    private char[] myChars;
+
+    @Setup
+    public void setup() {
+        ArrayList<CharSequence> sequences = new ArrayList<>(segments);
+        for (int i = 0; i < segments; i++) {
+            sequences.add(new SmartCharArraySequence("segment " + i + " "));
+        }
+
+        // group into nested segmented sequences, each level with the same fan out
+        int fanOut = (int) Math.ceil(Math.pow(segments, 1.0 / depth));
+        for (int level = 1; level < depth; level++) {
+            ArrayList<CharSequence> grouped = new ArrayList<>();
+            for (int i = 0; i < sequences.size(); i += fanOut) {
+                grouped.add(new SmartSegmentedCharSequence(sequences.subList(i, Math.min(i + fanOut, sequences.size()))));
+            }
+            sequences = grouped;
+        }
+
+        mySequence = new SmartSegmentedCharSequence(sequences);
+        myLength = mySequence.length();
+        myChars = new char[myLength];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public int charAtSequential() {
+        int sum = 0;
+        SmartSegmentedCharSequence sequence = mySequence;
+        int start = myLength / 2;
+        for (int i = 0; i < 1000; i++) {
+            sum += sequence.charAt(start + i);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public int charAtRandom() {
+        int sum = 0;
+        SmartSegmentedCharSequence sequence = mySequence;
+        int length = myLength;
+        int index = 0;
+        for (int i = 0; i < 1000; i++) {
+            index = (index + 7919) % length;
+            sum += sequence.charAt(index);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public int length() {
+        int sum = 0;
+        SmartSegmentedCharSequence sequence = mySequence;
+        for (int i = 0; i < 1000; i++) {
+            sum += sequence.length();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public char[] getChars() {
+        mySequence.getChars(myChars, 0);
+        return myChars;
+    }
+
+    @Benchmark
+    public int subSequenceGetChars() {
+        int start = myLength / 3;
+        SmartCharSequence subSequence = mySequence.subSequence(start, start + 1000);
+        subSequence.getChars(myChars, 0);
+        return subSequence.length();
+    }
+}
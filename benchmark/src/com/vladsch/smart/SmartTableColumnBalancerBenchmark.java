@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Column balancing of a table with spanning cells
+ * <p>
+ * balanceColumns computes the widths directly, changeAndRead changes one cell length and reads a column width through the data points
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartTableColumnBalancerBenchmark {
+    @Param({ "10", "100" })
+    public int rows;
+
+    @Param({ "5", "20" })
+    public int columns;
+
+    private SmartTableColumnBalancer myBalancer;
+    private ArrayList<SmartVersionedProperty<Integer>> myLengths;
+    private int myValue;
+    private int myIndex;
+
+    @Setup
+    public void setup() {
+        myBalancer = new SmartTableColumnBalancer(CharWidthProvider.UNITY_PROVIDER);
+        myLengths = new ArrayList<>();
+
+        for (int row = 0; row < rows; row++) {
+            int col = 0;
+            while (col < columns) {
+                // every third row has a cell spanning two columns
+                int span = row % 3 == 0 && col + 1 < columns ? 2 : 1;
+                SmartVersionedProperty<Integer> length = new SmartVersionedProperty<>("length", (row * 31 + col * 17) % 40);
+                myLengths.add(length);
+                myBalancer.width(col, length, span, 0);
+                col += span;
+            }
+        }
+
+        myBalancer.finalizeTable();
+        myBalancer.columnWidthDataPoint(0).get();
+    }
+
+    @Benchmark
+    public void balanceColumns() {
+        myBalancer.balanceColumns();
+    }
+
+    @Benchmark
+    public int changeAndRead() {
+        myIndex = (myIndex + 1) % myLengths.size();
+        myLengths.get(myIndex).set(++myValue % 40);
+        return myBalancer.columnWidthDataPoint(0).get();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.vladsch.smart;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Column balancing of a wide table with many spanning cells
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartTableColumnSpanBenchmark {
+    @Param({ "100", "1000" })
+    public int columns;
+
+    @Param({ "1000", "10000" })
+    public int spans;
+
+    private SmartTableColumnBalancer myBalancer;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        myBalancer = new SmartTableColumnBalancer(CharWidthProvider.UNITY_PROVIDER);
+
+        for (int col = 0; col < columns; col++) {
+            myBalancer.width(col, new SmartImmutableData<>(3 + random.nextInt(40)));
+        }
+
+        for (int i = 0; i < spans; i++) {
+            int span = 2 + random.nextInt(4);
+            int col = random.nextInt(columns - span + 1);
+            myBalancer.width(col, new SmartImmutableData<>(random.nextInt(60 * span)), span, 0);
+        }
+
+        myBalancer.finalizeTable();
+    }
+
+    @Benchmark
+    public int balanceColumns() {
+        myBalancer.balanceColumns();
+        return myBalancer.getBalancePasses();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Length update of a segmented sequence of variable cells after one cell width changes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartVariableSegmentsBenchmark {
+    @Param({ "false", "true" })
+    public boolean push;
+
+    @Param({ "100", "10000" })
+    public int cells;
+
+    private ArrayList<SmartVariableCharSequence> myCells;
+    private SmartSegmentedCharSequence myRow;
+    private int myIndex;
+    private int myWidth;
+
+    @Setup
+    public void setup() {
+        SmartVersionDomain domain = new SmartVersionDomain("benchmark", push);
+        myCells = new ArrayList<>(cells);
+        myRow = domain.create((Supplier<SmartSegmentedCharSequence>) () -> {
+            ArrayList<CharSequence> parts = new ArrayList<>();
+            for (int i = 0; i < cells; i++) {
+                SmartVariableCharSequence cell = new SmartVariableCharSequence(new SmartCharArraySequence(("cell " + i).toCharArray()));
+                myCells.add(cell);
+                parts.add(cell);
+                parts.add("|");
+            }
+            return new SmartSegmentedCharSequence(parts);
+        });
+        myRow.length();
+    }
+
+    @Benchmark
+    public int changeWidth() {
+        myIndex = (myIndex + 7919) % cells;
+        myWidth = (myWidth + 1) % 16;
+        myCells.get(myIndex).setWidth(myWidth);
+        return myRow.length();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Pull vs push invalidation of dependent data on deep (chain) and wide (fan-in) graphs.
+ * <p>
+ * readClean reads the top after an unrelated serial change in the same domain, pull has to walk the graph, push does not.
+ * writeRead changes the bottom of the graph and reads the top.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartVersionInvalidationBenchmark {
+    @Param({ "false", "true" })
+    public boolean push;
+
+    @Param({ "deep", "wide" })
+    public String shape;
+
+    @Param({ "10", "100", "1000" })
+    public int size;
+
+    private SmartVolatileData<Integer> mySource;
+    private SmartVolatileData<Integer> myUnrelated;
+    private SmartVersionedDataHolder<Integer> myTop;
+    private int myValue;
+
+    @Setup
+    public void setup() {
+        SmartVersionDomain domain = new SmartVersionDomain("benchmark", push);
+        domain.create((Supplier<Object>) () -> {
+            mySource = new SmartVolatileData<>("source", 0);
+            myUnrelated = new SmartVolatileData<>("unrelated", 0);
+
+            if (shape.equals("deep")) {
+                SmartVersionedDataHolder<Integer> top = mySource;
+                for (int i = 0; i < size; i++) {
+                    SmartVersionedDataHolder<Integer> dependency = top;
+                    top = new SmartDependentData<>(dependency, (Supplier<Integer>) () -> dependency.get() + 1);
+                }
+                myTop = top;
+            } else {
+                ArrayList<SmartVersionedDataHolder<?>> dependencies = new ArrayList<>();
+                dependencies.add(mySource);
+                for (int i = 1; i < size; i++) {
+                    dependencies.add(new SmartVolatileData<>(i));
+                }
+                myTop = new SmartDependentData<>(dependencies, (Supplier<Integer>) () -> dependencies.size());
+            }
+            return null;
+        });
+        myTop.get();
+    }
+
+    @Benchmark
+    public int readClean() {
+        myUnrelated.set(++myValue);
+        return myTop.get();
+    }
+
+    @Benchmark
+    public int writeRead() {
+        mySource.set(++myValue);
+        return myTop.get();
+    }
+}
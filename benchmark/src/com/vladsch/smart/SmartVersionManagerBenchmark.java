@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serial allocation throughput of SmartVersionManager, single threaded and contended.
+ * <p>
+ * LockedSerial replicates the previous synchronized implementation for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartVersionManagerBenchmark {
+    static class LockedSerial {
+        private int mySerial = SmartVersionKt.MIN_SERIAL;
+
+        synchronized int nextSerial() {
+            if (mySerial == SmartVersionKt.MAX_SERIAL) {
+                mySerial = SmartVersionKt.MIN_SERIAL;
+                return mySerial;
+            } else {
+                return ++mySerial;
+            }
+        }
+    }
+
+    private final LockedSerial myLockedSerial = new LockedSerial();
+
+    @Benchmark
+    @Threads(1)
+    public int nextSerial() {
+        return SmartVersionManager.INSTANCE.getNextSerial();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int nextSerialContended() {
+        return SmartVersionManager.INSTANCE.getNextSerial();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int lockedNextSerial() {
+        return myLockedSerial.nextSerial();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int lockedNextSerialContended() {
+        return myLockedSerial.nextSerial();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object volatileDataSetContended() {
+        SmartVolatileData<Integer> data = new SmartVolatileData<>(0);
+        data.set(1);
+        return data;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tokenizing a large document with Token objects versus the allocation free cursor and packed token list,
+ * run through SmartBenchmarks to see allocation per operation from the gc profiler
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextTokenizerBenchmark {
+    @Param({ "10000", "1000000" })
+    public int length;
+
+    private String myText;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (sb.length() < length) {
+            sb.append("word").append(i % 97).append(i % 11 == 0 ? "  \n" : i % 7 == 0 ? "\n" : " ");
+            i++;
+        }
+        myText = sb.toString();
+    }
+
+    @Benchmark
+    public int tokenObjects() {
+        TextTokenizer tokenizer = new TextTokenizer(myText);
+        int sum = 0;
+        for (Token<TextType> token = tokenizer.getToken(); token != null; token = tokenizer.next()) {
+            sum += token.getRange().getEnd();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int tokenCursor() {
+        TextTokenizer tokenizer = new TextTokenizer(myText);
+        int sum = 0;
+        while (tokenizer.getTokenType() != null) {
+            sum += tokenizer.getTokenEnd();
+            tokenizer.advance();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int tokenList() {
+        TextTokenList tokens = new TextTokenizer(myText).asTokenList();
+        int sum = 0;
+        for (int i = 0; i < tokens.getSize(); i++) {
+            sum += tokens.end(i);
+        }
+        return sum;
+    }
+}
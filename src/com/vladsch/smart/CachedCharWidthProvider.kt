@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.vladsch.smart
+
+import java.lang.ref.WeakReference
+import java.nio.CharBuffer
+import java.util.*
+
+/**
+ * char width provider caching the widths measured by another provider
+ *
+ * BMP char widths are kept in lazily allocated pages of a char indexed table, string widths in a least recently
+ * used map keyed by content. Strings longer than maxStringLength and strings with zero width chars are not cached.
+ * Safe for use from multiple threads, a width measured by two threads at the same time is measured twice.
+ *
+ * Widths are assumed not to depend on initCharWidths(), use clear() if the widths of the delegate change.
+ */
+class CachedCharWidthProvider @JvmOverloads constructor(val delegate: CharWidthProvider, capacity: Int = DEFAULT_CAPACITY, val maxStringLength: Int = DEFAULT_MAX_STRING_LENGTH) : CharWidthProvider {
+    companion object {
+        const val DEFAULT_CAPACITY = 1024
+        const val DEFAULT_MAX_STRING_LENGTH = 256
+
+        private const val PAGE_SHIFT = 8
+        private const val PAGE_MASK = (1 shl PAGE_SHIFT) - 1
+
+        // shared caches, the cache refers to its delegate so it is held weakly to let the delegate be collected
+        private val ourShared = WeakHashMap<CharWidthProvider, WeakReference<CachedCharWidthProvider>>()
+
+        /**
+         * @return caching provider for given provider shared by all callers passing the same provider,
+         * the unity provider and caching providers are returned as is
+         */
+        @JvmStatic
+        fun of(charWidthProvider: CharWidthProvider): CharWidthProvider {
+            if (charWidthProvider === CharWidthProvider.UNITY_PROVIDER || charWidthProvider is CachedCharWidthProvider) return charWidthProvider
+
+            synchronized(ourShared) {
+                val cached = ourShared[charWidthProvider]?.get()
+                if (cached != null) return cached
+
+                val provider = CachedCharWidthProvider(charWidthProvider)
+                ourShared.put(charWidthProvider, WeakReference(provider))
+                return provider
+            }
+        }
+    }
+
+    private class WidthKey(val chars: CharSequence, val hash: Int) {
+        override fun hashCode(): Int = hash
+
+        override fun equals(other: Any?): Boolean {
+            if (other !is WidthKey || other.hash != hash || other.chars.length != chars.length) return false
+            for (i in 0..chars.length - 1) {
+                if (other.chars[i] != chars[i]) return false
+            }
+            return true
+        }
+    }
+
+    // width + 1 for each char, 0 if not measured so a page seen before its entries are written reads as not measured
+    private val myCharPages = arrayOfNulls<IntArray>(1 shl (16 - PAGE_SHIFT))
+    private val myCapacity = capacity.minLimit(1)
+    private val myStringWidths = object : LinkedHashMap<WidthKey, Int>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<WidthKey, Int>?): Boolean = size > myCapacity
+    }
+
+    @Volatile private var mySpaceWidth = -1
+
+    val size: Int get() = synchronized(myStringWidths) { myStringWidths.size }
+
+    fun clear() {
+        synchronized(myStringWidths) {
+            myStringWidths.clear()
+        }
+        Arrays.fill(myCharPages, null)
+        mySpaceWidth = -1
+    }
+
+    override fun charWidth(c: Char): Int {
+        val code = c.code
+        val page = myCharPages[code ushr PAGE_SHIFT] ?: IntArray(1 shl PAGE_SHIFT).apply { myCharPages[code ushr PAGE_SHIFT] = this }
+        val width = page[code and PAGE_MASK]
+        if (width > 0) return width - 1
+
+        val measured = delegate.charWidth(c)
+        if (measured >= 0) page[code and PAGE_MASK] = measured + 1
+        return measured
+    }
+
+    override fun getStringWidth(charSequence: CharSequence, zeroWidth: CharSequence?): Int {
+        val length = charSequence.length
+        if (zeroWidth != null || length > maxStringLength) return delegate.getStringWidth(charSequence, zeroWidth)
+        if (length == 0) return 0
+        if (length == 1) return charWidth(charSequence[0])
+
+        var hash = 0
+        for (i in 0..length - 1) {
+            hash = hash * 31 + charSequence[i].code
+        }
+
+        synchronized(myStringWidths) {
+            val width = myStringWidths[WidthKey(charSequence, hash)]
+            if (width != null) return width
+        }
+
+        // measure outside the lock, keep a copy of the content since the sequence can be mutable
+        val width = delegate.getStringWidth(charSequence, null)
+        synchronized(myStringWidths) {
+            myStringWidths.put(WidthKey(charSequence.toString(), hash), width)
+        }
+        return width
+    }
+
+    /**
+     * ranges not in the cache are measured by one batch call to the delegate
+     */
+    override fun getStringWidths(chars: CharArray, starts: IntArray, ends: IntArray, count: Int, widths: IntArray) {
+        var missIndices: IntArray? = null
+        var missHashes: IntArray? = null
+        var misses = 0
+
+        for (i in 0..count - 1) {
+            val start = starts[i]
+            val length = ends[i] - start
+
+            if (length <= 0) {
+                widths[i] = 0
+                continue
+            }
+
+            if (length == 1) {
+                widths[i] = charWidth(chars[start])
+                continue
+            }
+
+            var hash = 0
+            if (length <= maxStringLength) {
+                for (k in start..start + length - 1) {
+                    hash = hash * 31 + chars[k].code
+                }
+
+                val width = synchronized(myStringWidths) { myStringWidths[WidthKey(CharBuffer.wrap(chars, start, length), hash)] }
+                if (width != null) {
+                    widths[i] = width
+                    continue
+                }
+            }
+
+            if (missIndices == null || missHashes == null) {
+                missIndices = IntArray(count - i)
+                missHashes = IntArray(count - i)
+            }
+            missIndices[misses] = i
+            missHashes[misses] = hash
+            misses++
+        }
+
+        if (missIndices == null || missHashes == null) return
+
+        val missStarts = IntArray(misses)
+        val missEnds = IntArray(misses)
+        val missWidths = IntArray(misses)
+        for (m in 0..misses - 1) {
+            missStarts[m] = starts[missIndices[m]]
+            missEnds[m] = ends[missIndices[m]]
+        }
+
+        delegate.getStringWidths(chars, missStarts, missEnds, misses, missWidths)
+
+        synchronized(myStringWidths) {
+            for (m in 0..misses - 1) {
+                widths[missIndices[m]] = missWidths[m]
+                val length = missEnds[m] - missStarts[m]
+                if (length <= maxStringLength) myStringWidths.put(WidthKey(String(chars, missStarts[m], length), missHashes[m]), missWidths[m])
+            }
+        }
+    }
+
+    override fun getSpaceWidth(): Int {
+        var spaceWidth = mySpaceWidth
+        if (spaceWidth < 0) {
+            spaceWidth = delegate.spaceWidth
+            mySpaceWidth = spaceWidth
+        }
+        return spaceWidth
+    }
+
+    override fun lineChars(line: Int): CharSequence? = delegate.lineChars(line)
+    override fun lineStart(line: Int): Int? = delegate.lineStart(line)
+    override fun lineEnd(line: Int): Int? = delegate.lineEnd(line)
+    override fun offsetLineStart(offset: Int): Int? = delegate.offsetLineStart(offset)
+    override fun offsetLineEnd(offset: Int): Int? = delegate.offsetLineEnd(offset)
+    override fun offsetLineNumber(offset: Int): Int? = delegate.offsetLineNumber(offset)
+
+    override fun initCharWidths(startOffset: Int, endOffset: Int) {
+        delegate.initCharWidths(startOffset, endOffset)
+    }
+}
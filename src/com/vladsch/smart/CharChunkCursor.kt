@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart
+
+/**
+ * forward or backward scan of a char sequence range in chunks copied with bulk getChars
+ *
+ * chunk holds characters [chunkStart, chunkStart + chunkLength) of the sequence, chunks start small and
+ * double up to maxChunkSize so short scans copy little and long scans avoid per character dispatch
+ */
+class CharChunkCursor(val chars: CharSequence, val startIndex: Int, val endIndex: Int, val isForward: Boolean, val maxChunkSize: Int) {
+    constructor(chars: CharSequence, startIndex: Int, endIndex: Int, isForward: Boolean) : this(chars, startIndex, endIndex, isForward, MAX_CHUNK_SIZE)
+
+    constructor(chars: CharSequence, isForward: Boolean) : this(chars, 0, chars.length, isForward, MAX_CHUNK_SIZE)
+
+    private var myChunk = EMPTY_CHUNK
+    private var myChunkStart = if (isForward) startIndex else endIndex
+    private var myChunkLength = 0
+
+    val chunk: CharArray get() = myChunk
+    val chunkStart: Int get() = myChunkStart
+    val chunkLength: Int get() = myChunkLength
+    val chunkEnd: Int get() = myChunkStart + myChunkLength
+
+    /**
+     * load next chunk in scan direction
+     *
+     * @return false if no more characters
+     */
+    fun next(): Boolean {
+        val remaining = if (isForward) endIndex - chunkEnd else myChunkStart - startIndex
+        if (remaining <= 0) {
+            myChunkLength = 0
+            return false
+        }
+
+        val size = (if (myChunk.size == 0) MIN_CHUNK_SIZE else myChunk.size * 2).maxLimit(maxChunkSize)
+        if (myChunk.size < size && myChunk.size < remaining) {
+            myChunk = CharArray(size.maxLimit(remaining))
+        }
+
+        val length = remaining.maxLimit(myChunk.size)
+        myChunkStart = if (isForward) chunkEnd else myChunkStart - length
+        myChunkLength = length
+        chars.getChars(myChunkStart, myChunkStart + length, myChunk, 0)
+        return true
+    }
+
+    companion object {
+        const val MIN_CHUNK_SIZE = 16
+        const val MAX_CHUNK_SIZE = 1024
+
+        private val EMPTY_CHUNK = CharArray(0)
+    }
+}
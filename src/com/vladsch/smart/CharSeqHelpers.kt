@@ -23,13 +23,80 @@ package com.vladsch.smart
 
 import java.util.*
 
+/**
+ * bulk copy of characters in range [srcBegin, srcEnd) to dst
+ */
+fun CharSequence.getChars(srcBegin: Int, srcEnd: Int, dst: CharArray, dstOffset: Int) {
+    when (this) {
+        // String first, final class check is cheaper than a failed interface check
+        is String -> this.toCharArray(dst, dstOffset, srcBegin, srcEnd)
+        is SmartCharSequence -> this.getChars(srcBegin, srcEnd, dst, dstOffset)
+        is StringBuilder -> this.getChars(srcBegin, srcEnd, dst, dstOffset)
+        else -> {
+            for (i in srcBegin..srcEnd - 1) {
+                dst[dstOffset + i - srcBegin] = this[i]
+            }
+        }
+    }
+}
+
 fun CharSequence.isAllSame(c: Char): Boolean {
+    if (this is SmartCharSequence) {
+        val cursor = CharChunkCursor(this, true)
+        while (cursor.next()) {
+            val chunk = cursor.chunk
+            for (i in 0..cursor.chunkLength - 1) {
+                if (chunk[i] != c) return false
+            }
+        }
+        return this.length > 0
+    }
+
     for (i in 0..this.length - 1) {
         if (this[i] != c) return false
     }
     return this.length > 0
 }
 
+// count of leading chars in [index, endIndex) which are in c, or not in c if not in is true
+// ranges no longer than a first chunk are scanned directly, a cursor and its chunk would cost more than it saves
+private fun CharSequence.countLeading(c: CharArray, isIn: Boolean, index: Int, endIndex: Int): Int {
+    if (this is SmartCharSequence && endIndex - index > CharChunkCursor.MIN_CHUNK_SIZE) {
+        val cursor = CharChunkCursor(this, index, endIndex, true)
+        while (cursor.next()) {
+            val chunk = cursor.chunk
+            for (i in 0..cursor.chunkLength - 1) {
+                if ((chunk[i] in c) != isIn) return cursor.chunkStart + i - index
+            }
+        }
+        return endIndex - index
+    }
+
+    for (i in index..endIndex - 1) {
+        if ((this[i] in c) != isIn) return i - index
+    }
+    return endIndex - index
+}
+
+// count of trailing chars in [startIndex, index] which are in c, or not in c if not in is true
+private fun CharSequence.countTrailing(c: CharArray, isIn: Boolean, index: Int, startIndex: Int): Int {
+    if (this is SmartCharSequence && index + 1 - startIndex > CharChunkCursor.MIN_CHUNK_SIZE) {
+        val cursor = CharChunkCursor(this, startIndex, index + 1, false)
+        while (cursor.next()) {
+            val chunk = cursor.chunk
+            for (i in cursor.chunkLength - 1 downTo 0) {
+                if ((chunk[i] in c) != isIn) return index - cursor.chunkStart - i
+            }
+        }
+        return index - startIndex + 1
+    }
+
+    for (i in index downTo startIndex) {
+        if ((this[i] in c) != isIn) return index - i
+    }
+    return index - startIndex + 1
+}
+
 fun CharSequence.countLeading(vararg c: Char, index: Int? = null, endIndex: Int? = null): Int {
     @Suppress("NAME_SHADOWING")
     var index = index ?: 0
@@ -40,11 +107,7 @@ fun CharSequence.countLeading(vararg c: Char, index: Int? = null, endIndex: Int?
     if (index < 0) index = 0
     if (index >= endIndex) return 0
 
-    val origIndex = index
-    for (i in index..endIndex - 1) {
-        if (this[i] !in c) return i - origIndex
-    }
-    return endIndex - origIndex
+    return countLeading(c, true, index, endIndex)
 }
 
 fun CharSequence.countTrailing(vararg c: Char, index: Int? = null, startIndex: Int? = null): Int {
@@ -56,11 +119,7 @@ fun CharSequence.countTrailing(vararg c: Char, index: Int? = null, startIndex: I
     if (index > length - 1) index = length - 1
     if (startIndex < 0 || index < 0 || index < startIndex) return 0
 
-    val origIndex = index
-    for (i in (startIndex..index).reversed()) {
-        if (this[i] !in c) return origIndex - i
-    }
-    return origIndex - startIndex + 1
+    return countTrailing(c, true, index, startIndex)
 }
 
 fun CharSequence.countLeadingNot(vararg c: Char, index: Int? = null, endIndex: Int? = null): Int {
@@ -73,11 +132,7 @@ fun CharSequence.countLeadingNot(vararg c: Char, index: Int? = null, endIndex: I
     if (index < 0) index = 0
     if (index >= endIndex) return 0
 
-    val origIndex = index
-    for (i in index..endIndex - 1) {
-        if (this[i] in c) return i - origIndex
-    }
-    return endIndex - origIndex
+    return countLeading(c, false, index, endIndex)
 }
 
 fun CharSequence.countTrailingNot(vararg c: Char, index: Int? = null, startIndex: Int? = null): Int {
@@ -89,11 +144,7 @@ fun CharSequence.countTrailingNot(vararg c: Char, index: Int? = null, startIndex
     if (index > length - 1) index = length - 1
     if (startIndex < 0 || index < 0 || index < startIndex) return 0
 
-    val origIndex = index
-    for (i in (startIndex..index).reversed()) {
-        if (this[i] in c) return origIndex - i
-    }
-    return origIndex - startIndex + 1
+    return countTrailing(c, false, index, startIndex)
 }
 
 fun CharSequence.countLeading(pattern: Regex, index: Int? = null): Int {
@@ -231,7 +282,11 @@ fun CharSequence.smart(): SmartCharSequence {
 }
 
 fun CharSequence.extractGroups(regex: String): ArrayList<CharSequence>? {
-    val matchResult = regex.toRegex().matchEntire(this)
+    return extractGroups(SmartRegexCache.regex(regex))
+}
+
+fun CharSequence.extractGroups(regex: Regex): ArrayList<CharSequence>? {
+    val matchResult = regex.matchEntire(this)
     if (matchResult != null) {
         val segments = ArrayList<CharSequence>(matchResult.groups.size)
         var group = 0
@@ -24,13 +24,36 @@ package com.vladsch.smart;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.nio.CharBuffer;
+
 public interface CharWidthProvider {
-    int getCharWidth(@NotNull Character c);
+    /**
+     * width of a char without boxing
+     */
+    int charWidth(char c);
+
+    default int getCharWidth(@NotNull Character c) {
+        return charWidth(c);
+    }
+
     default int getStringWidth(@NotNull CharSequence charSequence) {
         return getStringWidth(charSequence, null);
     }
 
     int getStringWidth(@NotNull CharSequence charSequence, @Nullable CharSequence zeroWidth);
+
+    /**
+     * widths of many ranges of one char array, range i is [starts[i], ends[i])
+     * <p>
+     * default measures each range with getStringWidth(), providers with per call setup should override it
+     *
+     * @param widths receives width of range i at index i
+     */
+    default void getStringWidths(@NotNull char[] chars, @NotNull int[] starts, @NotNull int[] ends, int count, @NotNull int[] widths) {
+        for (int i = 0; i < count; i++) {
+            widths[i] = getStringWidth(CharBuffer.wrap(chars, starts[i], ends[i] - starts[i]), null);
+        }
+    }
     int getSpaceWidth();
 
     public static CharWidthProvider UNITY_PROVIDER = new CharWidthProvider() {
@@ -40,7 +63,7 @@ public interface CharWidthProvider {
         }
 
         @Override
-        public int getCharWidth(@NotNull Character c) {
+        public int charWidth(char c) {
             return 1;
         }
 
@@ -49,6 +72,13 @@ public interface CharWidthProvider {
             return charSequence.length();
         }
 
+        @Override
+        public void getStringWidths(@NotNull char[] chars, @NotNull int[] starts, @NotNull int[] ends, int count, @NotNull int[] widths) {
+            for (int i = 0; i < count; i++) {
+                widths[i] = ends[i] - starts[i];
+            }
+        }
+
         @Nullable
         @Override
         public CharSequence lineChars(int line) {
@@ -122,6 +122,10 @@ class EditableCharSequence(chars: CharSequence) : SmartCharSequence {
         return myChars.trackedSourceLocation(index)
     }
 
+    override fun trackedSourceLocation(index: Int, location: TrackedLocationCursor) {
+        myChars.trackedSourceLocation(index, location)
+    }
+
     override fun replace(charSequence: CharSequence, startIndex: Int, endIndex: Int): EditableCharSequence {
         this.myChars = this.myChars.replace(charSequence, startIndex, endIndex)
         return this
@@ -166,6 +170,8 @@ class EditableCharSequence(chars: CharSequence) : SmartCharSequence {
 
     override fun trackedLocation(source: Any?, offset: Int): TrackedLocation? = myChars.trackedLocation(source, offset)
 
+    override fun trackedLocation(source: Any?, offset: Int, location: TrackedLocationCursor): Boolean = myChars.trackedLocation(source, offset, location)
+
     override fun splicedWith(other: CharSequence?): SmartCharSequence? = myChars.splicedWith(other)
 
     override fun flattened(sequences: ArrayList<SmartCharSequence>) = myChars.flattened(sequences)
@@ -181,6 +187,7 @@ class EditableCharSequence(chars: CharSequence) : SmartCharSequence {
     override fun getChars(): CharArray = myChars.chars
 
     override fun getChars(dst: CharArray, dstOffset: Int) = myChars.getChars(dst, dstOffset)
+    override fun getChars(srcBegin: Int, srcEnd: Int, dst: CharArray, dstOffset: Int) = myChars.getChars(srcBegin, srcEnd, dst, dstOffset)
 
     override fun getMarkers(id: String?): MutableList<TrackedLocation> = myChars.getMarkers(id)
 
@@ -198,6 +205,10 @@ class EditableCharSequence(chars: CharSequence) : SmartCharSequence {
 
     override fun extractGroupsSegmented(regex: String): SmartSegmentedCharSequence?  = myChars.extractGroupsSegmented(regex)
 
+    override fun extractGroups(regex: Regex): MutableList<SmartCharSequence>?  = myChars.extractGroups(regex)
+
+    override fun extractGroupsSegmented(regex: Regex): SmartSegmentedCharSequence?  = myChars.extractGroupsSegmented(regex)
+
     override fun getSourceLocations(sources: ArrayList<Any>, locations: ArrayList<Range>, sourceLocations: ArrayList<Range>) {
         myChars.getSourceLocations(sources, locations, sourceLocations)
     }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart
+
+import java.util.*
+
+/**
+ * formatted markdown table kept between edits so only edited rows are re-parsed and re-formatted
+ *
+ * rows are formatted as by MarkdownTableFormatter.formatTable(), with each cell length registered with the column
+ * balancer through an alias. A re-formatted row with the same column spans takes over the aliases of the row it
+ * replaces, the version graph then re-balances columns and refreshes only cells whose column width changed.
+ *
+ * edits changing the table structure: row count, row column counts or spans, indent or separator rows, re-format the
+ * whole table. Cells of rows that are not re-parsed keep the characters they were parsed from.
+ */
+class MarkdownFormattedTable(val formatter: MarkdownTableFormatter, val charWidthProvider: CharWidthProvider) {
+    constructor(formatter: MarkdownTableFormatter) : this(formatter, CharWidthProvider.UNITY_PROVIDER)
+
+    private var myTable: MarkdownTable? = null
+    // widths of unchanged cell text are not measured again on update
+    private val myWidthProvider = CachedCharWidthProvider.of(charWidthProvider)
+    private var myTableBalancer = SmartTableColumnBalancer(myWidthProvider)
+    private val myRows = ArrayList<MarkdownTableFormatter.FormattedRow>()
+    private var myCaption: CharSequence = EMPTY_SEQUENCE
+    private var myAddLeadTrailPipes = false
+    private var myFilledColumns = -1
+    private var myFormattedTable: SmartCharSequence = EMPTY_SEQUENCE
+
+    // per row: line length including '\n', tab expanded indent, columns before filling missing columns
+    private var myLineLengths = IntArray(0)
+    private var myRowIndents = IntArray(0)
+    private var myRowColumns = IntArray(0)
+    private var myLength = 0
+
+    val table: MarkdownTable get() = myTable ?: throw IllegalStateException("format() was not called")
+    val formattedTable: SmartCharSequence get() = myFormattedTable
+
+    // rows formatted by the last format() or update()
+    var reformattedRows: Int = 0
+        private set
+
+    private val trimCells: Boolean get() = !formatter.settings.TABLE_ADJUST_COLUMN_WIDTH && formatter.settings.TABLE_TRIM_CELLS
+
+    fun format(tableChars: SmartCharSequence, caretOffset: Int): SmartCharSequence {
+        val parser = MarkdownTableParser(tableChars)
+        val table = MarkdownTableFormatter.parseTable(tableChars, parser, caretOffset, trimCells)
+        val rowCount = table.rows.size
+
+        myLineLengths = IntArray(rowCount)
+        myRowIndents = IntArray(rowCount)
+        myRowColumns = IntArray(rowCount)
+        for (row in 0..rowCount - 1) {
+            myLineLengths[row] = lineLength(parser, row)
+            myRowIndents[row] = parser.rowIndent(row)
+            myRowColumns[row] = table.rows[row].totalColumns
+        }
+        myLength = parser.length
+
+        myFilledColumns = -1
+        if (formatter.settings.TABLE_FILL_MISSING_COLUMNS) {
+            val unbalancedTable = table.minColumns != table.maxColumns
+            if (unbalancedTable) {
+                myFilledColumns = table.maxColumns
+                table.fillMissingColumns(null)
+            }
+        }
+
+        formatter.measureCells(table.rows, myWidthProvider)
+        val tableBalancer = SmartTableColumnBalancer(myWidthProvider)
+        myAddLeadTrailPipes = formatter.isAddLeadTrailPipes(table, table.indentPrefix)
+        myRows.clear()
+        for (row in 0..rowCount - 1) {
+            myRows.add(formatter.formatRow(table.rows[row], row, table.separatorRow, table.indentPrefix, myAddLeadTrailPipes, tableBalancer, myWidthProvider, null, true))
+        }
+
+        myCaption = formatter.formatCaption(table.caption)
+        formatter.finalizeTable(tableBalancer)
+        myTableBalancer = tableBalancer
+        myTable = table
+        reformattedRows = rowCount
+
+        return updateFormattedTable()
+    }
+
+    /**
+     * re-format after rows in [startRow, endRow) were edited, all other rows must be unchanged
+     *
+     * the previous caret row is always re-parsed, the caret is expected to be in one of the edited rows
+     */
+    fun update(tableChars: SmartCharSequence, startRow: Int, endRow: Int, caretOffset: Int): SmartCharSequence {
+        val table = myTable ?: return format(tableChars, caretOffset)
+        val rows = table.rows
+
+        var start = startRow.minLimit(0)
+        var end = endRow.maxLimit(rows.size)
+        val caretRow = table.offsetRow
+        if (caretRow != null) {
+            start = start.maxLimit(caretRow)
+            end = end.minLimit(caretRow + 1)
+        }
+
+        if (start >= end) return format(tableChars, caretOffset)
+
+        // separator row defines column alignments, these are only registered by a full format
+        if (start <= table.separatorRow && table.separatorRow < end) return format(tableChars, caretOffset)
+
+        var startOffset = 0
+        for (row in 0..start - 1) startOffset += myLineLengths[row]
+
+        var oldLength = 0
+        for (row in start..end - 1) oldLength += myLineLengths[row]
+
+        // find end of edited rows, after them the table must be the same as before
+        val length = tableChars.length
+        var endOffset = startOffset
+        var lines = end - start
+        while (endOffset < length && lines > 0) {
+            if (tableChars[endOffset] == '\n') lines--
+            endOffset++
+        }
+        // last line of the table need not end in '\n'
+        if (lines > 1) return format(tableChars, caretOffset)
+        if (length - endOffset != myLength - startOffset - oldLength) return format(tableChars, caretOffset)
+
+        val indent = table.indentPrefix.length
+        val rowChars = tableChars.subSequence(startOffset, endOffset)
+        val parser = MarkdownTableParser(rowChars, indent)
+        if (parser.rowCount != end - start) return format(tableChars, caretOffset)
+
+        // indent of the table is computed from all rows
+        var minIndent = Int.MAX_VALUE
+        for (row in 0..rows.size - 1) {
+            val rowIndent = if (row >= start && row < end) parser.rowIndent(row - start) else myRowIndents[row]
+            if (minIndent > rowIndent) minIndent = rowIndent
+        }
+        if (minIndent / 4 * 4 != indent) return format(tableChars, caretOffset)
+
+        val editedTable = MarkdownTableFormatter.parseTable(rowChars, parser, caretOffset, trimCells)
+        for (i in 0..editedTable.rows.size - 1) {
+            val row = start + i
+            val tableRow = editedTable.rows[i]
+            val totalColumns = tableRow.totalColumns
+            if (tableRow.isSeparator != rows[row].isSeparator || totalColumns != myRowColumns[row]) return format(tableChars, caretOffset)
+            if (myFilledColumns > totalColumns) tableRow.appendColumns(myFilledColumns - totalColumns)
+
+            val spans = myRows[row].spans
+            if (spans.size != tableRow.rowCells.size) return format(tableChars, caretOffset)
+            for (cell in 0..spans.size - 1) {
+                if (spans[cell] != tableRow.rowCells[cell].colSpan) return format(tableChars, caretOffset)
+            }
+        }
+
+        // same structure, replace rows
+        formatter.measureCells(editedTable.rows, myWidthProvider)
+        for (i in 0..editedTable.rows.size - 1) {
+            val row = start + i
+            val tableRow = editedTable.rows[i]
+            rows[row] = tableRow
+            myRows[row] = formatter.formatRow(tableRow, row, table.separatorRow, table.indentPrefix, myAddLeadTrailPipes, myTableBalancer, myWidthProvider, myRows[row])
+            myLineLengths[row] = lineLength(parser, i)
+            myRowIndents[row] = parser.rowIndent(i)
+        }
+
+        myLength = length
+        val offsetRow = editedTable.offsetRow
+        myTable = MarkdownTable(rows, table.caption, table.indentPrefix, table.exactColumn, if (offsetRow == null) null else offsetRow + start, editedTable.offsetColumn)
+        reformattedRows = end - start
+
+        return updateFormattedTable()
+    }
+
+    private fun lineLength(parser: MarkdownTableParser, row: Int): Int {
+        val lineEnd = parser.lineEnd(row)
+        return lineEnd - parser.lineStart(row) + if (lineEnd < parser.length) 1 else 0
+    }
+
+    private fun updateFormattedTable(): SmartCharSequence {
+        val sequences = ArrayList<CharSequence>(myRows.size + 1)
+        for (row in myRows) sequences.add(row.sequence)
+        sequences.add(myCaption)
+        myFormattedTable = SmartSegmentedCharSequence(sequences)
+        return myFormattedTable
+    }
+}
@@ -208,7 +208,7 @@ class TableRow(val rowCells: ArrayList<TableCell>, val isSeparator: Boolean) {
             if (rowCells.isEmpty()) return false;
 
             for (cell in rowCells) {
-                if (!MarkdownTableFormatter.SEPARATOR_COLUMN_PATTERN_REGEX.matches(cell.charSequence)) return false
+                if (!MarkdownTableParser.isSeparatorColumn(cell.charSequence)) return false
             }
             return true
         }
@@ -74,114 +74,213 @@ class MarkdownTableFormatter(val settings: MarkdownTableFormatSettings) {
     }
 
     fun formatTable(markdownTable: MarkdownTable, indentPrefix: CharSequence = EMPTY_SEQUENCE, charWidthProvider: CharWidthProvider): SmartCharSequence {
-        val tableBalancer = SmartTableColumnBalancer(charWidthProvider)
+        val widthProvider = measureCells(markdownTable.rows, charWidthProvider)
+        val tableBalancer = SmartTableColumnBalancer(widthProvider)
         var formattedTable = EditableCharSequence()
-
-        val pipeSequence = RepeatedCharSequence('|')
-        val endOfLine = RepeatedCharSequence('\n')
-        val space = RepeatedCharSequence(' ')
-        val pipePadding = if (settings.TABLE_SPACE_AROUND_PIPE) space else EMPTY_SEQUENCE // or empty if don't want padding around pipes
-        val alignMarker = RepeatedCharSequence(':')
-        var rowColumns = ArrayList<SmartCharSequence>()
+        val addLeadTrailPipes = isAddLeadTrailPipes(markdownTable, indentPrefix)
 
         var row = 0
-        val addLeadTrailPipes = settings.TABLE_LEAD_TRAIL_PIPES || !indentPrefix.isEmpty() || markdownTable.minColumns < 2
-
         for (tableRow in markdownTable.rows) {
-            var formattedRow = EditableCharSequence()
+            formattedTable.append(formatRow(tableRow, row, markdownTable.separatorRow, indentPrefix, addLeadTrailPipes, tableBalancer, widthProvider, null).sequence)
+            row++
+        }
 
-            if (addLeadTrailPipes) {
-                formattedRow.append(indentPrefix, pipeSequence)
-            } else {
-                formattedRow.append(indentPrefix)
+        formattedTable.append(formatCaption(markdownTable.caption))
+        finalizeTable(tableBalancer)
+
+        return formattedTable.contents //.cachedProxy
+    }
+
+    internal fun cellChars(tableCell: TableCell): SmartCharSequence {
+        var columnChars: SmartCharSequence = SmartCharSequenceWrapper(tableCell.charSequence)
+
+        if (settings.TABLE_TRIM_CELLS) columnChars = columnChars.trim()
+        if (columnChars.isEmpty()) columnChars = columnChars.append(RepeatedCharSequence(' '))
+        return columnChars
+    }
+
+    /**
+     * measure the text of all cells of non separator rows with one batch request to the char width provider
+     *
+     * @return caching provider holding the measured widths, cells formatted with it do not measure their text again.
+     *         The unity provider is returned as is.
+     */
+    internal fun measureCells(rows: List<TableRow>, charWidthProvider: CharWidthProvider): CharWidthProvider {
+        if (charWidthProvider === CharWidthProvider.UNITY_PROVIDER) return charWidthProvider
+
+        val cells = ArrayList<SmartCharSequence>()
+        for (tableRow in rows) {
+            if (tableRow.isSeparator) continue
+            for (tableCell in tableRow.rowCells) {
+                cells.add(cellChars(tableCell))
             }
+        }
 
-            val segments = tableRow.rowCells
-            var colIndex = 0
-            var col = 0
-            var lastSpan = 1
-            var lastColumnEmpty = false
+        val widthProvider = charWidthProvider as? CachedCharWidthProvider ?: CachedCharWidthProvider(charWidthProvider, cells.size.minLimit(CachedCharWidthProvider.DEFAULT_CAPACITY))
+        val starts = IntArray(cells.size)
+        val ends = IntArray(cells.size)
+        var count = 0
+        var length = 0
+
+        for (cell in cells) {
+            if (cell.length > 1 && cell.length <= widthProvider.maxStringLength) {
+                starts[count] = length
+                length += cell.length
+                ends[count++] = length
+            }
+        }
 
-            while (colIndex < segments.size) {
-                val tableCell = segments[colIndex]
-                var columnChars:SmartCharSequence = SmartCharSequenceWrapper(tableCell.charSequence)
+        if (count > 0) {
+            val chars = CharArray(length)
+            var i = 0
+            for (cell in cells) {
+                if (cell.length > 1 && cell.length <= widthProvider.maxStringLength) {
+                    cell.getChars(0, cell.length, chars, starts[i++])
+                }
+            }
+            widthProvider.getStringWidths(chars, starts, ends, count, IntArray(count))
+        }
+        return widthProvider
+    }
 
-                if (settings.TABLE_TRIM_CELLS) columnChars = columnChars.trim()
-                if (columnChars.isEmpty()) columnChars = columnChars.append(space)
+    internal fun isAddLeadTrailPipes(markdownTable: MarkdownTable, indentPrefix: CharSequence): Boolean {
+        return settings.TABLE_LEAD_TRAIL_PIPES || !indentPrefix.isEmpty() || markdownTable.minColumns < 2
+    }
 
-                val separatorParts = if (row == markdownTable.separatorRow) columnChars.extractGroupsSegmented(SEPARATOR_COLUMN_PATTERN) else null
-                assert(row != markdownTable.separatorRow || separatorParts != null, { "isSeparator but column does not match separator col" })
+    internal fun finalizeTable(tableBalancer: SmartTableColumnBalancer) {
+        tableBalancer.finalizeTable()
+        myAlignmentDataPoints = tableBalancer.columnAlignmentDataPoints
+        myColumnWidthDataPoints = tableBalancer.columnWidthDataPoints
+    }
 
-                val formattedCol: SmartVariableCharSequence
+    /**
+     * formatted row with the data points its cells registered with the table balancer
+     *
+     * lengths are set only for rows formatted for MarkdownFormattedTable, they let a re-formatted row with the same
+     * column spans take over the balancer inputs of the row it replaces
+     */
+    internal class FormattedRow(val sequence: SmartCharSequence, val spans: IntArray, val lengths: Array<SmartVersionedDataAlias<Int>?>?, val widths: Array<SmartVersionedDataHolder<Int>?>)
+
+    /**
+     * @param prevRow  null to register cells with the balancer, else row with the same column spans whose balancer
+     *                 inputs are taken over, needs lengths
+     * @param aliasLengths  true to register cell lengths through aliases so the row can be replaced later
+     */
+    internal fun formatRow(tableRow: TableRow, row: Int, separatorRow: Int, indentPrefix: CharSequence, addLeadTrailPipes: Boolean, tableBalancer: SmartTableColumnBalancer, charWidthProvider: CharWidthProvider, prevRow: FormattedRow?, aliasLengths: Boolean = false): FormattedRow {
+        val pipeSequence = RepeatedCharSequence('|')
+        val endOfLine = RepeatedCharSequence('\n')
+        val space = RepeatedCharSequence(' ')
+        val pipePadding = if (settings.TABLE_SPACE_AROUND_PIPE) space else EMPTY_SEQUENCE // or empty if don't want padding around pipes
+        val alignMarker = RepeatedCharSequence(':')
 
-                if (separatorParts != null) {
-                    val haveLeft = separatorParts.segments[2] != NULL_SEQUENCE
-                    val haveRight = separatorParts.segments[4] != NULL_SEQUENCE
+        var formattedRow = EditableCharSequence()
 
-                    formattedCol = SmartVariableCharSequence(columnChars, SmartRepeatedCharSequence('-', 3 - haveLeft.ifElse(1, 0) - haveRight.ifElse(1, 0)), charWidthProvider)
+        if (addLeadTrailPipes) {
+            formattedRow.append(indentPrefix, pipeSequence)
+        } else {
+            formattedRow.append(indentPrefix)
+        }
 
-                    formattedCol.leftPadChar = '-'
-                    formattedCol.rightPadChar = '-'
-                    when {
-                        haveLeft && haveRight -> {
-                            if (settings.TABLE_APPLY_COLUMN_ALIGNMENT) tableBalancer.alignment(colIndex, SmartImmutableData(TextAlignment.CENTER))
-                            formattedCol.prefix = alignMarker
-                            formattedCol.suffix = alignMarker
-                        }
-                        haveRight -> {
-                            if (settings.TABLE_APPLY_COLUMN_ALIGNMENT) tableBalancer.alignment(colIndex, SmartImmutableData(TextAlignment.RIGHT))
-                            formattedCol.suffix = alignMarker
-                        }
-                        else -> {
-                            // when no alignment given use centered for header cells and left for body
-                            if (settings.TABLE_APPLY_COLUMN_ALIGNMENT) {
-                                val tableHeadingDefaultAlignment = !haveLeft && settings.TABLE_LEFT_ALIGN_MARKER != 1 || haveLeft && !haveRight && settings.TABLE_LEFT_ALIGN_MARKER == -1
-                                tableBalancer.alignment(colIndex, SmartImmutableData(if (tableHeadingDefaultAlignment) TextAlignment.DEFAULT else TextAlignment.LEFT))
-                            }
-                            if (settings.TABLE_LEFT_ALIGN_MARKER == 1 || settings.TABLE_LEFT_ALIGN_MARKER == 0 && haveLeft) formattedCol.prefix = alignMarker
+        val segments = tableRow.rowCells
+        val spans = IntArray(segments.size)
+        val lengths = prevRow?.lengths ?: if (aliasLengths) arrayOfNulls<SmartVersionedDataAlias<Int>>(segments.size) else null
+        val widths = prevRow?.widths ?: arrayOfNulls<SmartVersionedDataHolder<Int>>(segments.size)
+        var colIndex = 0
+        var col = 0
+        var lastSpan = 1
+        var lastColumnEmpty = false
+
+        while (colIndex < segments.size) {
+            val tableCell = segments[colIndex]
+            val columnChars = cellChars(tableCell)
+
+            val separatorMarkers = if (row == separatorRow) MarkdownTableParser.separatorMarkers(columnChars) else -1
+            assert(row != separatorRow || separatorMarkers >= 0, { "isSeparator but column does not match separator col" })
+
+            val formattedCol: SmartVariableCharSequence
+
+            if (separatorMarkers >= 0) {
+                val haveLeft = separatorMarkers and MarkdownTableParser.SEPARATOR_HAVE_LEFT != 0
+                val haveRight = separatorMarkers and MarkdownTableParser.SEPARATOR_HAVE_RIGHT != 0
+
+                formattedCol = SmartVariableCharSequence(columnChars, SmartRepeatedCharSequence('-', 3 - haveLeft.ifElse(1, 0) - haveRight.ifElse(1, 0)), charWidthProvider)
+
+                formattedCol.leftPadChar = '-'
+                formattedCol.rightPadChar = '-'
+                when {
+                    haveLeft && haveRight -> {
+                        if (settings.TABLE_APPLY_COLUMN_ALIGNMENT) tableBalancer.alignment(colIndex, SmartImmutableData(TextAlignment.CENTER))
+                        formattedCol.prefix = alignMarker
+                        formattedCol.suffix = alignMarker
+                    }
+                    haveRight -> {
+                        if (settings.TABLE_APPLY_COLUMN_ALIGNMENT) tableBalancer.alignment(colIndex, SmartImmutableData(TextAlignment.RIGHT))
+                        formattedCol.suffix = alignMarker
+                    }
+                    else -> {
+                        // when no alignment given use centered for header cells and left for body
+                        if (settings.TABLE_APPLY_COLUMN_ALIGNMENT) {
+                            val tableHeadingDefaultAlignment = !haveLeft && settings.TABLE_LEFT_ALIGN_MARKER != 1 || haveLeft && !haveRight && settings.TABLE_LEFT_ALIGN_MARKER == -1
+                            tableBalancer.alignment(colIndex, SmartImmutableData(if (tableHeadingDefaultAlignment) TextAlignment.DEFAULT else TextAlignment.LEFT))
                         }
+                        if (settings.TABLE_LEFT_ALIGN_MARKER == 1 || settings.TABLE_LEFT_ALIGN_MARKER == 0 && haveLeft) formattedCol.prefix = alignMarker
                     }
-                } else {
-                    formattedCol = SmartVariableCharSequence(columnChars, columnChars, charWidthProvider)
-                    if (addLeadTrailPipes || colIndex > 0) formattedCol.prefix = pipePadding
-                    if (addLeadTrailPipes || colIndex < segments.size - 1) formattedCol.suffix = if (columnChars.length > 0 && columnChars[columnChars.length - 1] != ' ') pipePadding else EMPTY_SEQUENCE
                 }
+            } else {
+                formattedCol = SmartVariableCharSequence(columnChars, columnChars, charWidthProvider)
+                if (addLeadTrailPipes || colIndex > 0) formattedCol.prefix = pipePadding
+                if (addLeadTrailPipes || colIndex < segments.size - 1) formattedCol.suffix = if (columnChars.length > 0 && columnChars[columnChars.length - 1] != ' ') pipePadding else EMPTY_SEQUENCE
+            }
 
-                // see if we have spanned columns
-                if (colIndex > 0) formattedRow.append(pipeSequence.repeat(lastSpan))
-                formattedRow.append(formattedCol)
-                rowColumns.add(formattedCol)
+            // see if we have spanned columns
+            if (colIndex > 0) formattedRow.append(pipeSequence.repeat(lastSpan))
+            formattedRow.append(formattedCol)
 
-                val colSpan = tableCell.colSpan
+            val colSpan = tableCell.colSpan
+            spans[colIndex] = colSpan
+
+            val dataPoint: SmartVersionedDataHolder<Int>
+            if (prevRow != null) {
+                // same spans as replaced row, take over its balancer inputs
+                lengths!![colIndex]!!.alias = formattedCol.lengthDataPoint
+                dataPoint = widths[colIndex]!!
+            } else {
                 val widthOffset = if (colSpan > 1 && colIndex == segments.size - 1 && !addLeadTrailPipes) 1 else 0
-                val dataPoint = tableBalancer.width(col, formattedCol.lengthDataPoint, colSpan, widthOffset)
+                var textLength = formattedCol.lengthDataPoint
+                if (lengths != null) {
+                    val alias = SmartVersionedDataAlias(textLength)
+                    lengths[colIndex] = alias
+                    textLength = alias
+                }
+                dataPoint = tableBalancer.width(col, textLength, colSpan, widthOffset)
+                widths[colIndex] = dataPoint
+            }
 
-                if (settings.TABLE_ADJUST_COLUMN_WIDTH) formattedCol.widthDataPoint = dataPoint
-                else if (settings.TABLE_TRIM_CELLS) formattedCol.width = columnChars.length
-                else formattedCol.width = tableCell.untrimmedWidth
+            if (settings.TABLE_ADJUST_COLUMN_WIDTH) formattedCol.widthDataPoint = dataPoint
+            else if (settings.TABLE_TRIM_CELLS) formattedCol.width = columnChars.length
+            else formattedCol.width = tableCell.untrimmedWidth
 
-                if (settings.TABLE_APPLY_COLUMN_ALIGNMENT) formattedCol.alignmentDataPoint = tableBalancer.alignmentDataPoint(col, row < markdownTable.separatorRow)
-                lastSpan = colSpan
+            if (settings.TABLE_APPLY_COLUMN_ALIGNMENT) formattedCol.alignmentDataPoint = tableBalancer.alignmentDataPoint(col, row < separatorRow)
+            lastSpan = colSpan
 
-                colIndex++
-                col += colSpan
-                lastColumnEmpty = columnChars.isBlank()
-            }
-
-            // here if we add pipes then add lastSpan, else lastSpan-1
-            if (addLeadTrailPipes) {
-                formattedRow.append(pipeSequence.repeat(lastSpan), endOfLine)
-                formattedTable.append(formattedRow)
-            } else {
-                formattedRow.append(if (lastSpan > 1 || lastColumnEmpty) pipeSequence.repeat(lastSpan) else EMPTY_SEQUENCE, endOfLine)
-                formattedTable.append(formattedRow)
-            }
+            colIndex++
+            col += colSpan
+            lastColumnEmpty = columnChars.isBlank()
+        }
 
-            row++
+        // here if we add pipes then add lastSpan, else lastSpan-1
+        if (addLeadTrailPipes) {
+            formattedRow.append(pipeSequence.repeat(lastSpan), endOfLine)
+        } else {
+            formattedRow.append(if (lastSpan > 1 || lastColumnEmpty) pipeSequence.repeat(lastSpan) else EMPTY_SEQUENCE, endOfLine)
         }
 
+        return FormattedRow(formattedRow.contents, spans, lengths, widths)
+    }
+
+    internal fun formatCaption(tableCaption: String?): CharSequence {
         // take care of caption
-        var caption = markdownTable.caption
+        var caption = tableCaption
         when (settings.TABLE_CAPTION) {
             MarkdownTableFormatSettings.TABLE_CAPTION_ADD -> if (caption == null) caption = ""
             MarkdownTableFormatSettings.TABLE_CAPTION_REMOVE_EMPTY -> if (caption?.isBlank() == true) caption = null
@@ -198,14 +297,9 @@ class MarkdownTableFormatter(val settings: MarkdownTableFormatSettings) {
                 }
             }
 
-            formattedTable.append("[$caption]\n")
+            return RepeatedCharSequence("[$caption]\n")
         }
-
-        tableBalancer.finalizeTable()
-        myAlignmentDataPoints = tableBalancer.columnAlignmentDataPoints
-        myColumnWidthDataPoints = tableBalancer.columnWidthDataPoints
-
-        return formattedTable.contents //.cachedProxy
+        return EMPTY_SEQUENCE
     }
 
     companion object {
@@ -218,85 +312,66 @@ class MarkdownTableFormatter(val settings: MarkdownTableFormatSettings) {
         @JvmStatic
         val EMPTY_COLUMN = SmartRepeatedCharSequence(' ', 1)
 
+        @JvmStatic
         fun parseTable(table: SmartCharSequence, caretOffset: Int, trimCells: Boolean): MarkdownTable {
-            val space = RepeatedCharSequence(' ')
-            var indentPrefix: CharSequence = EMPTY_SEQUENCE
-            val tableRows = table.splitPartsSegmented('\n', false)
-            var row = 0
-            val tableRowCells = ArrayList<TableRow>()
+            return parseTable(table, MarkdownTableParser(table), caretOffset, trimCells)
+        }
+
+        internal fun parseTable(table: SmartCharSequence, parser: MarkdownTableParser, caretOffset: Int, trimCells: Boolean): MarkdownTable {
+            val chars = parser.chars
+            val indentPrefix: CharSequence = if (parser.indent > 0) RepeatedCharSequence(' ', parser.indent) else EMPTY_SEQUENCE
+            val tableRowCells = ArrayList<TableRow>(parser.rowCount)
             var offsetRow: Int? = null
             var offsetCol: Int? = null
 
-            // see if there is an indentation prefix, these are always spaces in multiples of 4
-            var minIndent: Int? = null
-            for (line in tableRows.segments) {
-                val tableRow = SafeCharSequenceIndex(line)
-                val spaceCount = tableRow.tabExpandedColumnOf((tableRow.firstNonBlank - 1).minLimit(0), 4)
-                if (minIndent == null || minIndent > spaceCount) minIndent = spaceCount
-            }
-
-            val removeSpaces = ((minIndent ?: 0) / 4) * 4
-            val stripPrefix = if (removeSpaces > 0) "\\s{1,$removeSpaces}".toRegex() else "".toRegex()
+            // source offsets are only needed to find the caret cell
+            val location = if (caretOffset >= 0) TrackedLocationCursor() else null
 
-            if (removeSpaces > 0) {
-                indentPrefix = RepeatedCharSequence(' ', removeSpaces)
-            }
+            for (row in 0..parser.rowCount - 1) {
+                val cellCount = parser.cellCount(row)
+                val tableColumns = ArrayList<TableCell>(cellCount)
+                var col = 0
 
-            for (line in tableRows.segments) {
-                var rowText = line // line.trimEnd()
+                var hadSeparatorCols = false
+                var allSeparatorCols = true
 
-                // remove the indent prefix
-                if (!indentPrefix.isEmpty()) {
-                    rowText = rowText.removePrefix(stripPrefix) as SmartCharSequence
-                }
+                while (col < cellCount) {
+                    val cellStart = parser.cellStart(row, col)
+                    val cellEnd = parser.cellEnd(row, col)
 
-                // remove leading pipes, and trailing pipes that are singles
-                if (rowText.length > 0 && rowText[0] == '|') rowText = rowText.subSequence(1, rowText.length)
-                if (rowText.length > 2 && rowText[rowText.length - 2] != '|' && rowText[rowText.length - 1] == '|') rowText = rowText.subSequence(0, rowText.length - 1)
+                    var trimmedEnd = cellEnd
+                    while (trimmedEnd > cellStart && isBlank(chars[trimmedEnd - 1])) trimmedEnd--
+                    var start = cellStart
+                    while (start < trimmedEnd && isBlank(chars[start])) start++
+                    var end = trimmedEnd
 
-                val segments = rowText.splitPartsSegmented('|', false).segments
-                val tableColumns = ArrayList<TableCell>()
-                var col = 0
+                    val untrimmedWidth = if (trimCells) end - start else cellEnd - cellStart
 
-                var hadSeparatorCols = false
-                var allSeparatorCols = true
+                    if (location != null && cellStart < cellEnd) {
+                        table.trackedSourceLocation(cellStart, location)
+                        val colStartOffset = location.offset
+                        table.trackedSourceLocation(cellEnd - 1, location)
+                        val colEndOffset = location.offset
 
-                while (col < segments.size) {
-                    var column = segments[col]
-                    val untrimmedWidth = if (trimCells) column.trim().length else column.length
-                    val origColumn = if (column.isEmpty()) space else column
-
-                    if (!column.isEmpty()) {
-                        val colStart = column.trackedSourceLocation(0)
-                        val colEnd = column.trackedSourceLocation(column.lastIndex)
-
-                        if (!(colStart.offset <= caretOffset && caretOffset <= colEnd.offset + 1)) {
-                            column = column.trim()
-                            //println("caretOffset $caretOffset starCol: ${colStart.offset}, endCol: ${colEnd.offset}")
-                        } else {
-                            //println("> caretOffset $caretOffset starCol: ${colStart.offset}, endCol: ${colEnd.offset} <")
-                            // trim spaces after caret
+                        if (colStartOffset <= caretOffset && caretOffset <= colEndOffset + 1) {
                             offsetCol = col
                             offsetRow = row
 
-                            if (trimCells) {
-                                column = column.trim()
-                            } else {
-                                val caretIndex = caretOffset - colStart.offset
-                                column = column.subSequence(0, caretIndex).append(column.subSequence(caretIndex, column.length).trimEnd())
-                                if (!column.isEmpty()) {
-                                    // can trim off leading since we may add spaces
-                                    val leadingSpaces = column.countLeading(' ', '\t').maxLimit(caretIndex)
-                                    if (leadingSpaces > 0) column = column.subSequence(leadingSpaces, column.length)
-                                }
+                            if (!trimCells) {
+                                // trim spaces after caret, leading spaces only up to caret since we may add spaces
+                                val caretIndex = cellStart + (caretOffset - colStartOffset).maxLimit(cellEnd - cellStart)
+                                end = trimmedEnd.minLimit(caretIndex)
+                                start = cellStart
+                                while (start < end && start < caretIndex && isBlank(chars[start])) start++
                             }
                         }
                     }
 
-                    if (column.isEmpty()) column = column.append(origColumn.subSequence(0, 1))
+                    val column = if (start < end) table.subSequence(start, end)
+                    else if (cellStart < cellEnd) table.subSequence(cellStart, cellStart + 1)
+                    else EMPTY_COLUMN
 
-                    val headerParts = column.extractGroupsSegmented(SEPARATOR_COLUMN_PATTERN)
-                    if (headerParts != null) {
+                    if (parser.isSeparatorCell(row, col)) {
                         hadSeparatorCols = true
                     } else {
                         allSeparatorCols = false
@@ -304,7 +379,7 @@ class MarkdownTableFormatter(val settings: MarkdownTableFormatSettings) {
 
                     // see if we have spanned columns
                     var span = 1
-                    while (col + span < segments.size && segments[col + span].isEmpty()) span++
+                    while (col + span < cellCount && parser.isEmptyCell(row, col + span)) span++
 
                     tableColumns.add(TableCell(column, untrimmedWidth, span))
                     col += span
@@ -312,10 +387,11 @@ class MarkdownTableFormatter(val settings: MarkdownTableFormatSettings) {
 
                 val isSeparator = hadSeparatorCols && allSeparatorCols
                 tableRowCells.add(TableRow(tableColumns, isSeparator))
-                row++
             }
 
             return MarkdownTable(tableRowCells, null, indentPrefix, null, offsetRow, offsetCol)
         }
+
+        private fun isBlank(c: Char): Boolean = c == ' ' || c == '\t'
     }
 }
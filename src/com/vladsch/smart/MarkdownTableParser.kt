@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart
+
+/**
+ * regex free markdown table parser, finds rows and cells of a table as offsets into its characters
+ *
+ * characters are scanned once, recording pipe delimited cells of each line and whether each cell
+ * matches the separator column syntax `\s*:?-+:?\s*`. Indentation common to all lines is only known
+ * at the end of the scan, then cells are adjusted for the removed indent and leading pipe.
+ *
+ * rows and cells are split the same way as `splitParts()`, a trailing '\n' or '|' does not add an empty
+ * row or cell, and cells are not trimmed.
+ *
+ * @param tableIndent indent columns to remove, -1 to use the indent common to all lines. Used to parse some rows of a table.
+ */
+class MarkdownTableParser @JvmOverloads constructor(chars: CharSequence, tableIndent: Int = -1) {
+    companion object {
+        const val SEPARATOR_START = 0        // leading spaces
+        const val SEPARATOR_LEFT_MARKER = 1  // after leading ':', need '-'
+        const val SEPARATOR_DASHES = 2       // in '-', matched
+        const val SEPARATOR_RIGHT_MARKER = 3 // after trailing ':', matched
+        const val SEPARATOR_END = 4          // trailing spaces, matched
+        const val SEPARATOR_FAILED = 5
+
+        // same as regex \s
+        @JvmStatic
+        fun isSpace(c: Char): Boolean = c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\u000B' || c == '\u000C'
+
+        @JvmStatic
+        fun nextSeparatorState(state: Int, c: Char): Int {
+            return when (state) {
+                SEPARATOR_START -> if (c == '-') SEPARATOR_DASHES else if (c == ':') SEPARATOR_LEFT_MARKER else if (isSpace(c)) SEPARATOR_START else SEPARATOR_FAILED
+                SEPARATOR_LEFT_MARKER -> if (c == '-') SEPARATOR_DASHES else SEPARATOR_FAILED
+                SEPARATOR_DASHES -> if (c == '-') SEPARATOR_DASHES else if (c == ':') SEPARATOR_RIGHT_MARKER else if (isSpace(c)) SEPARATOR_END else SEPARATOR_FAILED
+                SEPARATOR_RIGHT_MARKER, SEPARATOR_END -> if (isSpace(c)) SEPARATOR_END else SEPARATOR_FAILED
+                else -> SEPARATOR_FAILED
+            }
+        }
+
+        @JvmStatic
+        fun isSeparatorState(state: Int): Boolean = state == SEPARATOR_DASHES || state == SEPARATOR_RIGHT_MARKER || state == SEPARATOR_END
+
+        const val SEPARATOR_HAVE_LEFT = 1   // separator column has leading ':'
+        const val SEPARATOR_HAVE_RIGHT = 2  // separator column has trailing ':'
+
+        /**
+         * match separator column syntax, same as matchEntire of MarkdownTableFormatter.SEPARATOR_COLUMN_PATTERN
+         *
+         * @return -1 if chars are not a separator column, otherwise SEPARATOR_HAVE_LEFT and SEPARATOR_HAVE_RIGHT flags of alignment markers
+         */
+        @JvmStatic
+        fun separatorMarkers(chars: CharSequence): Int {
+            var state = SEPARATOR_START
+            var markers = 0
+            for (i in 0..chars.length - 1) {
+                val c = chars[i]
+                state = nextSeparatorState(state, c)
+                if (state == SEPARATOR_FAILED) return -1
+                if (c == ':') markers = markers or if (state == SEPARATOR_LEFT_MARKER) SEPARATOR_HAVE_LEFT else SEPARATOR_HAVE_RIGHT
+            }
+            return if (isSeparatorState(state)) markers else -1
+        }
+
+        @JvmStatic
+        fun isSeparatorColumn(chars: CharSequence): Boolean = separatorMarkers(chars) >= 0
+    }
+
+    // getChars() array can be longer than the sequence
+    val chars: CharArray = if (chars is SmartCharSequence) chars.chars else CharArray(chars.length) { chars[it] }
+    val length: Int = chars.length
+
+    // indent columns removed from every row, multiple of 4
+    val indent: Int
+
+    // smallest tab expanded indent of all lines
+    val minIndent: Int
+
+    var rowCount: Int = 0
+        private set
+
+    // start, end, separator state for every cell
+    private var myCells = IntArray(48)
+    private var myCellCount = 0
+
+    // first cell of every row, rowCount + 1 entries
+    private var myRowCell = IntArray(17)
+
+    // line start, line end not including '\n' and indent of every row
+    private var myRowLines = IntArray(48)
+
+    init {
+        val text = this.chars
+        var minIndent = Int.MAX_VALUE
+        var lineStart = 0
+
+        while (lineStart < length) {
+            var i = lineStart
+            var column = 0
+            while (i < length) {
+                val c = text[i]
+                if (c == ' ') column++
+                else if (c == '\t') column += 4 - column % 4
+                else break
+                i++
+            }
+            if (minIndent > column) minIndent = column
+
+            addRow(lineStart, column)
+            var cellStart = lineStart
+            var state = SEPARATOR_START
+
+            while (i < length) {
+                val c = text[i]
+                if (c == '\n') break
+                if (c == '|') {
+                    addCell(cellStart, i, state)
+                    cellStart = i + 1
+                    state = SEPARATOR_START
+                } else {
+                    state = nextSeparatorState(state, c)
+                }
+                i++
+            }
+
+            addCell(cellStart, i, state)
+            myRowLines[(rowCount - 1) * 3 + 1] = i
+            lineStart = i + 1
+        }
+
+        myRowCell[rowCount] = myCellCount
+        this.minIndent = if (rowCount == 0) 0 else minIndent
+        indent = if (tableIndent >= 0) tableIndent else this.minIndent / 4 * 4
+        removeIndentAndPipes()
+    }
+
+    fun lineStart(row: Int): Int = myRowLines[row * 3]
+    fun lineEnd(row: Int): Int = myRowLines[row * 3 + 1]
+    fun rowIndent(row: Int): Int = myRowLines[row * 3 + 2]
+
+    fun cellCount(row: Int): Int = myRowCell[row + 1] - myRowCell[row]
+    fun cellStart(row: Int, cell: Int): Int = myCells[(myRowCell[row] + cell) * 3]
+    fun cellEnd(row: Int, cell: Int): Int = myCells[(myRowCell[row] + cell) * 3 + 1]
+    fun isEmptyCell(row: Int, cell: Int): Boolean = cellStart(row, cell) == cellEnd(row, cell)
+    fun isSeparatorCell(row: Int, cell: Int): Boolean = isSeparatorState(myCells[(myRowCell[row] + cell) * 3 + 2])
+
+    private fun addRow(lineStart: Int, indent: Int) {
+        if (rowCount + 1 == myRowCell.size) myRowCell = myRowCell.copyOf(myRowCell.size * 2)
+        if (rowCount * 3 == myRowLines.size) myRowLines = myRowLines.copyOf(myRowLines.size * 2)
+        myRowLines[rowCount * 3] = lineStart
+        myRowLines[rowCount * 3 + 2] = indent
+        myRowCell[rowCount++] = myCellCount
+    }
+
+    private fun addCell(start: Int, end: Int, state: Int) {
+        val pos = myCellCount * 3
+        if (pos == myCells.size) myCells = myCells.copyOf(pos * 2)
+        myCells[pos] = start
+        myCells[pos + 1] = end
+        myCells[pos + 2] = state
+        myCellCount++
+    }
+
+    /**
+     * remove up to indent leading spaces and a leading pipe from each row, cells starting at end of line are dropped,
+     * cells are compacted in place since the result never has more cells than the scan
+     */
+    private fun removeIndentAndPipes() {
+        val text = chars
+        var out = 0
+        var first = myRowCell[0]
+
+        for (row in 0..rowCount - 1) {
+            val last = myRowCell[row + 1]
+            val lineStart = myCells[first * 3]
+            val lineEnd = myCells[(last - 1) * 3 + 1]
+            var start = lineStart
+            var cell = first
+
+            while (start < lineEnd && start - lineStart < indent && isSpace(text[start])) start++
+
+            // stripped chars are all spaces, so a leading pipe can only be the end of the first cell
+            if (start < lineEnd && text[start] == '|') {
+                cell++
+                start = myCells[cell * 3]
+            }
+
+            myRowCell[row] = out
+            while (cell < last) {
+                val pos = cell * 3
+                if (cell != first) start = myCells[pos]
+                if (start >= lineEnd) break
+
+                val outPos = out * 3
+                myCells[outPos] = start
+                myCells[outPos + 1] = myCells[pos + 1]
+                myCells[outPos + 2] = myCells[pos + 2]
+                out++
+                cell++
+            }
+
+            first = last
+        }
+
+        myRowCell[rowCount] = out
+        myCellCount = out
+    }
+}
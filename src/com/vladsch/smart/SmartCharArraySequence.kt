@@ -63,6 +63,7 @@ open class SmartCharArraySequence(original: SmartCharSequenceBase<*>?, chars: Ch
 
     override fun charAtImpl(index: Int): Char = myChars[myStart + index]
     override fun getCharsImpl(dst: CharArray, dstOffset: Int) = getChars(dst, dstOffset)
+    override fun getCharsImpl(srcBegin: Int, srcEnd: Int, dst: CharArray, dstOffset: Int) = getChars(srcBegin, srcEnd, dst, dstOffset)
     override fun getCharsImpl(): CharArray = chars
 
     override fun toString(): String {
@@ -91,6 +92,11 @@ open class SmartCharArraySequence(original: SmartCharSequenceBase<*>?, chars: Ch
         System.arraycopy(myChars, myStart, dst, dstOffset, length)
     }
 
+    override fun getChars(srcBegin: Int, srcEnd: Int, dst: CharArray, dstOffset: Int) {
+        checkBounds(srcBegin, srcEnd)
+        System.arraycopy(myChars, myStart + srcBegin, dst, dstOffset, srcEnd - srcBegin)
+    }
+
     override fun get(index: Int): Char = myChars[myStart + index]
 
     override fun subSequence(startIndex: Int, endIndex: Int): SmartCharArraySequence {
@@ -108,29 +114,28 @@ open class SmartCharArraySequence(original: SmartCharSequenceBase<*>?, chars: Ch
 
     override val length: Int get() = myEnd - myStart
 
-    override fun trackedSourceLocation(index: Int): TrackedLocation {
+    override fun trackedSourceLocation(index: Int, location: TrackedLocationCursor) {
         checkIndex(index)
         if (myOriginal != null) {
-            val trackedLocation = myOriginal.trackedSourceLocation(index + myStart)
-            if (myStart == 0) return trackedLocation
-            return trackedLocation.withIndex(trackedLocation.index - myStart)
-                .withPrevClosest(trackedLocation.prevIndex - myStart)
-                .withNextClosest(trackedLocation.nextIndex - myStart)
+            myOriginal.trackedSourceLocation(index + myStart, location)
+            location.shiftIndex(-myStart)
+        } else {
+            location.set(index, myStart + index, myChars)
         }
-        return TrackedLocation(index, myStart + index, myChars)
     }
 
-    override fun trackedLocation(source: Any?, offset: Int): TrackedLocation? {
+    override fun trackedLocation(source: Any?, offset: Int, location: TrackedLocationCursor): Boolean {
         if (myOriginal != null) {
-            val trackedLocation = myOriginal.trackedLocation(source, offset)
-            if (trackedLocation != null && trackedLocation.index >= myStart && trackedLocation.index < myEnd) {
-                if (myStart == 0) return trackedLocation
-                return trackedLocation.withIndex(trackedLocation.index - myStart)
-                    .withPrevClosest(trackedLocation.prevIndex - myStart)
-                    .withNextClosest(trackedLocation.nextIndex - myStart)
+            if (myOriginal.trackedLocation(source, offset, location) && location.index >= myStart && location.index < myEnd) {
+                location.shiftIndex(-myStart)
+                return true
             }
         }
-        return if ((source == null || source === myChars) && offset >= myStart && offset < myEnd) TrackedLocation(offset - myStart, offset, myChars) else null
+        if ((source == null || source === myChars) && offset >= myStart && offset < myEnd) {
+            location.set(offset - myStart, offset, myChars)
+            return true
+        }
+        return false
     }
 
     override fun splicedWith(other: CharSequence?): SmartCharSequence? {
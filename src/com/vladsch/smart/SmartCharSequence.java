@@ -22,6 +22,7 @@
 package com.vladsch.smart;
 
 import com.intellij.util.text.CharSequenceBackedByArray;
+import kotlin.text.Regex;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -89,6 +90,20 @@ public interface SmartCharSequence extends CharSequence, TrackingCharSequenceMar
 
     void getChars(@NotNull char[] dst, int dstOffset);
 
+    /**
+     * copy characters in range [srcBegin, srcEnd) to dst, without creating a sub-sequence
+     *
+     * @param srcBegin  start index
+     * @param srcEnd    end index, exclusive
+     * @param dst       destination array
+     * @param dstOffset offset in dst of first character
+     */
+    default void getChars(int srcBegin, int srcEnd, @NotNull char[] dst, int dstOffset) {
+        for (int i = srcBegin; i < srcEnd; i++) {
+            dst[dstOffset + i - srcBegin] = charAt(i);
+        }
+    }
+
     // get a snapshot of location to source mapping appended to locations and source locations
     void getSourceLocations(@NotNull ArrayList<Object> sources, @NotNull ArrayList<Range> locations, @NotNull ArrayList<Range> sourceLocations);
 
@@ -131,6 +146,15 @@ public interface SmartCharSequence extends CharSequence, TrackingCharSequenceMar
     List<SmartCharSequence> extractGroups(@NotNull String regex);
     @Nullable
     SmartSegmentedCharSequence extractGroupsSegmented(@NotNull String regex);
+    // default for implementations which predate the Regex overloads, regex options other than the pattern are ignored
+    @Nullable
+    default List<SmartCharSequence> extractGroups(@NotNull Regex regex) {
+        return extractGroups(regex.getPattern());
+    }
+    @Nullable
+    default SmartSegmentedCharSequence extractGroupsSegmented(@NotNull Regex regex) {
+        return extractGroupsSegmented(regex.getPattern());
+    }
     @NotNull
     SmartCharSequence wrapParts(char delimiter, boolean includeDelimiter, @NotNull CharSequence prefix, @NotNull CharSequence suffix);
     @NotNull
@@ -163,13 +187,16 @@ public interface SmartCharSequence extends CharSequence, TrackingCharSequenceMar
         if (startIndex < 0) startIndex = 0;
         if (endIndex > length()) endIndex = length();
         if (startIndex >= endIndex) return 0;
-        int i = startIndex;
         String charS = chars.toString();
-        while (i < endIndex) {
-            if (charS.indexOf(charAt(i)) == -1) break;
-            i++;
+        CharChunkCursor cursor = new CharChunkCursor(this, startIndex, endIndex, true);
+        while (cursor.next()) {
+            char[] chunk = cursor.getChunk();
+            int iMax = cursor.getChunkLength();
+            for (int i = 0; i < iMax; i++) {
+                if (charS.indexOf(chunk[i]) == -1) return cursor.getChunkStart() + i - startIndex;
+            }
         }
-        return i - startIndex;
+        return endIndex - startIndex;
     }
 
     default int countTrailing(CharSequence chars) {
@@ -184,12 +211,15 @@ public interface SmartCharSequence extends CharSequence, TrackingCharSequenceMar
         if (startIndex < 0) startIndex = 0;
         if (endIndex > length()) endIndex = length();
         if (startIndex >= endIndex) return 0;
-        int i = endIndex;
         String charS = chars.toString();
-        while (i-- > startIndex) {
-            if (charS.indexOf(charAt(i)) == -1) break;
+        CharChunkCursor cursor = new CharChunkCursor(this, startIndex, endIndex, false);
+        while (cursor.next()) {
+            char[] chunk = cursor.getChunk();
+            for (int i = cursor.getChunkLength(); i-- > 0; ) {
+                if (charS.indexOf(chunk[i]) == -1) return endIndex - cursor.getChunkStart() - i - 1;
+            }
         }
-        return endIndex - i - 1;
+        return endIndex - startIndex;
     }
 
     default SmartCharSequence replace(CharSequence find, CharSequence replace) {
@@ -202,22 +232,29 @@ public interface SmartCharSequence extends CharSequence, TrackingCharSequenceMar
         ArrayList<SmartCharSequence> result = null;
         int lastPos = 0;
 
-        for (int i = 0; i < iMax; i++) {
-            char c = charAt(i);
-            if (find.charAt(findPos) == c) {
-                if (findPos + 1 == findMax) {
-                    // match, replace
-                    if (result == null) result = new ArrayList<>();
+        CharChunkCursor cursor = new CharChunkCursor(this, true);
+        while (cursor.next()) {
+            char[] chunk = cursor.getChunk();
+            int chunkStart = cursor.getChunkStart();
+            int chunkLength = cursor.getChunkLength();
+            for (int j = 0; j < chunkLength; j++) {
+                char c = chunk[j];
+                if (find.charAt(findPos) == c) {
+                    if (findPos + 1 == findMax) {
+                        // match, replace
+                        int i = chunkStart + j;
+                        if (result == null) result = new ArrayList<>();
 
-                    if (lastPos < i - findPos) result.add(subSequence(lastPos, i - findPos));
-                    result.add(SmartCharSequenceWrapper.smart(replace));
-                    lastPos = i + 1;
-                    findPos = 0;
+                        if (lastPos < i - findPos) result.add(subSequence(lastPos, i - findPos));
+                        result.add(SmartCharSequenceWrapper.smart(replace));
+                        lastPos = i + 1;
+                        findPos = 0;
+                    } else {
+                        findPos++;
+                    }
                 } else {
-                    findPos++;
+                    findPos = 0;
                 }
-            } else {
-                findPos = 0;
             }
         }
 
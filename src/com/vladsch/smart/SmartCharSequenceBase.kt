@@ -25,6 +25,7 @@ import java.util.*
 
 abstract class SmartCharSequenceBase<T : SmartCharSequence> : SmartCharSequence {
     protected var myCachedProxy: SmartCharSequence? = null
+    private var myOffsetMap: SmartOffsetMap? = null
 
     /*
      * cached proxy should return original sequence for editing purposes
@@ -48,6 +49,12 @@ abstract class SmartCharSequenceBase<T : SmartCharSequence> : SmartCharSequence
     //        }
     //    }
 
+    internal open fun getCharsImpl(srcBegin: Int, srcEnd: Int, dst: CharArray, dstOffset: Int) {
+        for (i in srcBegin..srcEnd - 1) {
+            dst[dstOffset + i - srcBegin] = charAtImpl(i)
+        }
+    }
+
     internal open fun getCharsImpl(): CharArray {
         val iMax = length
         val chars = CharArray(iMax)
@@ -66,7 +73,9 @@ abstract class SmartCharSequenceBase<T : SmartCharSequence> : SmartCharSequence
         }
 
     override fun get(index: Int): Char {
-        return freshProxyOrNull?.get(index) ?: charAtImpl(index)
+        // no elvis, Char? would box
+        val proxy = freshProxyOrNull
+        return if (proxy != null) proxy[index] else charAtImpl(index)
     }
 
     override fun subSequence(startIndex: Int, endIndex: Int): T {
@@ -91,10 +100,45 @@ abstract class SmartCharSequenceBase<T : SmartCharSequence> : SmartCharSequence
         freshProxyOrNull?.getChars(dst, dstOffset) ?: getCharsImpl(dst, dstOffset)
     }
 
+    override fun getChars(srcBegin: Int, srcEnd: Int, dst: CharArray, dstOffset: Int) {
+        checkBounds(srcBegin, srcEnd)
+        freshProxyOrNull?.getChars(srcBegin, srcEnd, dst, dstOffset) ?: getCharsImpl(srcBegin, srcEnd, dst, dstOffset)
+    }
+
     override fun getSourceLocations(sources: ArrayList<Any>, locations: ArrayList<Range>, sourceLocations: ArrayList<Range>) {
         throw UnsupportedOperationException()
     }
 
+    /*
+     * tracked locations are mapped in place through a cursor, these are convenience wrappers
+     */
+    abstract override fun trackedSourceLocation(index: Int, location: TrackedLocationCursor)
+
+    abstract override fun trackedLocation(source: Any?, offset: Int, location: TrackedLocationCursor): Boolean
+
+    override fun trackedSourceLocation(index: Int): TrackedLocation {
+        val location = TrackedLocationCursor()
+        trackedSourceLocation(index, location)
+        return location.toTrackedLocation()
+    }
+
+    override fun trackedLocation(source: Any?, offset: Int): TrackedLocation? {
+        val location = TrackedLocationCursor()
+        return if (trackedLocation(source, offset, location)) location.toTrackedLocation() else null
+    }
+
+    /*
+     * index to source offset map, computed once per version of the sequence
+     */
+    val offsetMap: SmartOffsetMap
+        get() {
+            val offsetMap = myOffsetMap
+            if (offsetMap != null && !version.isStale && offsetMap.versionSerial == version.versionSerial) return offsetMap
+            val newOffsetMap = SmartOffsetMap.create(this)
+            myOffsetMap = newOffsetMap
+            return newOffsetMap
+        }
+
     override fun equivalent(other: CharSequence): Boolean {
         if (this === other) return true
 
@@ -103,9 +147,15 @@ abstract class SmartCharSequenceBase<T : SmartCharSequence> : SmartCharSequence
         val ourProxy: CharSequence = freshProxyOrNull ?: this
         val otherProxy: CharSequence = if (other is SmartCharSequenceBase<*>) other.freshProxyOrNull ?: other else other
 
-        val iMax = length
-        for (i in 0..iMax - 1) {
-            if (ourProxy[i] != otherProxy[i]) return false
+        // same length so chunks line up
+        val ourCursor = CharChunkCursor(ourProxy, true)
+        val otherCursor = CharChunkCursor(otherProxy, true)
+        while (ourCursor.next() && otherCursor.next()) {
+            val ourChunk = ourCursor.chunk
+            val otherChunk = otherCursor.chunk
+            for (i in 0..ourCursor.chunkLength - 1) {
+                if (ourChunk[i] != otherChunk[i]) return false
+            }
         }
 
         return true
@@ -124,13 +174,21 @@ abstract class SmartCharSequenceBase<T : SmartCharSequence> : SmartCharSequence
     }
 
     override fun extractGroupsSegmented(regex: String): SmartSegmentedCharSequence? {
+        return extractGroupsSegmented(SmartRegexCache.regex(regex))
+    }
+
+    override fun extractGroups(regex: String): List<SmartCharSequence>? {
+        return extractGroups(SmartRegexCache.regex(regex))
+    }
+
+    override fun extractGroupsSegmented(regex: Regex): SmartSegmentedCharSequence? {
         val segments = extractGroups(regex) ?: return null
         return SmartSegmentedCharSequence(segments)
     }
 
-    override fun extractGroups(regex: String): List<SmartCharSequence>? {
-//        var matchResult = regex.toRegex().matchEntire(cachedProxy)
-        var matchResult = regex.toRegex().matchEntire(this)
+    override fun extractGroups(regex: Regex): List<SmartCharSequence>? {
+//        var matchResult = regex.matchEntire(cachedProxy)
+        var matchResult = regex.matchEntire(this)
         if (matchResult != null) {
             val segments = ArrayList<SmartCharSequence>(matchResult.groups.size)
             var group = 0
@@ -168,19 +226,22 @@ abstract class SmartCharSequenceBase<T : SmartCharSequence> : SmartCharSequence
         val length = length
         var col = 0
         val tabExpansion = RepeatedCharSequence(' ', tabSize)
-//        val proxy = cachedProxy.chars
-        val proxy = this
-
-        for (i in 0..length - 1) {
-            val c = proxy[i]
-            if (c == '\t') {
-                parts.add(subSequence(lastPos, i))
-                parts.add(SmartReplacedCharSequence(subSequence(i, i + 1), tabExpansion.subSequence(0, tabSize - col % tabSize)))
-                lastPos = i + 1
-            } else if (c == '\n') {
-                col = 0
-            } else {
-                col++
+        val cursor = CharChunkCursor(this, true)
+
+        while (cursor.next()) {
+            val chunk = cursor.chunk
+            for (j in 0..cursor.chunkLength - 1) {
+                val c = chunk[j]
+                if (c == '\t') {
+                    val i = cursor.chunkStart + j
+                    parts.add(subSequence(lastPos, i))
+                    parts.add(SmartReplacedCharSequence(subSequence(i, i + 1), tabExpansion.subSequence(0, tabSize - col % tabSize)))
+                    lastPos = i + 1
+                } else if (c == '\n') {
+                    col = 0
+                } else {
+                    col++
+                }
             }
         }
 
@@ -44,14 +44,15 @@ class SmartCharSequenceMarker(val id: String, val selectedSequence: SmartCharSeq
     override fun charAtImpl(index: Int): Char = myReplacedChars[index]
 
     override fun getCharsImpl(dst: CharArray, dstOffset: Int) = myReplacedChars.getChars(dst, dstOffset)
+    override fun getCharsImpl(srcBegin: Int, srcEnd: Int, dst: CharArray, dstOffset: Int) = myReplacedChars.getChars(srcBegin, srcEnd, dst, dstOffset)
 
     override val length: Int get() = myReplacedChars.length
 
     override fun getCachedProxy(): SmartCharSequence = myReplacedChars.cachedProxy
 
-    override fun trackedSourceLocation(index: Int): TrackedLocation = myReplacedChars.trackedSourceLocation(index)
+    override fun trackedSourceLocation(index: Int, location: TrackedLocationCursor) = myReplacedChars.trackedSourceLocation(index, location)
 
-    override fun trackedLocation(source: Any?, offset: Int): TrackedLocation? = myReplacedChars.trackedLocation(source, offset)
+    override fun trackedLocation(source: Any?, offset: Int, location: TrackedLocationCursor): Boolean = myReplacedChars.trackedLocation(source, offset, location)
 
     override fun flattened(sequences: ArrayList<SmartCharSequence>) {
         sequences.add(this)
@@ -52,13 +52,11 @@ open class SmartCharSequenceWrapper(chars: CharSequence, startIndex: Int = 0, en
 
     override fun charAtImpl(index: Int): Char = myChars[myStart + index]
     override fun getCharsImpl(dst: CharArray, dstOffset: Int) {
-        if (myChars is SmartCharSequence) myChars.subSequence(myStart, myEnd).getChars(dst, dstOffset)
-        else {
-            val iMax = length
-            for (i in 0 .. iMax - 1) {
-                dst[dstOffset + i] = charAtImpl(i)
-            }
-        }
+        myChars.getChars(myStart, myEnd, dst, dstOffset)
+    }
+
+    override fun getCharsImpl(srcBegin: Int, srcEnd: Int, dst: CharArray, dstOffset: Int) {
+        myChars.getChars(myStart + srcBegin, myStart + srcEnd, dst, dstOffset)
     }
 
     // disable proxy copying, use mapping, it's fast enough
@@ -78,31 +76,28 @@ open class SmartCharSequenceWrapper(chars: CharSequence, startIndex: Int = 0, en
 
     override val length: Int get() = myEnd - myStart
 
-    override fun trackedSourceLocation(index: Int): TrackedLocation {
+    override fun trackedSourceLocation(index: Int, location: TrackedLocationCursor) {
         if (myChars is SmartSourceLocationTracker) {
-            val trackedLocation = myChars.trackedSourceLocation(index + myStart)
-
-            if (myStart == 0) return trackedLocation
-
-            return trackedLocation.withIndex(trackedLocation.index - myStart)
-                .withPrevClosest(trackedLocation.prevIndex - myStart)
-                .withNextClosest(trackedLocation.nextIndex - myStart)
+            myChars.trackedSourceLocation(index + myStart, location)
+            location.shiftIndex(-myStart)
+        } else {
+            checkIndex(index)
+            location.set(index, myStart + index, myChars)
         }
-        checkIndex(index)
-        return TrackedLocation(index, myStart + index, myChars)
     }
 
-    override fun trackedLocation(source: Any?, offset: Int): TrackedLocation? {
+    override fun trackedLocation(source: Any?, offset: Int, location: TrackedLocationCursor): Boolean {
         if (myChars is SmartSourceLocationTracker) {
-            val trackedLocation = myChars.trackedLocation(source, offset)
-
-            if (trackedLocation != null && trackedLocation.index >= myStart && trackedLocation.index < myEnd) {
-                return trackedLocation.withIndex(trackedLocation.index - myStart)
-                    .withPrevClosest(trackedLocation.prevIndex - myStart)
-                    .withNextClosest(trackedLocation.nextIndex - myStart)
+            if (myChars.trackedLocation(source, offset, location) && location.index >= myStart && location.index < myEnd) {
+                location.shiftIndex(-myStart)
+                return true
             }
         }
-        return if ((source == null || source === myChars) && offset >= myStart && offset < myEnd) TrackedLocation(offset - myStart, offset, myChars) else null
+        if ((source == null || source === myChars) && offset >= myStart && offset < myEnd) {
+            location.set(offset - myStart, offset, myChars)
+            return true
+        }
+        return false
     }
 
     override fun splicedWith(other: CharSequence?): SmartCharSequence? {
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.vladsch.smart
+
+import java.lang.ref.WeakReference
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * listener of profiled computations, can be used to emit JFR events or log slow computations
+ */
+interface SmartDataProfileListener {
+    fun computed(name: String, nanos: Long, trigger: SmartVersion)
+}
+
+/**
+ * counters of one data name
+ *
+ * data created by data keys is named by key id so all data points of a key share counters
+ */
+class SmartDataStats(val name: String) {
+    private val myComputeCount = LongAdder()
+    private val myComputeNanos = LongAdder()
+    private val myStaleChecks = LongAdder()
+    private val myStaleCheckDepth = LongAdder()
+    private val myMaxStaleCheckDepth = AtomicInteger()
+    private val myCreatedCount = LongAdder()
+    private val myFinalizeNanos = LongAdder()
+    @Volatile private var myLastTrigger: WeakReference<SmartVersion>? = null
+    @Volatile private var myLastTriggerSerial = NULL_SERIAL
+
+    internal fun computed(nanos: Long, trigger: SmartVersion) {
+        myComputeCount.increment()
+        myComputeNanos.add(nanos)
+        if (trigger !== NULL_VERSION) {
+            myLastTrigger = WeakReference(trigger)
+            myLastTriggerSerial = trigger.versionSerial
+        }
+    }
+
+    internal fun staleChecked(depth: Int) {
+        myStaleChecks.increment()
+        myStaleCheckDepth.add(depth.toLong())
+        myMaxStaleCheckDepth.accumulateAndGet(depth) { a, b -> a.minLimit(b) }
+    }
+
+    internal fun finalized(created: Int, nanos: Long) {
+        myCreatedCount.add(created.toLong())
+        myFinalizeNanos.add(nanos)
+    }
+
+    fun snapshot(): SmartDataProfile {
+        return SmartDataProfile(name, myComputeCount.sum(), myComputeNanos.sum(), myStaleChecks.sum(), myStaleCheckDepth.sum(), myMaxStaleCheckDepth.get(),
+            myCreatedCount.sum(), myFinalizeNanos.sum(), myLastTrigger?.get(), myLastTriggerSerial)
+    }
+}
+
+/**
+ * copy of counters of one data name
+ *
+ * @param computeCount       computable invocations
+ * @param computeNanos       cumulative time in computables
+ * @param staleChecks        staleness checks which were not answered by the cached stale flag
+ * @param staleCheckDepth    cumulative nesting depth of dependency checks made by staleness checks
+ * @param maxStaleCheckDepth deepest nesting of one staleness check
+ * @param createdCount       data points created by finalization of data scopes
+ * @param finalizeNanos      cumulative time creating data points
+ * @param lastTrigger        latest dependency version of the last computation, null if none or no longer referenced
+ * @param lastTriggerSerial  version serial of lastTrigger when the computation was made
+ */
+data class SmartDataProfile(
+    val name: String,
+    val computeCount: Long,
+    val computeNanos: Long,
+    val staleChecks: Long,
+    val staleCheckDepth: Long,
+    val maxStaleCheckDepth: Int,
+    val createdCount: Long,
+    val finalizeNanos: Long,
+    val lastTrigger: SmartVersion?,
+    val lastTriggerSerial: Int
+) {
+    override fun toString(): String {
+        return "$name: computed $computeCount in ${computeNanos / 1000}us, stale checks $staleChecks depth $staleCheckDepth max $maxStaleCheckDepth, created $createdCount in ${finalizeNanos / 1000}us, last trigger serial $lastTriggerSerial"
+    }
+}
+
+/**
+ * computation and staleness check counters of dependent data and data scope finalization by data name
+ *
+ * disabled by default, when disabled instrumented code only reads isEnabled. Computation time includes dependencies
+ * computed by the computable, dependencies made current by the version snapshot are counted under their own name.
+ */
+object SmartDataProfiler {
+    private class CheckDepth {
+        var level = 0
+        var deepest = 0
+    }
+
+    @Volatile private var myEnabled = false
+    private val myStats = ConcurrentHashMap<String, SmartDataStats>()
+    private val myListeners = CopyOnWriteArrayList<SmartDataProfileListener>()
+    private val myCheckDepth = object : ThreadLocal<CheckDepth>() {
+        override fun initialValue(): CheckDepth = CheckDepth()
+    }
+
+    @JvmStatic
+    var isEnabled: Boolean
+        get() = myEnabled
+        set(value) {
+            myEnabled = value
+        }
+
+    @JvmStatic
+    fun addListener(listener: SmartDataProfileListener) {
+        myListeners.add(listener)
+    }
+
+    @JvmStatic
+    fun removeListener(listener: SmartDataProfileListener) {
+        myListeners.remove(listener)
+    }
+
+    @JvmStatic
+    fun stats(name: String): SmartDataStats = myStats.computeIfAbsent(name) { SmartDataStats(it) }
+
+    @JvmStatic
+    fun profile(name: String): SmartDataProfile? = myStats[name]?.snapshot()
+
+    @JvmStatic
+    fun profile(dataKey: SmartDataKey<*>): SmartDataProfile? = profile(dataKey.myId)
+
+    /**
+     * @return profiles of all names, most compute time first
+     */
+    @JvmStatic
+    fun snapshot(): List<SmartDataProfile> {
+        val profiles = ArrayList<SmartDataProfile>(myStats.size)
+        for (stats in myStats.values) {
+            profiles.add(stats.snapshot())
+        }
+        profiles.sortWith(Comparator { a, b -> b.computeNanos.compareTo(a.computeNanos) })
+        return profiles
+    }
+
+    @JvmStatic
+    fun reset() {
+        myStats.clear()
+    }
+
+    /**
+     * time computable of named data, trigger is the snapshot's latest version
+     */
+    inline fun <V> compute(name: String, snapshot: VersionSnapshot, computable: () -> V): V {
+        if (!isEnabled) return computable()
+
+        val start = System.nanoTime()
+        val value = computable()
+        computed(name, System.nanoTime() - start, snapshot.latestVersion)
+        return value
+    }
+
+    fun computed(name: String, nanos: Long, trigger: SmartVersion) {
+        stats(name).computed(nanos, trigger)
+        for (listener in myListeners) {
+            listener.computed(name, nanos, trigger)
+        }
+    }
+
+    /**
+     * @return state to pass to leaveStaleCheck()
+     */
+    fun enterStaleCheck(): Int {
+        val depth = myCheckDepth.get()
+        val deepest = depth.deepest
+        depth.level++
+        depth.deepest = depth.level
+        return deepest
+    }
+
+    fun leaveStaleCheck(name: String?, entered: Int) {
+        val depth = myCheckDepth.get()
+        if (name != null) stats(name).staleChecked(depth.deepest - depth.level + 1)
+        depth.level--
+        depth.deepest = depth.deepest.minLimit(entered)
+    }
+
+    fun finalized(name: String, created: Int, nanos: Long) {
+        stats(name).finalized(created, nanos)
+    }
+
+    fun print() {
+        for (profile in snapshot()) {
+            println(profile)
+        }
+    }
+}
@@ -24,6 +24,11 @@
 package com.vladsch.smart
 
 import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Supplier
 
 enum class SmartScopes(val flags: Int) {
     SELF(1),
@@ -63,6 +68,18 @@ abstract class SmartDataKey<V : Any>(id: String, nullValue: V, scopes: Set<Smart
     val myNullData: SmartImmutableData<V>
     val myScopes: Int
 
+    /**
+     * dense id assigned on construction, index of the key's values in data scopes
+     */
+    val keyId: Int = nextKeyId.getAndIncrement()
+
+    companion object {
+        // shared by all managers, data scopes index values by key id
+        private val nextKeyId = AtomicInteger()
+
+        val keyCount: Int get() = nextKeyId.get()
+    }
+
     fun onInit() {
         SmartDataScopeManager.registerKey(this)
     }
@@ -209,7 +226,7 @@ open class SmartParentComputedDataKey<V : Any>(id: String, nullValue: V, val com
             for (index in indices) {
                 val dependent = value(source, index) ?: throw IllegalStateException("Dependent data for dataKey $this for $source[$index] is missing")
 //                val resultItem = result.getValue(this, index)
-                result.setValue(this, index, SmartVectorData(listOf(dependent), myComputable))
+                result.setValue(this, index, SmartVectorData(myId, listOf(dependent), myComputable))
             }
 
             break
@@ -252,7 +269,7 @@ open class SmartComputedDataKey<V : Any>(id: String, nullValue: V, override val
                 }
             }
 
-            result.setValue(this, index, SmartIterableData(dependents, myComputable))
+            result.setValue(this, index, SmartIterableData(myId, dependents, myComputable))
         }
     }
 }
@@ -293,7 +310,7 @@ open class SmartDependentDataKey<V : Any>(id: String, nullValue: V, override val
                 }
             }
 
-            result.setValue(this, index, SmartIterableData(dependents, myComputable))
+            result.setValue(this, index, SmartIterableData(myId, dependents, myComputable))
         }
     }
 }
@@ -334,7 +351,7 @@ open class SmartVectorDataKey<V : Any>(id: String, nullValue: V, override val de
                 }
             }
 
-            result.setValue(this, index, SmartVectorData(dependents, myComputable))
+            result.setValue(this, index, SmartVectorData(myId, dependents, myComputable))
             if (SmartDataScopeManager.INSTANCE.trace) println("created connections for $myId[$index] on scope: ${result.name}")
         }
     }
@@ -367,7 +384,7 @@ class SmartLatestDataKey<V : Any>(id: String, nullValue: V, val dataKey: SmartDa
                 dependents.add(dependent)
             }
 
-            result.setValue(this, index, SmartLatestDependentData(dependents))
+            result.setValue(this, index, SmartLatestDependentData(myId, dependents))
         }
     }
 }
@@ -380,6 +397,8 @@ class SmartDataScopeManager {
         val keyComputeLevel: Map<SmartDataKey<*>, Int> get() = INSTANCE.keyComputeLevel
 
         fun computeKeyOrder(keys: Set<SmartDataKey<*>>): List<List<SmartDataKey<*>>> = INSTANCE.computeKeyOrder(keys)
+        fun allDependentKeys(key: SmartDataKey<*>): Set<SmartDataKey<*>> = INSTANCE.allDependentKeys(key)
+        fun allDependencyKeys(key: SmartDataKey<*>): Set<SmartDataKey<*>> = INSTANCE.allDependencyKeys(key)
         fun registerKey(dataKey: SmartDataKey<*>) {
             INSTANCE.registerKey(dataKey)
         }
@@ -399,12 +418,21 @@ class SmartDataScopeManager {
     private var myComputeLevel = HashMap<SmartDataKey<*>, Int>()
     private var myTrace = false
 
+    val keyCount: Int get() = SmartDataKey.keyCount
+
     var trace: Boolean
         get() = myTrace
         set(value) {
             myTrace = value
         }
 
+    // collect computation counters by data name, data created by keys is named by key id, see SmartDataProfiler
+    var profile: Boolean
+        get() = SmartDataProfiler.isEnabled
+        set(value) {
+            SmartDataProfiler.isEnabled = value
+        }
+
     val dependentKeys: Map<SmartDataKey<*>, Set<SmartDataKey<*>>> get() {
         return myDependentKeys
     }
@@ -424,8 +452,13 @@ class SmartDataScopeManager {
 
         needKeys.addAll(keys)
 
-        for (key in keys) {
-            needKeys.addAll(key.dependencies)
+        // dependencies of dependencies too, so results do not depend on which of the intermediate keys are consumed
+        val pending = ArrayList<SmartDataKey<*>>(keys)
+        while (!pending.isEmpty()) {
+            val key = pending.removeAt(pending.size - 1)
+            for (dependency in key.dependencies) {
+                if (needKeys.add(dependency)) pending.add(dependency)
+            }
         }
 
         val orderedKeyList = HashMap<Int, ArrayList<SmartDataKey<*>>>()
@@ -445,6 +478,39 @@ class SmartDataScopeManager {
         return resultList
     }
 
+    /**
+     * @return keys which depend on key directly or through other keys
+     */
+    fun allDependentKeys(key: SmartDataKey<*>): Set<SmartDataKey<*>> {
+        val dependents = HashSet<SmartDataKey<*>>()
+        val pending = ArrayList<SmartDataKey<*>>()
+        pending.add(key)
+
+        while (!pending.isEmpty()) {
+            val dependency = pending.removeAt(pending.size - 1)
+            for (dependent in myDependentKeys[dependency] ?: continue) {
+                if (dependents.add(dependent)) pending.add(dependent)
+            }
+        }
+        return dependents
+    }
+
+    /**
+     * @return keys which key depends on directly or through other keys
+     */
+    fun allDependencyKeys(key: SmartDataKey<*>): Set<SmartDataKey<*>> {
+        val dependencies = HashSet<SmartDataKey<*>>()
+        val pending = ArrayList<SmartDataKey<*>>()
+        pending.add(key)
+
+        while (!pending.isEmpty()) {
+            for (dependency in pending.removeAt(pending.size - 1).dependencies) {
+                if (dependencies.add(dependency)) pending.add(dependency)
+            }
+        }
+        return dependencies
+    }
+
     fun registerKey(dataKey: SmartDataKey<*>) {
         myKeys.add(dataKey)
 
@@ -498,6 +564,83 @@ class SmartDataScopeManager {
     }
 }
 
+/**
+ * values of one key in a data scope by index
+ *
+ * indices from 0 are kept in an array which grows to include an index up to MAX_DENSE_GAP past its end,
+ * other indices are kept in a map
+ */
+class SmartIndexedValues {
+    companion object {
+        const val MAX_DENSE_GAP = 64
+    }
+
+    private var myDense = arrayOfNulls<SmartVersionedDataHolder<*>>(8)
+    private var mySparse: HashMap<Int, SmartVersionedDataHolder<*>>? = null
+
+    var size: Int = 0
+        private set
+
+    operator fun get(index: Int): SmartVersionedDataHolder<*>? {
+        if (index >= 0 && index < myDense.size) return myDense[index]
+        return mySparse?.get(index)
+    }
+
+    operator fun set(index: Int, value: SmartVersionedDataHolder<*>) {
+        if (index >= 0 && index < myDense.size + MAX_DENSE_GAP) {
+            if (index >= myDense.size) grow(index + 1)
+            if (myDense[index] == null) size++
+            myDense[index] = value
+        } else {
+            val sparse = mySparse ?: HashMap<Int, SmartVersionedDataHolder<*>>().apply { mySparse = this }
+            if (sparse.put(index, value) == null) size++
+        }
+    }
+
+    fun remove(index: Int): SmartVersionedDataHolder<*>? {
+        val value: SmartVersionedDataHolder<*>?
+        if (index >= 0 && index < myDense.size) {
+            value = myDense[index]
+            myDense[index] = null
+        } else {
+            value = mySparse?.remove(index)
+        }
+        if (value != null) size--
+        return value
+    }
+
+    private fun grow(minSize: Int) {
+        val dense = myDense.copyOf(minSize.minLimit(myDense.size * 2))
+        myDense = dense
+
+        // move sparse indices now within the array
+        val sparse = mySparse ?: return
+        val iterator = sparse.entries.iterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            if (entry.key >= 0 && entry.key < dense.size) {
+                dense[entry.key] = entry.value
+                iterator.remove()
+            }
+        }
+        if (sparse.isEmpty()) mySparse = null
+    }
+
+    fun forEach(consumer: (Int, SmartVersionedDataHolder<*>) -> Unit) {
+        for (i in 0..myDense.size - 1) {
+            val value = myDense[i] ?: continue
+            consumer(i, value)
+        }
+        mySparse?.forEach { consumer(it.key, it.value) }
+    }
+
+    fun toMap(): HashMap<Int, SmartVersionedDataHolder<*>> {
+        val map = HashMap<Int, SmartVersionedDataHolder<*>>()
+        forEach { index, value -> map.put(index, value) }
+        return map
+    }
+}
+
 // if the data point has a consumer then the corresponding entry will contain a SmartVersionedDataAlias, else it will contain null
 // so when a version data point provider is computed and the data point has non-null non-alias then it is a conflict and exception time
 //
@@ -508,7 +651,7 @@ class SmartDataScopeManager {
 // data points for which no consumers exist will not be created, and will not cause intermediate data points be created nor computed
 //
 open class SmartDataScope(val name: String, val parent: SmartDataScope?) {
-    protected val myValues = HashMap<SmartDataKey<*>, HashMap<Int, SmartVersionedDataHolder<*>>>()
+    protected var myValues = arrayOfNulls<SmartIndexedValues>(0)   // values by key id
     protected val myChildren = HashSet<SmartDataScope>()    // children
     protected val myDescendants = HashSet<SmartDataScope>() // descendants
     protected val myAncestors = HashSet<SmartDataScope>()   // ancestors
@@ -519,6 +662,24 @@ open class SmartDataScope(val name: String, val parent: SmartDataScope?) {
     val ancestors: Set<SmartDataScope> get() = myAncestors
     val consumers: Map<SmartDataKey<*>, List<Int>> get() = myConsumers
     val level: Int
+    val topScope: SmartDataScope = parent?.topScope ?: this
+
+    // changed in top scope when scopes are added to the tree, key scopes are cached for a structure serial
+    private var myStructureSerial = 0
+    private val myKeyScopes = HashMap<Int, Set<SmartDataScope>>()
+    private var myKeyScopesSerial = -1
+    private var myFinalizationPlan: SmartFinalizationPlan? = null
+
+    // changes since the last finalization of the tree, kept in top scope, and consumers of past finalizations
+    private var myFinalized = false
+    private val myAddedScopes = LinkedHashSet<SmartDataScope>()
+    private val myConsumerScopes = LinkedHashSet<SmartDataScope>()
+    private val myFinalizedIndices = HashMap<SmartDataKey<*>, SmartIndexSet>()
+    private val myFinalizedConsumers = HashMap<SmartDataKey<*>, SmartIndexSet>()
+
+    val finalizationPlan: SmartFinalizationPlan? get() = myFinalizationPlan
+    val isFinalized: Boolean get() = topScope.myFinalized
+    val addedScopes: Set<SmartDataScope> get() = topScope.myAddedScopes
 
     init {
         parent?.addChild(this)
@@ -527,6 +688,8 @@ open class SmartDataScope(val name: String, val parent: SmartDataScope?) {
 
     fun addChild(scope: SmartDataScope) {
         myChildren.add(scope)
+        topScope.myStructureSerial++
+        topScope.myAddedScopes.add(scope)
         parent?.addDescendant(scope)
     }
 
@@ -544,40 +707,74 @@ open class SmartDataScope(val name: String, val parent: SmartDataScope?) {
         return SmartDataScope(name, this)
     }
 
+    /**
+     * @return copy of the values of key in this scope by index or null if none
+     */
     fun getValues(key: SmartDataKey<*>): Map<Int, SmartVersionedDataHolder<*>>? {
-        return myValues[key]
+        return keyValues(key.keyId)?.toMap()
+    }
+
+    private fun keyValues(keyId: Int): SmartIndexedValues? {
+        val values = myValues
+        return if (keyId < values.size) values[keyId] else null
     }
 
     fun getValue(key: SmartDataKey<*>, index: Int): SmartVersionedDataHolder<*>? {
-        val value = getRawValue(key, index) ?: parent?.getValue(key, index)
-        return if (value is SmartVersionedDataAlias<*>) value.alias else value
+        val keyId = key.keyId
+        var scope: SmartDataScope? = this
+        var levels = 0
+
+        while (scope != null) {
+            var value = scope.keyValues(keyId)?.get(index)
+            if (value != null) {
+                // an alias is resolved once for every scope level from this one to the one with the value
+                for (i in 0..levels) {
+                    if (value !is SmartVersionedDataAlias<*>) break
+                    value = value.alias
+                }
+                return value
+            }
+            scope = scope.parent
+            levels++
+        }
+        return null
     }
 
     fun getRawValue(key: SmartDataKey<*>, index: Int): SmartVersionedDataHolder<*>? {
-        val value = myValues[key] ?: return null
-        return value[index]
+        return keyValues(key.keyId)?.get(index)
     }
 
+    /**
+     * values of different keys can be set concurrently once ensureKeyCapacity() was called for all registered keys,
+     * values of one key only from one thread at a time
+     */
     fun <V : Any> setValue(key: SmartDataKey<V>, index: Int, value: SmartVersionedDataHolder<V>) {
-        var valList = myValues[key]
-        if (valList == null) {
-            valList = hashMapOf(Pair(index, value))
-            myValues.put(key, valList)
-        } else {
-            val item = valList[index]
-            if (item != null) {
-                if (item is SmartVersionedDataAlias<*>) {
-                    if (value is SmartVersionedDataAlias<*>) throw IllegalStateException("data point in $name for $key already has an alias $item, second alias $value is in error")
-                    key.setAlias(item, value)
-                } else {
-                    throw IllegalStateException("data point in $name for $key already has a data value $item, second value $value is in error")
-                }
+        val keyId = key.keyId
+        if (keyId >= myValues.size) myValues = myValues.copyOf((keyId + 1).minLimit((myValues.size * 2).maxLimit(SmartDataScopeManager.INSTANCE.keyCount)))
+
+        var values = myValues[keyId]
+        if (values == null) {
+            values = SmartIndexedValues()
+            myValues[keyId] = values
+        }
+
+        val item = values[index]
+        if (item != null) {
+            if (item is SmartVersionedDataAlias<*>) {
+                if (value is SmartVersionedDataAlias<*>) throw IllegalStateException("data point in $name for $key already has an alias $item, second alias $value is in error")
+                key.setAlias(item, value)
             } else {
-                valList.put(index, value)
+                throw IllegalStateException("data point in $name for $key already has a data value $item, second value $value is in error")
             }
+        } else {
+            values[index] = value
         }
     }
 
+    internal fun ensureKeyCapacity(keyCount: Int) {
+        if (keyCount > myValues.size) myValues = myValues.copyOf(keyCount)
+    }
+
     private fun canSetDataPoint(key: SmartDataKey<*>, index: Int): Boolean {
         val item = getRawValue(key, index)
         return item == null || item is SmartVersionedDataAlias<*>
@@ -590,7 +787,7 @@ open class SmartDataScope(val name: String, val parent: SmartDataScope?) {
     }
 
     open operator fun set(dataKey: SmartDataKey<*>, value: SmartVersionedDataHolder<*>) {
-        val index = myValues[dataKey]?.size ?: 0
+        val index = keyValues(dataKey.keyId)?.size ?: 0
         dataKey.setValue(this, index, value)
     }
 
@@ -599,6 +796,7 @@ open class SmartDataScope(val name: String, val parent: SmartDataScope?) {
         if (dataPoint == null) {
             // not yet computed
             dataPoint = dataKey.createDataAlias(this, index)
+            if (myConsumers.isEmpty()) topScope.myConsumerScopes.add(this)
             myConsumers.putIfMissing(dataKey, { arrayListOf() })
             myConsumers[dataKey]!!.add(index)
         }
@@ -640,13 +838,7 @@ open class SmartDataScope(val name: String, val parent: SmartDataScope?) {
         return count
     }
 
-    private fun addConsumedKeyIndices(dataKey: SmartDataKey<*>, scopesSet: Set<SmartDataScope>, indices: HashSet<Int>) {
-        for (scope in scopesSet) {
-            scope.addKeyIndices(dataKey, indices)
-        }
-    }
-
-    private fun addKeyIndices(dataKey: SmartDataKey<*>, indicesSet: HashSet<Int>) {
+    private fun addKeyIndices(dataKey: SmartDataKey<*>, indicesSet: SmartIndexSet) {
         val indices = myConsumers[dataKey] ?: return
 
         for (index in indices) {
@@ -657,12 +849,53 @@ open class SmartDataScope(val name: String, val parent: SmartDataScope?) {
         }
     }
 
-    private fun addConsumedKeys(keys: HashSet<SmartDataKey<*>>) {
+    private fun addConsumedKeys(keys: BitSet) {
         for (entry in myConsumers) {
-            keys.add(entry.key)
+            keys.set(entry.key.keyId)
+        }
+    }
+
+    /**
+     * scopes of this scope for key scope flags, computed once for each tree structure
+     */
+    private fun keyScopes(scopes: Int): Set<SmartDataScope> {
+        val serial = topScope.myStructureSerial
+        synchronized(myKeyScopes) {
+            if (myKeyScopesSerial != serial) {
+                myKeyScopes.clear()
+                myKeyScopesSerial = serial
+            }
+
+            return myKeyScopes.getOrPut(scopes) {
+                val scopesSet = HashSet<SmartDataScope>()
+                addKeyScopes(scopes, scopesSet)
+                scopesSet
+            }
         }
     }
 
+    /**
+     * plan of the last finalization if the tree, consumed keys and registered keys are the same, else a new plan
+     */
+    private fun finalizationPlan(): SmartFinalizationPlan {
+        val registeredKeys = SmartDataScopeManager.INSTANCE.keyCount
+        val consumedKeys = BitSet()
+        val plan = myFinalizationPlan
+
+        if (plan != null && plan.structureSerial == myStructureSerial) {
+            for (scope in plan.scopes) scope.addConsumedKeys(consumedKeys)
+            if (plan.isValidFor(myStructureSerial, registeredKeys, consumedKeys)) return plan
+        } else {
+            addConsumedKeys(consumedKeys)
+            for (scope in myChildren) scope.addConsumedKeys(consumedKeys)
+            for (scope in myDescendants) scope.addConsumedKeys(consumedKeys)
+        }
+
+        val newPlan = SmartFinalizationPlan(this, myStructureSerial, registeredKeys, consumedKeys)
+        myFinalizationPlan = newPlan
+        return newPlan
+    }
+
     /**
      * used to create smart data relationships
      *
@@ -670,31 +903,318 @@ open class SmartDataScope(val name: String, val parent: SmartDataScope?) {
      */
     fun finalizeAllScopes() {
         if (parent != null) throw IllegalStateException("finalizeScope can only be invoked on top level dataScope object")
-        val consumedKeys = HashSet<SmartDataKey<*>>()
-        val keyScopes = myChildren.union(myDescendants).union(setOf(this))
+        val plan = finalizationPlan()
+        val indices = SmartIndexSet()
 
-        for (scope in keyScopes) {
-            scope.addConsumedKeys(consumedKeys)
+        // compute the keys in order
+        for (k in 0..plan.keys.size - 1) {
+            if (prepareKey(plan, k, indices)) createKeyData(plan, plan.keys[k], indices)
         }
 
-        val computeKeys = SmartDataScopeManager.computeKeyOrder(consumedKeys)
+        finalizeConsumers(plan)
+    }
 
-        // compute the keys in order
-        for (keyList in computeKeys) {
-            for (key in keyList) {
-                finalizeKey(key, consumedKeys)
+    /**
+     * same as finalizeAllScopes() but data of keys in one compute level is created concurrently on executor
+     *
+     * levels are finalized one after another. Consumed indices and missing dependency defaults of a level are collected
+     * on the calling thread, only data creation of the level's keys runs on the executor, in the caller's version domain
+     * and grouped update. Keys of a level do not depend on each other so each task only sets values of its own keys.
+     *
+     * creating data reads the version and value of dependency data points, which is not synchronized, so keys of a level
+     * sharing a dependency, directly or through other keys, are created one after another by the same task, see
+     * SmartFinalizationPlan.keyGroups. Keys with disjoint dependencies run concurrently, computed data of the tree must
+     * not be read or changed by other threads until this returns.
+     *
+     * @param executor executor for key tasks, ForkJoinPool.commonPool() or Executors.newVirtualThreadPerTaskExecutor()
+     */
+    fun finalizeAllScopes(executor: Executor) {
+        if (parent != null) throw IllegalStateException("finalizeScope can only be invoked on top level dataScope object")
+        val plan = finalizationPlan()
+
+        // value slots for all keys so concurrent setValue() of different keys never grows a scope's values
+        val keyCount = SmartDataScopeManager.INSTANCE.keyCount
+        for (scope in plan.scopes) {
+            scope.ensureKeyCapacity(keyCount)
+        }
+
+        val domain = SmartVersionDomain.current
+        val groupedSerial = domain.groupedSerial
+        val levelTasks = LinkedHashMap<Int, ArrayList<Int>>()
+        val keyIndices = arrayOfNulls<SmartIndexSet>(plan.keys.size)
+
+        for (level in 0..plan.levelCount - 1) {
+            levelTasks.clear()
+
+            for (k in plan.levelStarts[level]..plan.levelStarts[level + 1] - 1) {
+                val indices = SmartIndexSet()
+                if (prepareKey(plan, k, indices)) {
+                    keyIndices[k] = indices
+                    levelTasks.getOrPut(plan.keyGroups[k]) { ArrayList() }.add(k)
+                }
+            }
+
+            if (levelTasks.size == 1) {
+                for (k in levelTasks.values.first()) {
+                    createKeyData(plan, plan.keys[k], keyIndices[k]!!)
+                }
+            } else if (levelTasks.size > 1) {
+                val futures = levelTasks.values.map { taskKeys ->
+                    CompletableFuture.runAsync(Runnable {
+                        domain.joinGroupedUpdate(groupedSerial, Supplier {
+                            for (k in taskKeys) {
+                                createKeyData(plan, plan.keys[k], keyIndices[k]!!)
+                            }
+                        })
+                    }, executor)
+                }
+
+                try {
+                    CompletableFuture.allOf(*futures.toTypedArray()).join()
+                } catch (e: CompletionException) {
+                    throw e.cause ?: e
+                }
             }
         }
 
+        finalizeConsumers(plan)
+    }
+
+    private fun finalizeConsumers(plan: SmartFinalizationPlan) {
         // copy parent values to child consumers that have defaults
         finalizeParentProvided()
 
         // FIX: validate that all have been computed before clearing consumers for possible next batch
-        traceAndClear()
+        for (scope in plan.scopes) {
+            scope.traceAndClear()
+        }
+
+        myAddedScopes.clear()
+        myConsumerScopes.clear()
+        myFinalized = true
+    }
+
+    /**
+     * finalize scopes and consumers added since the last finalization, same as finalizeAllScopes() if the tree was not finalized
+     *
+     * indices consumed for the first time are finalized in all scopes. For already finalized indices data points are
+     * created in added scopes and re-created in existing scopes if their sources include an added scope or a data point
+     * created in this pass. Finalized indices consumed by new consumers of existing scopes, directly or through a
+     * dependent key, are created in all scopes which do not have them. Other data points are left as they are. Consumer
+     * aliases are kept and re-pointed to the new data.
+     *
+     * can only be invoked from top level scope
+     */
+    fun finalizeIncremental() {
+        if (parent != null) throw IllegalStateException("finalizeIncremental can only be invoked on top level dataScope object")
+
+        if (!myFinalized) {
+            finalizeAllScopes()
+            return
+        }
+
+        if (myAddedScopes.isEmpty() && myConsumerScopes.isEmpty()) return
+
+        val consumerScopes = myConsumerScopes.sortedBy { it.level }
+        val consumedKeys = HashSet<SmartDataKey<*>>(myFinalizedIndices.keys)
+        for (scope in consumerScopes) {
+            consumedKeys.addAll(scope.myConsumers.keys)
+        }
+
+        var allScopes: List<SmartDataScope>? = null
+        val changed = HashMap<SmartDataKey<*>, HashMap<SmartDataScope, SmartIndexSet>>()
+        val replaced = Collections.newSetFromMap(IdentityHashMap<SmartVersionedDataHolder<*>, Boolean>())
+        val consumed = SmartIndexSet()
+        val missing = SmartIndexSet()
+
+        for (dataKey in SmartDataScopeManager.computeKeyOrder(consumedKeys).flatten()) {
+            val finalized = myFinalizedIndices.getOrPut(dataKey) { SmartIndexSet() }
+            val isResultTop = dataKey.myScopes and SmartScopes.RESULT_TOP.flags > 0
+
+            // added before computing so keys depending on their own values in parent scopes see changes made above them
+            val keyChanged = HashMap<SmartDataScope, SmartIndexSet>()
+            changed[dataKey] = keyChanged
+
+            // indices consumed in this pass, consumers of existing scopes can need indices already finalized in other scopes
+            consumed.clear()
+            missing.clear()
+            val dependents = SmartDataScopeManager.allDependentKeys(dataKey)
+            for (scope in consumerScopes) {
+                // finalized indices of added scopes are created with their other data points
+                val indices = if (myAddedScopes.contains(scope)) consumed else missing
+                scope.addKeyIndices(dataKey, indices)
+                for (key in dependents) {
+                    scope.addKeyIndices(key, indices)
+                }
+            }
+
+            for (index in consumed) {
+                if (!finalized.contains(index)) missing.add(index)
+            }
+
+            // finalized indices in scopes affected by added scopes and changed dependencies
+            if (!finalized.isEmpty()) {
+                val affected = LinkedHashSet<SmartDataScope>(myAddedScopes)
+                for (key in dataKey.dependencies) {
+                    affected.addAll(changed[key]?.keys ?: continue)
+                }
 
-        for (scope in keyScopes) {
+                if (!affected.isEmpty()) {
+                    val scopes = if (isResultTop) listOf(this) else relatedScopes(affected)
+                    for (scope in scopes) {
+                        scope.refinalizeKeyScope(dataKey, finalized, true, keyChanged, changed, replaced)
+                    }
+                }
+            }
+
+            // indices consumed for the first time and finalized ones consumed in existing scopes, created in all scopes without them
+            if (!missing.isEmpty()) {
+                for (key in dataKey.dependencies) {
+                    for (index in missing) {
+                        if (!finalized.contains(index) && getValue(key, index) == null) {
+                            key.setNullData(this, index)
+                        }
+                    }
+                }
+
+                if (allScopes == null) allScopes = treeScopes()
+                val scopes = if (isResultTop) listOf(this) else allScopes
+                for (scope in scopes) {
+                    scope.refinalizeKeyScope(dataKey, missing, false, keyChanged, changed, replaced)
+                }
+            }
+
+            finalized.addAll(missing)
+            if (keyChanged.isEmpty()) changed.remove(dataKey)
+        }
+
+        // consumers provided by parent, new ones and those whose parent data was re-created
+        val changedScopes = HashSet<SmartDataScope>(consumerScopes)
+        for (keyChanged in changed.values) {
+            changedScopes.addAll(keyChanged.keys)
+        }
+
+        val parentProvided = if (replaced.isEmpty()) consumerScopes else relatedScopes(changedScopes)
+        for (scope in parentProvided) {
+            scope.refinalizeParentProvided(replaced)
+        }
+
+        for (scope in consumerScopes) {
             scope.traceAndClear()
         }
+
+        myAddedScopes.clear()
+        myConsumerScopes.clear()
+    }
+
+    private fun treeScopes(): List<SmartDataScope> = (myChildren + myDescendants + this).sortedBy { it.level }
+
+    /**
+     * scopes, their parents, ancestors, children and descendants sorted by level
+     */
+    private fun relatedScopes(scopes: Set<SmartDataScope>): List<SmartDataScope> {
+        if (scopes.contains(this)) return treeScopes()
+
+        val related = HashSet<SmartDataScope>()
+        for (scope in scopes) {
+            related.add(scope)
+            if (scope.parent != null) related.add(scope.parent)
+            related.addAll(scope.myAncestors)
+            related.addAll(scope.myChildren)
+            related.addAll(scope.myDescendants)
+        }
+        return related.sortedBy { it.level }
+    }
+
+    /**
+     * create missing data points of dataKey in this scope and if recreate is true re-create existing ones which are stale,
+     * existing data points of added scopes are provided values and never re-created
+     */
+    private fun refinalizeKeyScope(dataKey: SmartDataKey<*>, allIndicesSet: SmartIndexSet, recreate: Boolean, keyChanged: HashMap<SmartDataScope, SmartIndexSet>, changed: Map<SmartDataKey<*>, Map<SmartDataScope, SmartIndexSet>>, replaced: MutableSet<SmartVersionedDataHolder<*>>) {
+        val scopesSet = keyScopes(dataKey.myScopes)
+        if (scopesSet.isEmpty()) return
+
+        val isAdded = !recreate || topScope.myAddedScopes.contains(this)
+        var sourceAdded = false
+        if (!isAdded) {
+            for (scope in scopesSet) {
+                if (topScope.myAddedScopes.contains(scope)) {
+                    sourceAdded = true
+                    break
+                }
+            }
+        }
+
+        val indicesSet = SmartIndexSet()
+        for (index in allIndicesSet) {
+            val rawValue = getRawValue(dataKey, index)
+            if (rawValue == null || (rawValue is SmartVersionedDataAlias<*> && rawValue.alias === dataKey.myNullData)) {
+                indicesSet.add(index)
+            } else if (!isAdded && (sourceAdded || isStale(dataKey, index, scopesSet, changed))) {
+                if (rawValue is SmartVersionedDataAlias<*>) {
+                    replaced.add(rawValue.alias)
+                } else {
+                    keyValues(dataKey.keyId)?.remove(index)
+                    replaced.add(rawValue)
+                }
+                indicesSet.add(index)
+            }
+        }
+
+        if (!indicesSet.isEmpty()) {
+            if (SmartDataScopeManager.INSTANCE.trace) println("re-finalizing $name[$dataKey] indices $indicesSet on ${scopesSet.fold("") { a, b -> a + " " + b.name }}")
+            createData(dataKey, scopesSet, indicesSet)
+            keyChanged.getOrPut(this) { SmartIndexSet() }.addAll(indicesSet)
+        }
+    }
+
+    /**
+     * @return true if the value of a dependency for index in one of the sources comes from a data point changed in this pass
+     */
+    private fun isStale(dataKey: SmartDataKey<*>, index: Int, sources: Set<SmartDataScope>, changed: Map<SmartDataKey<*>, Map<SmartDataScope, SmartIndexSet>>): Boolean {
+        for (key in dataKey.dependencies) {
+            val keyChanged = changed[key] ?: continue
+            for (source in sources) {
+                val scope = source.valueScope(key, index) ?: continue
+                if (keyChanged[scope]?.contains(index) ?: false) return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * @return scope whose value getValue() would return for key and index
+     */
+    private fun valueScope(key: SmartDataKey<*>, index: Int): SmartDataScope? {
+        var scope: SmartDataScope? = this
+        while (scope != null) {
+            if (scope.getRawValue(key, index) != null) return scope
+            scope = scope.parent
+        }
+        return null
+    }
+
+    private fun refinalizeParentProvided(replaced: Set<SmartVersionedDataHolder<*>>) {
+        if (parent == null) return
+
+        for ((dataKey, indices) in myConsumers) {
+            for (index in indices) {
+                refinalizeParentProvided(dataKey, index, parent, replaced)
+            }
+        }
+
+        for ((dataKey, indices) in myFinalizedConsumers) {
+            for (index in indices) {
+                refinalizeParentProvided(dataKey, index, parent, replaced)
+            }
+        }
+    }
+
+    private fun refinalizeParentProvided(dataKey: SmartDataKey<*>, index: Int, parent: SmartDataScope, replaced: Set<SmartVersionedDataHolder<*>>) {
+        val value = getRawValue(dataKey, index)
+        if (value is SmartVersionedDataAlias<*> && (value.alias === dataKey.myNullData || replaced.contains(value.alias))) {
+            dataKey.setAlias(value, parent, index)
+        }
     }
 
     private fun traceAndClear() {
@@ -708,6 +1228,10 @@ open class SmartDataScope(val name: String, val parent: SmartDataScope?) {
             }
         }
 
+        for ((dataKey, indices) in myConsumers) {
+            val finalized = myFinalizedConsumers.getOrPut(dataKey) { SmartIndexSet() }
+            for (index in indices) finalized.add(index)
+        }
         myConsumers.clear()
     }
 
@@ -731,59 +1255,73 @@ open class SmartDataScope(val name: String, val parent: SmartDataScope?) {
         }
     }
 
-    private fun finalizeKey(dataKey: SmartDataKey<*>, consumedKeys: Set<SmartDataKey<*>>) {
-        if (parent != null) throw IllegalStateException("finalizeKey should only be called from top level scope")
-
-        val keyScopes = myChildren.union(myDescendants).union(setOf(this))
-        val indicesSet = HashSet<Int>()
+    /**
+     * collect consumed indices of plan key k and add missing dependency defaults for them
+     *
+     * @return true if the key has indices to compute
+     */
+    private fun prepareKey(plan: SmartFinalizationPlan, k: Int, indicesSet: SmartIndexSet): Boolean {
+        if (parent != null) throw IllegalStateException("prepareKey should only be called from top level scope")
 
-        val dependents = SmartDataScopeManager.dependentKeys[dataKey] ?: setOf()
-        addConsumedKeyIndices(dataKey, keyScopes, indicesSet)
+        val dataKey = plan.keys[k]
+        val indexKeys = plan.indexKeys[k]
+        indicesSet.clear()
 
-        for (dependentKey in dependents) {
-            addConsumedKeyIndices(dependentKey, keyScopes, indicesSet)
+        for (scope in plan.scopes) {
+            for (key in indexKeys) {
+                scope.addKeyIndices(key, indicesSet)
+            }
         }
 
-        if (!indicesSet.isEmpty()) {
-            // we add a value at the top level for all dependencies of this key if one does not exist, this will provide the missing default for all descendants
-            for (key in dataKey.dependencies) {
-                for (index in indicesSet) {
-                    if (getValue(key, index) == null) {
-                        key.setNullData(this, index)
-                    }
-                }
-            }
+        if (indicesSet.isEmpty()) return false
+        myFinalizedIndices.getOrPut(dataKey) { SmartIndexSet() }.addAll(indicesSet)
 
-            // now we compute
-            if (dataKey.myScopes and SmartScopes.RESULT_TOP.flags > 0) {
-                // results go to the top scope
-                finalizeKeyScope(dataKey, consumedKeys, keyScopes, indicesSet)
-            } else {
-                // results go to the individual scopes, finalization is done top down
-                val sortedScopes = keyScopes.sortedBy { it.level }
-                for (scope in sortedScopes) {
-                    scope.finalizeKeyScope(dataKey, consumedKeys, keyScopes, indicesSet)
+        // we add a value at the top level for all dependencies of this key if one does not exist, this will provide the missing default for all descendants
+        for (key in dataKey.dependencies) {
+            for (index in indicesSet) {
+                if (getValue(key, index) == null) {
+                    key.setNullData(this, index)
                 }
             }
         }
+        return true
     }
 
-    @Suppress("UNUSED_PARAMETER")
-    private fun finalizeKeyScope(dataKey: SmartDataKey<*>, consumedKeys: Set<SmartDataKey<*>>, allScopeSet: Set<SmartDataScope>, allIndicesSet: Set<Int>) {
-        val scopesSet = HashSet<SmartDataScope>()
+    private fun createKeyData(plan: SmartFinalizationPlan, dataKey: SmartDataKey<*>, indicesSet: SmartIndexSet) {
+        if (dataKey.myScopes and SmartScopes.RESULT_TOP.flags > 0) {
+            // results go to the top scope
+            finalizeKeyScope(dataKey, indicesSet)
+        } else {
+            // results go to the individual scopes, finalization is done top down
+            for (scope in plan.scopes) {
+                scope.finalizeKeyScope(dataKey, indicesSet)
+            }
+        }
+    }
 
-        addKeyScopes(dataKey.myScopes, scopesSet)
+    private fun finalizeKeyScope(dataKey: SmartDataKey<*>, allIndicesSet: SmartIndexSet) {
+        val scopesSet = keyScopes(dataKey.myScopes)
 
         if (!scopesSet.isEmpty()) {
-            val indicesSet = HashSet<Int>()
+            val indicesSet = SmartIndexSet()
             for (index in allIndicesSet) {
                 if (canSetDataPoint(dataKey, index)) indicesSet.add(index)
             }
 
             if (!indicesSet.isEmpty()) {
                 if (SmartDataScopeManager.INSTANCE.trace) println("finalizing $name[$dataKey] indices $indicesSet on ${scopesSet.fold("") { a, b -> a + " " + b.name }}")
-                dataKey.createData(this, scopesSet, indicesSet)
+                createData(dataKey, scopesSet, indicesSet)
             }
         }
     }
+
+    private fun createData(dataKey: SmartDataKey<*>, scopesSet: Set<SmartDataScope>, indicesSet: SmartIndexSet) {
+        if (SmartDataProfiler.isEnabled) {
+            val start = System.nanoTime()
+            dataKey.createData(this, scopesSet, indicesSet.asSet)
+            SmartDataProfiler.finalized(dataKey.myId, indicesSet.size, System.nanoTime() - start)
+        } else {
+            dataKey.createData(this, scopesSet, indicesSet.asSet)
+        }
+    }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.vladsch.smart
+
+import java.util.*
+
+/**
+ * set of data point indices, non-negative indices are kept in a bit set
+ *
+ * not a collection, use asSet to pass the indices where a read only set is expected
+ */
+class SmartIndexSet : Iterable<Int> {
+    private val myBits = BitSet()
+    private var myNegative: HashSet<Int>? = null
+    private var mySet: Set<Int>? = null
+
+    val size: Int get() = myBits.cardinality() + (myNegative?.size ?: 0)
+
+    fun isEmpty(): Boolean = myBits.isEmpty && myNegative?.isEmpty() ?: true
+
+    operator fun contains(index: Int): Boolean = if (index >= 0) myBits[index] else myNegative?.contains(index) ?: false
+
+    fun add(index: Int) {
+        if (index >= 0) myBits.set(index)
+        else (myNegative ?: HashSet<Int>().apply { myNegative = this }).add(index)
+    }
+
+    fun addAll(indices: SmartIndexSet) {
+        myBits.or(indices.myBits)
+        val negative = indices.myNegative ?: return
+        (myNegative ?: HashSet<Int>().apply { myNegative = this }).addAll(negative)
+    }
+
+    fun clear() {
+        myBits.clear()
+        myNegative = null
+    }
+
+    // read only view, reflects later changes to this set
+    val asSet: Set<Int>
+        get() = mySet ?: object : kotlin.collections.AbstractSet<Int>() {
+            override val size: Int get() = this@SmartIndexSet.size
+            override fun isEmpty(): Boolean = this@SmartIndexSet.isEmpty()
+            override fun contains(element: Int): Boolean = this@SmartIndexSet.contains(element)
+            override fun iterator(): Iterator<Int> = this@SmartIndexSet.iterator()
+        }.apply { mySet = this }
+
+    override fun iterator(): Iterator<Int> {
+        val negative = myNegative?.sorted()?.iterator()
+
+        return object : Iterator<Int> {
+            var next = myBits.nextSetBit(0)
+
+            override fun hasNext(): Boolean = negative?.hasNext() ?: false || next >= 0
+
+            override fun next(): Int {
+                if (negative != null && negative.hasNext()) return negative.next()
+                if (next < 0) throw NoSuchElementException()
+                val index = next
+                next = myBits.nextSetBit(index + 1)
+                return index
+            }
+        }
+    }
+
+    override fun toString(): String = joinToString(", ", "[", "]")
+}
+
+/**
+ * steps to finalize a data scope tree for a set of consumed keys
+ *
+ * all scopes of the tree sorted by level, keys to finalize in compute order and for each key the keys whose consumed
+ * indices it computes, itself and keys depending on it directly or through other keys. A plan is used for as long as
+ * the tree, the consumed keys and the registered keys do not change.
+ */
+class SmartFinalizationPlan internal constructor(val topScope: SmartDataScope, val structureSerial: Int, val registeredKeys: Int, val consumedKeys: BitSet) {
+    val scopes: Array<SmartDataScope>
+    val keys: Array<SmartDataKey<*>>
+    val indexKeys: Array<Array<SmartDataKey<*>>>
+
+    // keys of compute level i are [levelStarts[i], levelStarts[i + 1]) of keys
+    val levelStarts: IntArray
+
+    // first key of the level sharing a dependency with key k, directly or through other keys, keys of a group are
+    // never finalized concurrently
+    val keyGroups: IntArray
+
+    init {
+        scopes = topScope.children.union(topScope.descendants).union(setOf(topScope)).sortedBy { it.level }.toTypedArray()
+
+        val consumed = HashSet<SmartDataKey<*>>()
+        for (scope in scopes) consumed.addAll(scope.consumers.keys)
+        val keyOrder = SmartDataScopeManager.computeKeyOrder(consumed)
+
+        keys = keyOrder.flatten().toTypedArray()
+        levelStarts = IntArray(keyOrder.size + 1)
+        for (i in keyOrder.indices) {
+            levelStarts[i + 1] = levelStarts[i] + keyOrder[i].size
+        }
+
+        keyGroups = IntArray(keys.size) { it }
+        for (i in keyOrder.indices) {
+            val start = levelStarts[i]
+            val dependencies = Array(keyOrder[i].size) { SmartDataScopeManager.allDependencyKeys(keys[start + it]) }
+
+            for (k in start..levelStarts[i + 1] - 1) {
+                for (j in start..k - 1) {
+                    if (keyGroups[j] != keyGroups[k] && !Collections.disjoint(dependencies[j - start], dependencies[k - start])) {
+                        val from = keyGroups[j].minLimit(keyGroups[k])
+                        val to = keyGroups[j].maxLimit(keyGroups[k])
+                        for (m in start..k) {
+                            if (keyGroups[m] == from) keyGroups[m] = to
+                        }
+                    }
+                }
+            }
+        }
+
+        indexKeys = Array(keys.size) {
+            val dependents = SmartDataScopeManager.allDependentKeys(keys[it])
+            (listOf(keys[it]) + dependents).toTypedArray()
+        }
+    }
+
+    val levelCount: Int get() = levelStarts.size - 1
+
+    fun isValidFor(structureSerial: Int, registeredKeys: Int, consumedKeys: BitSet): Boolean {
+        return this.structureSerial == structureSerial && this.registeredKeys == registeredKeys && this.consumedKeys == consumedKeys
+    }
+}
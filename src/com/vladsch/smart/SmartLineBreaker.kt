@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart
+
+/**
+ * minimum raggedness line breaking of paragraph words
+ *
+ * cost of a line is the square of its unused width, last line before a forced break or end of text is free.
+ * Every line start that fits is searched, except past the last window words of a line whose unused width is
+ * already over MAX_SLACK where only the longest line that fits is tried, so an effectively unbounded width
+ * keeps the dynamic programming pass at O(words * window). All state is kept in primitive arrays reused
+ * between computations.
+ */
+internal class SmartLineBreaker(val window: Int) {
+    companion object {
+        const val DEFAULT_WINDOW = 64
+
+        // slack is clamped so its square summed over any number of lines fits in a Long, e.g. for unbounded width
+        const val MAX_SLACK = 1L shl 16
+    }
+
+    private var myWidths = IntArray(0)
+    private var myStarts = IntArray(0)
+    private var myEnds = IntArray(0)
+    private var myForced = BooleanArray(0)
+    private var myBreaks = BooleanArray(0)
+    private var myCost = LongArray(0)
+    private var myPrev = IntArray(0)
+    private var myPrefix = LongArray(0)
+
+    var wordCount: Int = 0
+        private set
+
+    /**
+     * @return true if a line break is to be inserted before word with given index, word 0 is the first WORD token
+     */
+    fun isBreakBefore(word: Int): Boolean = word < wordCount && myBreaks[word]
+
+    /**
+     * @return width of word with given index as measured by the last compute()
+     */
+    fun wordWidth(word: Int): Int = myWidths[word]
+
+    private fun ensureCapacity(size: Int) {
+        if (myWidths.size < size) {
+            val capacity = size.minLimit(myWidths.size * 2).minLimit(64)
+            myWidths = myWidths.copyOf(capacity)
+            myStarts = myStarts.copyOf(capacity)
+            myEnds = myEnds.copyOf(capacity)
+            myForced = myForced.copyOf(capacity)
+            myBreaks = myBreaks.copyOf(capacity)
+            myCost = myCost.copyOf(capacity + 1)
+            myPrev = myPrev.copyOf(capacity + 1)
+            myPrefix = myPrefix.copyOf(capacity + 1)
+        }
+    }
+
+    /**
+     * collect word widths and forced line breaks with the same rules as greedy breaking then choose soft breaks,
+     * all word widths are measured with one batch request to the char width provider
+     *
+     * @param hardBreaks  true if MARKDOWN_BREAK tokens end a line
+     * @param lineBreaks  true if BREAK tokens end a line
+     */
+    fun compute(chars: CharSequence, charWidthProvider: CharWidthProvider, firstIndent: Int, indent: Int, firstWidth: Int, width: Int, hardBreaks: Boolean, lineBreaks: Boolean) {
+        wordCount = 0
+        var lineWords = 0
+        var forced = false
+        val tokenizer = TextTokenizer(chars)
+
+        while (true) {
+            val type = tokenizer.tokenType ?: break
+
+            when (type) {
+                TextType.WORD -> {
+                    ensureCapacity(wordCount + 1)
+                    myStarts[wordCount] = tokenizer.tokenStart
+                    myEnds[wordCount] = tokenizer.tokenEnd
+                    myForced[wordCount] = forced
+                    myBreaks[wordCount] = false
+                    wordCount++
+                    lineWords++
+                    forced = false
+                }
+                TextType.MARKDOWN_START_LINE -> if (lineWords > 0) {
+                    forced = true
+                    lineWords = 0
+                }
+                TextType.MARKDOWN_BREAK -> if (hardBreaks && lineWords > 0) {
+                    forced = true
+                    lineWords = 0
+                }
+                TextType.BREAK -> if (lineBreaks && lineWords > 0) {
+                    forced = true
+                    lineWords = 0
+                }
+                TextType.SPACE -> {
+                }
+            }
+            tokenizer.advance()
+        }
+
+        if (wordCount > 0) {
+            val charArray = if (chars is SmartCharSequence) chars.chars else chars.toString().toCharArray()
+            charWidthProvider.getStringWidths(charArray, myStarts, myEnds, wordCount, myWidths)
+        }
+
+        val spaceWidth = charWidthProvider.spaceWidth
+        var start = 0
+        while (start < wordCount) {
+            var end = start + 1
+            while (end < wordCount && !myForced[end]) end++
+            breakSegment(start, end, spaceWidth, firstIndent, indent, firstWidth, width)
+            start = end
+        }
+    }
+
+    /**
+     * words [start, end) between forced breaks, myCost[j] is the minimum cost of words [start, j)
+     */
+    private fun breakSegment(start: Int, end: Int, spaceWidth: Int, firstIndent: Int, indent: Int, firstWidth: Int, width: Int) {
+        myCost[start] = 0
+        myPrefix[start] = 0L
+        for (k in start until end) {
+            myPrefix[k + 1] = myPrefix[k] + myWidths[k] + spaceWidth
+        }
+
+        // earliest start of a line ending at j that fits the width of lines after the first, only moves forward
+        var longest = start
+
+        for (j in start + 1..end) {
+            var best = Long.MAX_VALUE
+            var bestPrev = j - 1
+            val minStart = j - window
+
+            var i = j - 1
+            while (i >= start) {
+                val slack = lineSlack(i, j, spaceWidth, firstIndent, indent, firstWidth, width)
+
+                // only a single word line may overflow, longer lines only get longer
+                if (slack < 0 && i < j - 1) break
+
+                if (i < minStart && slack >= MAX_SLACK) {
+                    // effectively unbounded width past the window, only the longest line that fits is left to try
+                    while (longest < i && width - indent < myPrefix[j] - myPrefix[longest] - spaceWidth) longest++
+                    i = if (start == 0 && lineSlack(0, j, spaceWidth, firstIndent, indent, firstWidth, width) >= 0) 0 else longest
+
+                    val longestSlack = lineSlack(i, j, spaceWidth, firstIndent, indent, firstWidth, width)
+                    if (longestSlack >= 0) {
+                        val cost = lineCost(i, j, end, longestSlack)
+                        if (cost < best) {
+                            best = cost
+                            bestPrev = i
+                        }
+                    }
+                    break
+                }
+
+                val cost = lineCost(i, j, end, slack)
+                if (cost < best) {
+                    best = cost
+                    bestPrev = i
+                }
+                i--
+            }
+
+            myCost[j] = best
+            myPrev[j] = bestPrev
+        }
+
+        var j = end
+        while (j > start) {
+            val i = myPrev[j]
+            if (i > start) myBreaks[i] = true
+            j = i
+        }
+    }
+
+    /**
+     * unused width of a line holding words [i, j), negative if the words overflow it
+     */
+    private fun lineSlack(i: Int, j: Int, spaceWidth: Int, firstIndent: Int, indent: Int, firstWidth: Int, width: Int): Long {
+        val available = if (i == 0) firstWidth - firstIndent else width - indent
+        return available - (myPrefix[j] - myPrefix[i] - spaceWidth)
+    }
+
+    private fun lineCost(i: Int, j: Int, end: Int, slack: Long): Long {
+        val lineSlack = slack.maxLimit(MAX_SLACK)
+        return myCost[i] + if (j == end || slack < 0) 0L else lineSlack * lineSlack
+    }
+}
@@ -23,6 +23,10 @@ package com.vladsch.smart
 
 import java.util.*
 
+/**
+ * source ranges of a sequence, replaced by SmartOffsetMap which SmartLocationSnapshot now uses
+ */
+@Deprecated("use SmartOffsetMap")
 class SmartSourceLocation(val source: Any, val locations: ArrayList<Range>, val sourceLocations: ArrayList<Range>) : SmartSourceLocationTracker {
     var optimizedSource: Boolean = false
     var sourceIndices = IntArray(0)
@@ -107,53 +111,29 @@ class SmartSourceLocation(val source: Any, val locations: ArrayList<Range>, val
     }
 }
 
-class SmartLocationSnapshot private constructor(val sources: Map<Any, SmartSourceLocation>) : SmartSourceLocationTracker {
-    //    var optimizedDestination: Boolean = false
-    //    val locationIndices = IntArray(0)
-
-    override fun trackedSourceLocation(index: Int): TrackedLocation {
-        throw UnsupportedOperationException()
-        //        if (!optimizedDestination) optimizeDestination()
-        //
-        //        // FIX: find location and return TrackedLocation
-        //        return TrackedLocation(0,0,this)
-    }
-
-    //    fun optimizeDestination() {
-    //        // optimize smart source locations
-    //        // FIX: sort ranges by location
-    //
-    //        optimizedDestination = true
-    //    }
-
-    override fun trackedLocation(source: Any?, offset: Int): TrackedLocation? {
-        if (source == null) return null
+/**
+ * frozen index to source offset mapping of a sequence, stays valid after the sequence changes
+ */
+class SmartLocationSnapshot private constructor(val offsetMap: SmartOffsetMap) : SmartSourceLocationTracker {
+    val length: Int get() = offsetMap.length
 
-        val sourceLocation = sources[source] ?: return null
-        return sourceLocation.trackedLocation(source, offset)
-    }
+    override fun trackedSourceLocation(index: Int): TrackedLocation = offsetMap.trackedSourceLocation(index)
 
-    companion object {
-        fun create(sourceSequence: SmartCharSequence): SmartLocationSnapshot {
-            val sources = ArrayList<Any>()
-            val locations = ArrayList<Range>()
-            val sourceLocations = ArrayList<Range>()
+    override fun trackedSourceLocation(index: Int, location: TrackedLocationCursor) = offsetMap.trackedSourceLocation(index, location)
 
-            sourceSequence.getSourceLocations(sources, locations, sourceLocations)
-            assert(sources.size == locations.size)
-            assert(sources.size == sourceLocations.size)
+    override fun trackedLocation(source: Any?, offset: Int): TrackedLocation? = offsetMap.trackedLocation(source, offset)
 
-            val sourceMap = HashMap<Any, SmartSourceLocation>()
+    override fun trackedLocation(source: Any?, offset: Int, location: TrackedLocationCursor): Boolean = offsetMap.trackedLocation(source, offset, location)
 
-            for (i in 0..sources.size - 1) {
-                val aSource = sources[i]
-                val sourceItem = sourceMap[aSource]
+    fun indexOf(source: Any?, offset: Int): Int = offsetMap.indexOf(source, offset)
 
-                var source = sourceItem ?: SmartSourceLocation(aSource, ArrayList(), ArrayList())
-                source.addEntry(locations[i], sourceLocations[i])
-            }
+    fun indicesOf(source: Any, offsets: IntArray, indices: IntArray) = offsetMap.indicesOf(source, offsets, indices)
 
-            return SmartLocationSnapshot(sourceMap)
+    companion object {
+        @JvmStatic
+        fun create(sourceSequence: SmartCharSequence): SmartLocationSnapshot {
+            val offsetMap = if (sourceSequence is SmartCharSequenceBase<*>) sourceSequence.offsetMap else SmartOffsetMap.create(sourceSequence)
+            return SmartLocationSnapshot(offsetMap)
         }
     }
 }
@@ -39,6 +39,14 @@ class SmartMappedCharSequence(chars: SmartCharSequence, mapper: CharSequenceMapp
         }
     }
 
+    override fun getCharsImpl(srcBegin: Int, srcEnd: Int, dst: CharArray, dstOffset: Int) {
+        myReplacedChars.getChars(srcBegin, srcEnd, dst, dstOffset)
+
+        for (i in 0..srcEnd - srcBegin - 1) {
+            dst[dstOffset + i] = myMapper.mapChar(dst, dstOffset, i)
+        }
+    }
+
     // disable proxy copying, use mapping, it's fast enough
     override fun getCachedProxy(): SmartCharSequence = this
 
@@ -51,9 +59,9 @@ class SmartMappedCharSequence(chars: SmartCharSequence, mapper: CharSequenceMapp
 
     override fun properSubSequence(startIndex: Int, endIndex: Int): SmartMappedCharSequence = SmartMappedCharSequence(myReplacedChars.subSequence(startIndex, endIndex), myMapper)
 
-    override fun trackedSourceLocation(index: Int): TrackedLocation = myReplacedChars.trackedSourceLocation(index)
+    override fun trackedSourceLocation(index: Int, location: TrackedLocationCursor) = myReplacedChars.trackedSourceLocation(index, location)
 
-    override fun trackedLocation(source: Any?, offset: Int): TrackedLocation? = myReplacedChars.trackedLocation(source, offset)
+    override fun trackedLocation(source: Any?, offset: Int, location: TrackedLocationCursor): Boolean = myReplacedChars.trackedLocation(source, offset, location)
 
     override fun getMarkers(id: String?): List<TrackedLocation> = myReplacedChars.getMarkers(id)
 
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart
+
+import java.util.*
+
+/**
+ * index to source offset map of a whole sequence, stored as runs in primitive columns
+ *
+ * run i covers indices [runIndex[i], runIndex[i + 1]) which map to consecutive offsets starting at
+ * runOffset[i] in sources[runSource[i]]. Reverse lookup uses run numbers sorted by source then offset.
+ *
+ * only the exact location of each index is kept, prev/next closest information is not part of the map
+ */
+class SmartOffsetMap private constructor(
+    val versionSerial: Int,
+    val length: Int,
+    private val mySources: Array<Any>,
+    private val myRunIndex: IntArray,
+    private val myRunOffset: IntArray,
+    private val myRunSource: IntArray,
+    private val mySortedRuns: IntArray,
+    private val mySourceRuns: IntArray,
+    private val mySortedMaxEnd: IntArray
+) : SmartSourceLocationTracker {
+
+    val runCount: Int get() = myRunOffset.size
+    val sources: List<Any> get() = mySources.asList()
+
+    fun sourceId(source: Any?): Int {
+        for (i in mySources.indices) {
+            if (mySources[i] === source) return i
+        }
+        return -1
+    }
+
+    /**
+     * @return run containing index
+     */
+    fun runOf(index: Int): Int {
+        if (index < 0 || index >= length) throw IndexOutOfBoundsException("index $index is not within [0, $length)")
+
+        // last run with runIndex <= index
+        var lo = 0
+        var hi = runCount - 1
+        while (lo < hi) {
+            val mid = (lo + hi + 1) ushr 1
+            if (myRunIndex[mid] <= index) lo = mid else hi = mid - 1
+        }
+        return lo
+    }
+
+    fun offsetOf(index: Int): Int {
+        val run = runOf(index)
+        return myRunOffset[run] + index - myRunIndex[run]
+    }
+
+    fun sourceOf(index: Int): Any = mySources[myRunSource[runOf(index)]]
+
+    override fun trackedSourceLocation(index: Int): TrackedLocation {
+        val run = runOf(index)
+        return TrackedLocation(index, myRunOffset[run] + index - myRunIndex[run], mySources[myRunSource[run]])
+    }
+
+    override fun trackedSourceLocation(index: Int, location: TrackedLocationCursor) {
+        val run = runOf(index)
+        location.set(index, myRunOffset[run] + index - myRunIndex[run], mySources[myRunSource[run]])
+    }
+
+    /**
+     * @param source source object or null for any, with null the first source containing offset is used
+     * @param offset offset in the source
+     * @return index in the sequence or -1 if offset of source is not part of the sequence
+     */
+    fun indexOf(source: Any?, offset: Int): Int {
+        if (source == null) {
+            for (id in mySources.indices) {
+                val index = indexOfSource(id, offset)
+                if (index >= 0) return index
+            }
+            return -1
+        }
+
+        val id = sourceId(source)
+        return if (id < 0) -1 else indexOfSource(id, offset)
+    }
+
+    override fun trackedLocation(source: Any?, offset: Int): TrackedLocation? {
+        val location = TrackedLocationCursor()
+        return if (trackedLocation(source, offset, location)) location.toTrackedLocation() else null
+    }
+
+    override fun trackedLocation(source: Any?, offset: Int, location: TrackedLocationCursor): Boolean {
+        val index = indexOf(source, offset)
+        if (index < 0) return false
+        location.set(index, offset, mySources[myRunSource[runOf(index)]])
+        return true
+    }
+
+    /**
+     * map sorted offsets of a source to indices in one merge pass over the runs of the source
+     *
+     * @param source  source object
+     * @param offsets offsets in source sorted in ascending order
+     * @param indices receives index for each offset or -1 if the offset is not part of the sequence, can be offsets
+     */
+    fun indicesOf(source: Any, offsets: IntArray, indices: IntArray) {
+        if (indices.size < offsets.size) throw IllegalArgumentException("indices size ${indices.size} < offsets size ${offsets.size}")
+
+        val id = sourceId(source)
+        if (id < 0) {
+            Arrays.fill(indices, 0, offsets.size, -1)
+            return
+        }
+
+        val start = mySourceRuns[id]
+        val end = mySourceRuns[id + 1]
+        var pos = start - 1
+
+        for (i in offsets.indices) {
+            val offset = offsets[i]
+            while (pos + 1 < end && myRunOffset[mySortedRuns[pos + 1]] <= offset) pos++
+            indices[i] = indexAt(start, pos, offset)
+        }
+    }
+
+    private fun indexOfSource(id: Int, offset: Int): Int {
+        val start = mySourceRuns[id]
+        val end = mySourceRuns[id + 1]
+
+        // last sorted run with offset <= given offset
+        var lo = start - 1
+        var hi = end - 1
+        while (lo < hi) {
+            val mid = (lo + hi + 1) ushr 1
+            if (myRunOffset[mySortedRuns[mid]] <= offset) lo = mid else hi = mid - 1
+        }
+        return indexAt(start, lo, offset)
+    }
+
+    /**
+     * runs of a source can overlap when the same source text is repeated, mySortedMaxEnd lets us
+     * step back over preceding runs only while one of them can still contain the offset.
+     * Like trackedLocation() of sequences, the first index in the sequence wins.
+     */
+    private fun indexAt(start: Int, pos: Int, offset: Int): Int {
+        var index = -1
+        var i = pos
+        while (i >= start && mySortedMaxEnd[i] > offset) {
+            val run = mySortedRuns[i]
+            val runOffset = myRunOffset[run]
+            if (offset < runOffset + myRunIndex[run + 1] - myRunIndex[run]) {
+                val runIndex = myRunIndex[run] + offset - runOffset
+                if (index < 0 || index > runIndex) index = runIndex
+            }
+            i--
+        }
+        return index
+    }
+
+    companion object {
+        private const val INSERTION_SORT_RUNS = 16
+
+        @JvmStatic
+        fun create(chars: SmartCharSequence): SmartOffsetMap {
+            val length = chars.length
+            val sources = ArrayList<Any>()
+            var runIndex = IntArray(16)
+            var runOffset = IntArray(16)
+            var runSource = IntArray(16)
+            var runs = 0
+
+            val location = TrackedLocationCursor()
+            var lastSource: Any? = null
+            var lastId = -1
+            var nextOffset = 0
+
+            for (i in 0..length - 1) {
+                chars.trackedSourceLocation(i, location)
+                val source = location.source
+
+                if (source === lastSource && location.offset == nextOffset) {
+                    nextOffset++
+                    continue
+                }
+
+                if (source !== lastSource) {
+                    lastId = -1
+                    for (s in sources.indices) {
+                        if (sources[s] === source) {
+                            lastId = s
+                            break
+                        }
+                    }
+                    if (lastId < 0) {
+                        lastId = sources.size
+                        sources.add(source)
+                    }
+                    lastSource = source
+                }
+
+                if (runs == runOffset.size) {
+                    runIndex = runIndex.copyOf(runs * 2)
+                    runOffset = runOffset.copyOf(runs * 2)
+                    runSource = runSource.copyOf(runs * 2)
+                }
+
+                runIndex[runs] = i
+                runOffset[runs] = location.offset
+                runSource[runs] = lastId
+                runs++
+                nextOffset = location.offset + 1
+            }
+
+            val runIndices = runIndex.copyOf(runs + 1)
+            runIndices[runs] = length
+            val runOffsets = runOffset.copyOf(runs)
+            val runSources = runSource.copyOf(runs)
+
+            // sort runs by source and offset, counting sort on source keeps index order within equal offsets
+            val sourceRuns = IntArray(sources.size + 1)
+            for (r in 0..runs - 1) sourceRuns[runSources[r] + 1]++
+            for (s in 0..sources.size - 1) sourceRuns[s + 1] += sourceRuns[s]
+
+            val fill = sourceRuns.copyOf(sources.size)
+            val sortedRuns = IntArray(runs)
+            for (r in 0..runs - 1) sortedRuns[fill[runSources[r]]++] = r
+
+            var buffer: IntArray? = null
+            for (s in 0..sources.size - 1) {
+                val from = sourceRuns[s]
+                val to = sourceRuns[s + 1]
+                if (to - from > 1) {
+                    if (buffer == null) buffer = IntArray(runs)
+                    sortByOffset(sortedRuns, from, to, runOffsets, buffer)
+                }
+            }
+
+            val sortedMaxEnd = IntArray(runs)
+            for (s in 0..sources.size - 1) {
+                var maxEnd = Int.MIN_VALUE
+                for (k in sourceRuns[s]..sourceRuns[s + 1] - 1) {
+                    val r = sortedRuns[k]
+                    val end = runOffsets[r] + runIndices[r + 1] - runIndices[r]
+                    if (maxEnd < end) maxEnd = end
+                    sortedMaxEnd[k] = maxEnd
+                }
+            }
+
+            return SmartOffsetMap(chars.version.versionSerial, length, sources.toTypedArray(), runIndices, runOffsets, runSources, sortedRuns, sourceRuns, sortedMaxEnd)
+        }
+
+        /**
+         * stable merge sort of runs in [from, to) by their offset, runs of one source usually come in offset order
+         * so already ordered halves are not merged
+         */
+        private fun sortByOffset(runs: IntArray, from: Int, to: Int, offsets: IntArray, buffer: IntArray) {
+            if (to - from <= INSERTION_SORT_RUNS) {
+                for (i in from + 1..to - 1) {
+                    val r = runs[i]
+                    val offset = offsets[r]
+                    var j = i
+                    while (j > from && offsets[runs[j - 1]] > offset) {
+                        runs[j] = runs[j - 1]
+                        j--
+                    }
+                    runs[j] = r
+                }
+                return
+            }
+
+            val mid = (from + to) ushr 1
+            sortByOffset(runs, from, mid, offsets, buffer)
+            sortByOffset(runs, mid, to, offsets, buffer)
+            if (offsets[runs[mid - 1]] <= offsets[runs[mid]]) return
+
+            System.arraycopy(runs, from, buffer, from, mid - from)
+            var i = from
+            var j = mid
+            var k = from
+            while (i < mid && j < to) {
+                runs[k++] = if (offsets[runs[j]] < offsets[buffer[i]]) runs[j++] else buffer[i++]
+            }
+            while (i < mid) runs[k++] = buffer[i++]
+        }
+    }
+}
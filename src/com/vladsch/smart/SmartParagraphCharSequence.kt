@@ -37,9 +37,10 @@ class SmartParagraphCharSequence(replacedChars: SmartCharSequence) : SmartCharSe
 
     constructor(chars: String) : this(SmartCharArraySequence(chars.toCharArray()))
 
-    // FIX: need a SmartDependentVersionHolder to SmartVersionedDataHolder adapter class so that smar sequences can be included
-    // in list of dependents of properties
     protected val myReplacedChars = replacedChars
+
+    // source of the paragraph, used to find paragraphs which cannot be re-flowed concurrently
+    internal val sourceChars: SmartCharSequence get() = myReplacedChars
     protected var myFirstIndent = SmartVersionedProperty("paraCharSeq:FirstIndent", 0)
     protected var myIndent = SmartVersionedProperty("paraCharSeq:Indent", 0)
     protected var myFirstWidthOffset = SmartVersionedProperty("varCharSeq:FirstWidth", 0)
@@ -47,10 +48,17 @@ class SmartParagraphCharSequence(replacedChars: SmartCharSequence) : SmartCharSe
     protected var myAlignment = SmartVersionedProperty("varCharSeq:Alignment", TextAlignment.LEFT)
     protected var myKeepMarkdownHardBreaks = SmartVersionedProperty("varCharSeq:keepMarkdownHardBreaks", true)
     protected var myKeepLineBreaks = SmartVersionedProperty("varCharSeq:keepLineBreaks", false)
+    protected var myOptimalLineBreaks = SmartVersionedProperty("paraCharSeq:optimalLineBreaks", false)
+
+    // source edits re-flow from the first affected line, see computeLeftAlignedSequence()
+    protected val mySourceVersion = SmartVersionedDataVersion(myReplacedChars)
 
-    protected var myResultSequence = SmartDependentData(listOf(myFirstIndent, myIndent, myAlignment, myFirstWidthOffset, myWidth, myKeepMarkdownHardBreaks), Supplier { computeResultSequence() })
+    protected var myResultSequence = SmartDependentData(listOf(myFirstIndent, myIndent, myAlignment, myFirstWidthOffset, myWidth, myKeepMarkdownHardBreaks, myKeepLineBreaks, myOptimalLineBreaks, mySourceVersion), Supplier { computeResultSequence() })
     protected val myVersion = SmartDependentVersion(listOf(myResultSequence, myReplacedChars.version))
     protected var myCharWidthProvider = CharWidthProvider.UNITY_PROVIDER
+    private var myWidthProvider = CharWidthProvider.UNITY_PROVIDER
+    private var myLayout: SmartParagraphLayout? = null
+    private var myLineBreaker: SmartLineBreaker? = null
 
     var charWidthProvider: CharWidthProvider
         get() = myCharWidthProvider
@@ -58,6 +66,7 @@ class SmartParagraphCharSequence(replacedChars: SmartCharSequence) : SmartCharSe
             val useValue = value
             if (myCharWidthProvider !== useValue) {
                 myCharWidthProvider = useValue
+                myWidthProvider = CachedCharWidthProvider.of(useValue)
 
                 val indent = myIndent.get()
                 this.indent = indent + 1
@@ -107,6 +116,14 @@ class SmartParagraphCharSequence(replacedChars: SmartCharSequence) : SmartCharSe
             myKeepLineBreaks.set(value)
         }
 
+    /**
+     * break lines for minimum raggedness instead of first fit, see SmartLineBreaker
+     */
+    var optimalLineBreaks: Boolean get() = myOptimalLineBreaks.get()
+        set(value) {
+            myOptimalLineBreaks.set(value)
+        }
+
     override fun getVersion(): SmartVersion {
         return myVersion
     }
@@ -126,6 +143,13 @@ class SmartParagraphCharSequence(replacedChars: SmartCharSequence) : SmartCharSe
     protected val resultSequence: SmartCharSequence
         get() = myResultSequence.get()
 
+    /**
+     * re-flow now if needed, used to compute paragraphs ahead of access, see SmartParagraphReflow
+     */
+    fun reflow() {
+        resultSequence
+    }
+
     protected fun tokenizeSequence(chars: CharSequence): List<Token<TextType>> {
         var pos = 0
         val maxPos = chars.length
@@ -184,6 +208,17 @@ class SmartParagraphCharSequence(replacedChars: SmartCharSequence) : SmartCharSe
         return tokenList
     }
 
+    private fun computeLineBreaker(hardBreaks: Boolean): SmartLineBreaker? {
+        if (!myOptimalLineBreaks.get()) return null
+
+        val spaceWidth = myWidthProvider.spaceWidth
+        val nextWidth = if (myWidth.get() <= 0) Integer.MAX_VALUE else spaceWidth * myWidth.get()
+        val lineBreaker = myLineBreaker ?: SmartLineBreaker(SmartLineBreaker.DEFAULT_WINDOW)
+        myLineBreaker = lineBreaker
+        lineBreaker.compute(myReplacedChars, myWidthProvider, spaceWidth * firstIndent, spaceWidth * indent, spaceWidth * firstWidth, nextWidth, hardBreaks, myKeepLineBreaks.get())
+        return lineBreaker
+    }
+
     protected fun computeResultSequence(): SmartCharSequence {
         if (firstWidth <= 0) return myReplacedChars//.cachedProxy
         val test = false
@@ -195,16 +230,18 @@ class SmartParagraphCharSequence(replacedChars: SmartCharSequence) : SmartCharSe
         val hardBreak = RepeatedCharSequence("  \n")
         var pos = 0
         var lineCount = 0
-        val lineWords = ArrayList<Token<TextType>>()
+        val lineWords = TextTokenList()
         val result = ArrayList<CharSequence>()
-        val spaceWidth = myCharWidthProvider.spaceWidth
+        val spaceWidth = myWidthProvider.spaceWidth
         var lineIndent = spaceWidth * firstIndent
         val nextIndent = spaceWidth * indent
         var lineWidth = spaceWidth * firstWidth
         val nextWidth = if (myWidth.get() <= 0) Integer.MAX_VALUE else spaceWidth * myWidth.get()
         var wordsOnLine = 0
+        var word = 0
 
         val chars = myReplacedChars//.cachedProxy
+        val lineBreaker = computeLineBreaker(myKeepMarkdownHardBreaks.get() || myKeepLineBreaks.get())
         val tokenizer = TextTokenizer(chars)
         val tokens = if (test) tokenizeSequence(chars) else listOf()
 
@@ -233,10 +270,11 @@ class SmartParagraphCharSequence(replacedChars: SmartCharSequence) : SmartCharSe
             tokenizer.reset()
         }
 
-        fun lineBreak(spaceToken: Token<TextType>?, lineBreak: CharSequence, lastLine: Boolean) {
+        // spaceStart < 0 if there is no space token to replace with the line break
+        fun lineBreak(spaceStart: Int, spaceEnd: Int, lineBreak: CharSequence, lastLine: Boolean) {
             addLine(result, chars, lineWords, wordsOnLine, lineCount, (lineWidth - pos - lineIndent) / spaceWidth, lastLine)
-            if (spaceToken != null) {
-                result.add(SmartReplacedCharSequence(spaceToken.subSequence(chars), lineBreak))
+            if (spaceStart >= 0) {
+                result.add(SmartReplacedCharSequence(chars.subSequence(spaceStart, spaceEnd), lineBreak))
             } else {
                 result.add(lineBreak)
             }
@@ -253,7 +291,7 @@ class SmartParagraphCharSequence(replacedChars: SmartCharSequence) : SmartCharSe
         val iMax = tokens.size
 
         fun advance() {
-            tokenizer.next()
+            tokenizer.advance()
             i++
         }
 
@@ -264,63 +302,69 @@ class SmartParagraphCharSequence(replacedChars: SmartCharSequence) : SmartCharSe
         }
 
         while (true) {
-            val token = tokenizer.token
+            val type = tokenizer.tokenType
 
             if (test) {
                 val tokened = getToken()
 
-                if (token != tokened) {
+                if (tokenizer.token != tokened) {
                     println("tokens differ")
                 }
             }
-            //                        println("token[$i] = $token (${chars.subSequence(token.range.start, token.range.end)})")
+            //                        println("token[$i] = ${tokenizer.token} (${chars.subSequence(tokenizer.tokenStart, tokenizer.tokenEnd)})")
+
+            if (type == null) break
 
-            if (token == null) break
+            val start = tokenizer.tokenStart
+            val end = tokenizer.tokenEnd
 
-            when (token.type) {
+            when (type) {
                 TextType.SPACE -> {
-                    if (pos > 0) lineWords.add(token)
+                    if (pos > 0) lineWords.add(type, start, end)
                     advance()
                 }
                 TextType.WORD -> {
-                    if (pos == 0 || lineIndent + pos + myCharWidthProvider.getStringWidth(token.subSequence(chars)) + spaceWidth <= lineWidth) {
+                    val wordWidth = if (lineBreaker != null) lineBreaker.wordWidth(word) else myWidthProvider.getStringWidth(chars.subSequence(start, end))
+                    val fits = if (lineBreaker != null) !lineBreaker.isBreakBefore(word) else lineIndent + pos + wordWidth + spaceWidth <= lineWidth
+                    if (pos == 0 || fits) {
                         // fits, add it
                         if (pos > 0) pos += spaceWidth
-                        lineWords.add(token)
-                        pos += myCharWidthProvider.getStringWidth(token.subSequence(chars))
+                        lineWords.add(type, start, end)
+                        pos += wordWidth
                         wordsOnLine++
+                        word++
                         advance()
                     } else {
                         // need to insert a line break and repeat
-                        val lineBreakToken = lineWords[lineWords.lastIndex]
+                        val last = lineWords.lastIndex
 
-                        if (lineBreakToken.type == TextType.WORD) {
-                            lineBreak(null, lineBreak, false)
+                        if (lineWords.type(last) == TextType.WORD) {
+                            lineBreak(-1, -1, lineBreak, false)
                         } else {
-                            lineBreak(lineBreakToken, lineBreak, false)
+                            lineBreak(lineWords.start(last), lineWords.end(last), lineBreak, false)
                         }
                     }
                 }
                 TextType.MARKDOWN_BREAK -> {
                     if (pos > 0) {
                         if (myKeepMarkdownHardBreaks.get()) {
-                            lineBreak(token, hardBreak, true)
+                            lineBreak(start, end, hardBreak, true)
                         } else if (myKeepLineBreaks.get()) {
-                            lineWords.add(token)
-                            lineBreak(token, lineBreak, true)
+                            lineWords.add(type, start, end)
+                            lineBreak(start, end, lineBreak, true)
                         }
                     }
                     advance()
                 }
                 TextType.BREAK -> {
                     if (pos > 0 && myKeepLineBreaks.get()) {
-                        lineBreak(token, lineBreak, true)
+                        lineBreak(start, end, lineBreak, true)
                     }
                     advance()
                 }
                 TextType.MARKDOWN_START_LINE -> {
                     if (wordsOnLine > 0) {
-                        lineBreak(null, lineBreak, false)
+                        lineBreak(-1, -1, lineBreak, false)
                     }
                     advance()
                 }
@@ -361,96 +405,155 @@ class SmartParagraphCharSequence(replacedChars: SmartCharSequence) : SmartCharSe
     protected fun computeLeftAlignedSequence(): SmartCharSequence {
         if (firstWidth <= 0) return myReplacedChars//.cachedProxy
 
-        val lineBreak = SmartRepeatedCharSequence("\n")
-        var col = 0
-        var lineCount = 0
-        val result = ArrayList<SmartCharSequence>()
-        val spaceWidth = myCharWidthProvider.spaceWidth
-        var lineIndent = spaceWidth * firstIndent
-        val nextIndent = spaceWidth * indent
-        var lineWidth = spaceWidth * firstWidth
+        val chars = myReplacedChars//.cachedProxy
+        val spaceWidth = myWidthProvider.spaceWidth
         val nextWidth = if (myWidth.get() <= 0) Integer.MAX_VALUE else spaceWidth * myWidth.get()
-        var wordsOnLine = 0
-        var leadingIndent: Token<TextType>? = null
-        var lastRange: Range? = null
-        var lastSpace: Token<TextType>? = null
+        // backing array of a char array sequence can be longer than the sequence
+        val sourceChars = chars.chars
+        val layout = SmartParagraphLayout(if (sourceChars.size == chars.length) sourceChars else sourceChars.copyOf(chars.length), spaceWidth * firstIndent, spaceWidth * indent, spaceWidth * firstWidth, nextWidth,
+            myKeepMarkdownHardBreaks.get(), myKeepLineBreaks.get(), myWidthProvider)
+
+        val lineBreaker = computeLineBreaker(myKeepMarkdownHardBreaks.get())
+        if (lineBreaker != null) {
+            // optimal breaks are not local to an edit, always re-flow the whole paragraph
+            flowLeftAligned(chars, layout, 0, null, 0, 0, lineBreaker)
+            myLayout = null
+            return layout.toSequence(chars)
+        }
+
+        val prevLayout = myLayout
+        if (prevLayout != null && prevLayout.isSameSettings(layout)) {
+            // re-flow from the line before the first changed char, a shorter first word may now fit on the previous line
+            val prevChars = prevLayout.chars
+            val newChars = layout.chars
+            val minLength = prevChars.size.maxLimit(newChars.size)
+            var prefix = 0
+            while (prefix < minLength && prevChars[prefix] == newChars[prefix]) prefix++
+
+            if (prefix == prevChars.size && prefix == newChars.size) {
+                myLayout = prevLayout
+                return prevLayout.toSequence(chars)
+            }
 
-        val chars = myReplacedChars//.cachedProxy
-        val tokenizer = TextTokenizer(chars)
+            var suffix = 0
+            while (suffix < minLength - prefix && prevChars[prevChars.size - suffix - 1] == newChars[newChars.size - suffix - 1]) suffix++
 
-        fun advance() {
-            tokenizer.next()
+            val startLine = (prevLayout.lineBefore(prefix) - 1).minLimit(0)
+            layout.copyLines(prevLayout, startLine)
+            val startOffset = if (startLine > 0) prevLayout.lineStart(startLine) else 0
+            flowLeftAligned(chars, layout, startOffset, prevLayout, newChars.size - suffix, newChars.size - prevChars.size, null)
+        } else {
+            flowLeftAligned(chars, layout, 0, null, 0, 0, null)
         }
 
-        fun commitLastRange() {
-            val range = lastRange
-            if (range != null) result.add(chars.subSequence(range.start, range.end))
-            lastRange = null
-        }
+        myLayout = layout
+        return layout.toSequence(chars)
+    }
 
-        fun addToken(token: Token<TextType>) {
-            val range = lastRange
-            if (range != null && range.isAdjacentBefore(token.range)) {
-                // combine them
-                lastRange = range.withEnd(token.range.end)
-            } else {
-                if (range != null) result.add(chars.subSequence(range.start, range.end))
-                lastRange = token.range
-            }
-            col += myCharWidthProvider.getStringWidth(token.subSequence(chars))
+    /**
+     * left aligned line breaking from startOffset to the end of the source or until a new line
+     * starts at or after syncOffset where the previous layout also started a line, the rest of
+     * the previous layout is then appended with source offsets shifted by delta
+     *
+     * with a lineBreaker words go on the line it chose instead of the first line they fit on
+     */
+    private fun flowLeftAligned(chars: SmartCharSequence, layout: SmartParagraphLayout, startOffset: Int, prevLayout: SmartParagraphLayout?, syncOffset: Int, delta: Int, lineBreaker: SmartLineBreaker?) {
+        val spaceWidth = myWidthProvider.spaceWidth
+        var col = 0
+        var lineIndent = if (layout.lineCount == 0) layout.firstIndent else layout.indent
+        var lineWidth = if (layout.lineCount == 0) layout.firstWidth else layout.width
+        var lineStarted = false
+        var word = 0
+        // leading indent and last space token ranges, start < 0 if none
+        var leadingIndentStart = -1
+        var leadingIndentEnd = -1
+        var lastSpaceStart = -1
+        var lastSpaceEnd = -1
+
+        val tokenizer = TextTokenizer(chars, startOffset)
+
+        fun advance() {
+            tokenizer.advance()
         }
 
-        fun addChars(charSequence: SmartCharSequence) {
-            commitLastRange()
-            result.add(charSequence)
-            col += myCharWidthProvider.getStringWidth(charSequence)
+        fun addToken(start: Int, end: Int, width: Int) {
+            layout.addPiece(SmartParagraphLayout.PIECE_SOURCE, start, end, 0)
+            col += width
         }
 
-        fun addTokenSubRange(token: Token<TextType>, count: Int) {
-            if (token.range.span == count) addToken(token)
-            else addChars(SmartRepeatedCharSequence(token.subSequence(chars), 0, count))
+        fun addToken(start: Int, end: Int) {
+            addToken(start, end, myWidthProvider.getStringWidth(chars.subSequence(start, end)))
         }
 
-        fun addSpaces(token: Token<TextType>?, count: Int) {
-            if (token != null) {
-                addTokenSubRange(token, count)
+        fun addSpaces(start: Int, end: Int, count: Int) {
+            if (start < 0) {
+                layout.addPiece(SmartParagraphLayout.PIECE_SPACES, 0, 0, count)
+                col += myWidthProvider.getStringWidth(RepeatedCharSequence(' ', count))
+            } else if (end - start == count) {
+                addToken(start, end)
             } else {
-                addChars(SmartRepeatedCharSequence(' ', count))
+                layout.addPiece(SmartParagraphLayout.PIECE_REPEAT, start, end, count)
+                col += myWidthProvider.getStringWidth(SmartRepeatedCharSequence(chars.subSequence(start, end), 0, count))
             }
         }
 
+        fun addLineBreak() {
+            layout.addPiece(SmartParagraphLayout.PIECE_LINE_BREAK, 0, 0, 1)
+        }
+
         fun afterLineBreak() {
             col = 0
-            wordsOnLine = 0
-            lineCount++
-            lineIndent = nextIndent
-            lineWidth = nextWidth
-            lastSpace = null
-            leadingIndent = null
+            lineIndent = layout.indent
+            lineWidth = layout.width
+            lastSpaceStart = -1
+            leadingIndentStart = -1
+            lineStarted = false
         }
 
         while (true) {
-            val token = tokenizer.token ?: break
+            val type = tokenizer.tokenType ?: break
+            val start = tokenizer.tokenStart
+            val end = tokenizer.tokenEnd
+
+            if (!lineStarted) {
+                if (prevLayout != null && layout.lineCount > 0 && start >= syncOffset) {
+                    val prevLine = prevLayout.lineAt(start - delta)
+                    if (prevLine > 0) {
+                        // rest of the lines are the same as before the edit
+                        layout.appendShifted(prevLayout, prevLine, delta)
+                        return
+                    }
+                }
+                layout.startLine(start)
+                lineStarted = true
+            }
 
-            when (token.type) {
+            when (type) {
                 TextType.SPACE -> {
-                    if (col == 0) leadingIndent = token
-                    else lastSpace = token
+                    if (col == 0) {
+                        leadingIndentStart = start
+                        leadingIndentEnd = end
+                    } else {
+                        lastSpaceStart = start
+                        lastSpaceEnd = end
+                    }
                     advance()
                 }
 
                 TextType.WORD -> {
-                    if (col == 0 || col + myCharWidthProvider.getStringWidth(token.subSequence(chars)) + spaceWidth <= lineWidth) {
+                    val fits = if (lineBreaker != null) !lineBreaker.isBreakBefore(word) else col + myWidthProvider.getStringWidth(chars.subSequence(start, end)) + spaceWidth <= lineWidth
+                    if (col == 0 || fits) {
                         // fits, add it
-                        if (col > 0) addSpaces(lastSpace, 1)
-                        else if (lineIndent > 0) addSpaces(leadingIndent, lineIndent)
+                        if (col > 0) addSpaces(lastSpaceStart, lastSpaceEnd, 1)
+                        else if (lineIndent > 0) addSpaces(leadingIndentStart, leadingIndentEnd, lineIndent)
 
-                        addToken(token)
+                        if (lineBreaker != null) addToken(start, end, lineBreaker.wordWidth(word))
+                        else addToken(start, end)
+                        word++
                         advance()
-                        wordsOnLine++
                     } else {
                         // need to insert a line break and repeat
-                        addChars(lineBreak)
+                        addLineBreak()
                         afterLineBreak()
                     }
                 }
@@ -458,7 +561,7 @@ class SmartParagraphCharSequence(replacedChars: SmartCharSequence) : SmartCharSe
                 TextType.MARKDOWN_START_LINE -> {
                     // start a new line if not already new
                     if (col > 0) {
-                        addChars(lineBreak)
+                        addLineBreak()
                         afterLineBreak()
                     }
                     advance()
@@ -466,34 +569,31 @@ class SmartParagraphCharSequence(replacedChars: SmartCharSequence) : SmartCharSe
 
                 TextType.MARKDOWN_BREAK -> {
                     // start a new line if not already new
-                    if (myKeepMarkdownHardBreaks.get()) {
+                    if (layout.keepMarkdownHardBreaks) {
                         if (col > 0) {
-                            addToken(token)
+                            addToken(start, end)
                             afterLineBreak()
                         }
                     } else {
                         // treat as a space
-                        lastSpace = token
+                        lastSpaceStart = start
+                        lastSpaceEnd = end
                     }
                     advance()
                 }
 
                 TextType.BREAK -> {
-                    if (col > 0 && myKeepLineBreaks.get()) {
-                        addToken(token)
+                    if (col > 0 && layout.keepLineBreaks) {
+                        addToken(start, end)
                         afterLineBreak()
                     }
                     advance()
                 }
             }
         }
-
-        commitLastRange()
-
-        return SmartCharSequenceBase.smart(result)//.cachedProxy
     }
 
-    private fun addLine(result: ArrayList<CharSequence>, charSequence: SmartCharSequence, lineWords: ArrayList<Token<TextType>>, wordsOnLine: Int, lineCount: Int, extraSpaces: Int, lastLine: Boolean) {
+    private fun addLine(result: ArrayList<CharSequence>, charSequence: SmartCharSequence, lineWords: TextTokenList, wordsOnLine: Int, lineCount: Int, extraSpaces: Int, lastLine: Boolean) {
         var leadSpaces = 0
         var addSpaces = 0
         var remSpaces = 0
@@ -524,12 +624,12 @@ class SmartParagraphCharSequence(replacedChars: SmartCharSequence) : SmartCharSe
 
         if (leadSpaces > 0) result.add(RepeatedCharSequence(' ', leadSpaces))
         var firstWord = true
-        var lastSpace: Token<TextType>? = null
+        var lastSpace = -1
 
-        for (word in lineWords) {
-            if (word.type == TextType.WORD) {
+        for (word in 0..lineWords.size - 1) {
+            if (lineWords.type(word) == TextType.WORD) {
                 if (firstWord) firstWord = false
-                else if (lastSpace == null) {
+                else if (lastSpace < 0) {
                     val spcSize = if (remSpaces > 0) 1 else 0
                     val spcCount = addSpaces + 1 + spcSize
                     result.add(RepeatedCharSequence(' ', spcCount))
@@ -537,13 +637,13 @@ class SmartParagraphCharSequence(replacedChars: SmartCharSequence) : SmartCharSe
                 } else {
                     val spcSize = if (remSpaces > 0) 1 else 0
                     val spcCount = addSpaces + 1 + spcSize
-                    result.add(SmartReplacedCharSequence(lastSpace.subSequence(charSequence), RepeatedCharSequence(' ', spcCount)))
+                    result.add(SmartReplacedCharSequence(charSequence.subSequence(lineWords.start(lastSpace), lineWords.end(lastSpace)), RepeatedCharSequence(' ', spcCount)))
                     //                result.add(SmartRepeatedCharSequence(word.subSequence(charSequence), 0, spcCount))
                     remSpaces -= spcSize
                 }
 
-                result.add(word.subSequence(charSequence))
-                lastSpace = null
+                result.add(charSequence.subSequence(lineWords.start(word), lineWords.end(word)))
+                lastSpace = -1
             } else {
                 lastSpace = word
             }
@@ -575,15 +675,16 @@ class SmartParagraphCharSequence(replacedChars: SmartCharSequence) : SmartCharSe
 
     override val length: Int get() = resultSequence.length
     override fun getCharsImpl(dst: CharArray, dstOffset: Int) = resultSequence.getChars(dst, dstOffset)
+    override fun getCharsImpl(srcBegin: Int, srcEnd: Int, dst: CharArray, dstOffset: Int) = resultSequence.getChars(srcBegin, srcEnd, dst, dstOffset)
     override fun charAtImpl(index: Int): Char = resultSequence[index]
     override fun properSubSequence(startIndex: Int, endIndex: Int): SmartCharSequence = resultSequence.subSequence(startIndex, endIndex)
     override fun getCharsImpl(): CharArray = resultSequence.chars
     override fun getCachedProxy(): SmartCharSequence = resultSequence.cachedProxy
 
-    override fun trackedSourceLocation(index: Int): TrackedLocation {
+    override fun trackedSourceLocation(index: Int, location: TrackedLocationCursor) {
         checkIndex(index)
-        val location = resultSequence.trackedSourceLocation(index)
-        return adjustTrackedSourceLocation(location)
+        resultSequence.trackedSourceLocation(index, location)
+        adjustTrackedSourceLocation(location)
     }
 
     protected fun adjustTrackedLocation(location: TrackedLocation?): TrackedLocation? {
@@ -597,13 +698,13 @@ class SmartParagraphCharSequence(replacedChars: SmartCharSequence) : SmartCharSe
         return location
     }
 
-    protected fun adjustTrackedSourceLocation(location: TrackedLocation): TrackedLocation {
+    @Suppress("UNUSED_PARAMETER")
+    protected fun adjustTrackedSourceLocation(location: TrackedLocationCursor) {
         // FIX: adjust tracking location as needed
         //        val leadPadding = myLeftPadding.length + myPrefix.value.length
         //        if (leadPadding > 0) {
-        //            return location.withIndex(leadPadding + location.index).withPrevClosest(leadPadding + location.prevIndex).withNextClosest(leadPadding + location.nextIndex)
+        //            location.shiftIndex(leadPadding)
         //        }
-        return location
     }
 
     override fun getMarkers(id: String?): List<TrackedLocation> {
@@ -619,9 +720,10 @@ class SmartParagraphCharSequence(replacedChars: SmartCharSequence) : SmartCharSe
         return TrackedLocation.EMPTY_LIST
     }
 
-    override fun trackedLocation(source: Any?, offset: Int): TrackedLocation? {
-        val location = resultSequence.trackedLocation(source, offset)
-        return adjustTrackedLocation(location)
+    override fun trackedLocation(source: Any?, offset: Int, location: TrackedLocationCursor): Boolean {
+        if (!resultSequence.trackedLocation(source, offset, location)) return false
+        adjustTrackedSourceLocation(location)
+        return true
     }
 
     override fun splicedWith(other: CharSequence?): SmartCharSequence? {
@@ -652,13 +754,68 @@ enum class TextType {
     MARKDOWN_START_LINE;
 }
 
-class TextTokenizer(val myChars: CharSequence) {
+/**
+ * packed token list, each token is three ints: type ordinal, start and end
+ */
+class TextTokenList {
+    companion object {
+        private val TYPES = TextType.values()
+    }
+
+    private var myTokens = IntArray(48)
+    var size: Int = 0
+        private set
+
+    val lastIndex: Int get() = size - 1
+
+    fun isEmpty(): Boolean = size == 0
+
+    fun clear() {
+        size = 0
+    }
+
+    fun add(type: TextType, start: Int, end: Int) {
+        val pos = size * 3
+        if (pos == myTokens.size) myTokens = myTokens.copyOf(pos * 2)
+        myTokens[pos] = type.ordinal
+        myTokens[pos + 1] = start
+        myTokens[pos + 2] = end
+        size++
+    }
+
+    fun type(index: Int): TextType = TYPES[myTokens[index * 3]]
+    fun start(index: Int): Int = myTokens[index * 3 + 1]
+    fun end(index: Int): Int = myTokens[index * 3 + 2]
+
+    /**
+     * token at index as a newly allocated object
+     */
+    fun token(index: Int): Token<TextType> = Token(type(index), Range(start(index), end(index)))
+
+    /**
+     * copy of the tokens as objects, allocates a new list and a token per entry
+     */
+    fun asList(): List<Token<TextType>> {
+        val tokens = ArrayList<Token<TextType>>(size)
+        for (i in 0..size - 1) tokens.add(token(i))
+        return tokens
+    }
+}
+
+/**
+ * tokenizer is a cursor over the tokens, tokenType, tokenStart and tokenEnd give the current token without
+ * allocating, token creates an object for it on first access
+ */
+class TextTokenizer @JvmOverloads constructor(val myChars: CharSequence, val startIndex: Int = 0) {
     private var myMaxIndex = myChars.length
 
     private var myIndex = 0
     private var myLastPos = 0
     private var myInWord = false
     private var myLastConsecutiveSpaces = 0
+    private var myTokenType: TextType? = null
+    private var myTokenStart = 0
+    private var myTokenEnd = 0
     private var myToken: Token<TextType>? = null
 
     init {
@@ -675,7 +832,7 @@ class TextTokenizer(val myChars: CharSequence) {
     )
 
     var state: State
-        get() = State(this, myIndex, myLastPos, myInWord, myLastConsecutiveSpaces, myToken)
+        get() = State(this, myIndex, myLastPos, myInWord, myLastConsecutiveSpaces, token)
         set(value) {
             assert(this === value.myTextTokenizer)
 
@@ -683,34 +840,79 @@ class TextTokenizer(val myChars: CharSequence) {
             myLastPos = value.myLastPos
             myInWord = value.myInWord
             myLastConsecutiveSpaces = value.myLastConsecutiveSpaces
-            myToken = value.myToken
+            val token = value.myToken
+            myTokenType = token?.type as TextType?
+            myTokenStart = token?.range?.start ?: 0
+            myTokenEnd = token?.range?.end ?: 0
+            myToken = token
         }
 
+    /**
+     * restart at startIndex, which must be 0 or the start of a token
+     */
     fun reset() {
-        myIndex = 0
-        myLastPos = 0
+        myIndex = startIndex
+        myLastPos = startIndex
         myInWord = false
+        myTokenType = null
         myToken = null
         myLastConsecutiveSpaces = 0
-        next()
+        advance()
     }
 
-    val token: Token<TextType>? get() = myToken
+    val tokenType: TextType? get() = myTokenType
+    val tokenStart: Int get() = myTokenStart
+    val tokenEnd: Int get() = myTokenEnd
+
+    val token: Token<TextType>?
+        get() {
+            val tokenType = myTokenType ?: return null
+            var token = myToken
+            if (token == null) {
+                token = Token(tokenType, Range(myTokenStart, myTokenEnd))
+                myToken = token
+            }
+            return token
+        }
 
     fun asList(): List<Token<TextType>> {
-        val tokens = ArrayList<Token<TextType>>()
+        return asTokenList().asList()
+    }
+
+    /**
+     * tokenize from startIndex into a packed token list
+     */
+    fun asTokenList(): TextTokenList {
+        val tokens = TextTokenList()
         reset()
 
         while (true) {
-            val token = myToken ?: break
-            tokens.add(token)
-            next()
+            val tokenType = myTokenType ?: break
+            tokens.add(tokenType, myTokenStart, myTokenEnd)
+            advance()
         }
 
         return tokens
     }
 
     fun next(): Token<TextType>? {
+        advance()
+        return token
+    }
+
+    private fun setToken(type: TextType, start: Int, end: Int) {
+        myTokenType = type
+        myTokenStart = start
+        myTokenEnd = end
+    }
+
+    /**
+     * move to next token without creating its object view
+     *
+     * @return false if there are no more tokens
+     */
+    fun advance(): Boolean {
+        myTokenType = null
         myToken = null
         while (myIndex < myMaxIndex) {
             val c = myChars[myIndex]
@@ -719,7 +921,7 @@ class TextTokenizer(val myChars: CharSequence) {
                     myInWord = false
                     if (myLastPos < myIndex) {
                         // have a word
-                        myToken = Token(TextType.WORD, Range(myLastPos, myIndex))
+                        setToken(TextType.WORD, myLastPos, myIndex)
                         myLastPos = myIndex
                         break
                     }
@@ -730,7 +932,7 @@ class TextTokenizer(val myChars: CharSequence) {
                 // in white space
                 if (c != ' ' && c != '\t' && c != '\n' && c != SmartParagraphCharSequence.MARKDOWN_START_LINE_CHAR) {
                     if (myLastPos < myIndex) {
-                        myToken = Token(TextType.SPACE, Range(myLastPos, myIndex))
+                        setToken(TextType.SPACE, myLastPos, myIndex)
                         myLastPos = myIndex
                         myInWord = true
                         myLastConsecutiveSpaces = 0
@@ -742,25 +944,18 @@ class TextTokenizer(val myChars: CharSequence) {
                 } else {
                     if (c == '\n') {
                         if (myLastConsecutiveSpaces >= 2) {
-                            myToken = Token(TextType.MARKDOWN_BREAK, Range(myIndex - myLastConsecutiveSpaces, myIndex + 1))
-                            myLastPos = myIndex + 1
-                            if (c == ' ') myLastConsecutiveSpaces++
-                            else myLastConsecutiveSpaces = 0
-                            myIndex++
-                            break
+                            setToken(TextType.MARKDOWN_BREAK, myIndex - myLastConsecutiveSpaces, myIndex + 1)
                         } else {
-                            myToken = Token(TextType.BREAK, Range(myIndex, myIndex + 1))
-                            myLastPos = myIndex + 1
-                            if (c == ' ') myLastConsecutiveSpaces++
-                            else myLastConsecutiveSpaces = 0
-                            myIndex++
-                            break
+                            setToken(TextType.BREAK, myIndex, myIndex + 1)
                         }
+                        myLastPos = myIndex + 1
+                        myLastConsecutiveSpaces = 0
+                        myIndex++
+                        break
                     } else if (c == SmartParagraphCharSequence.MARKDOWN_START_LINE_CHAR) {
-                        myToken = Token(TextType.MARKDOWN_START_LINE, Range(myIndex, myIndex + 1))
+                        setToken(TextType.MARKDOWN_START_LINE, myIndex, myIndex + 1)
                         myLastPos = myIndex + 1
-                        if (c == ' ') myLastConsecutiveSpaces++
-                        else myLastConsecutiveSpaces = 0
+                        myLastConsecutiveSpaces = 0
                         myIndex++
                         break
                     } else {
@@ -773,11 +968,10 @@ class TextTokenizer(val myChars: CharSequence) {
         }
 
         if (myLastPos < myIndex) {
-            myToken = Token(if (myInWord) TextType.WORD else TextType.SPACE, Range(myLastPos, myIndex))
+            setToken(if (myInWord) TextType.WORD else TextType.SPACE, myLastPos, myIndex)
             myLastPos = myIndex
         }
 
-        return myToken
+        return myTokenType != null
     }
-
 }
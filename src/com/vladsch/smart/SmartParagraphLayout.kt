@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart
+
+import java.util.*
+
+/**
+ * line layout of a reflowed paragraph kept between reflows so a source edit only re-flows affected lines
+ *
+ * pieces of the result are kept in primitive columns as source ranges, repeated source ranges,
+ * spaces and line breaks. Each line records the source offset of its first token and its first piece.
+ * Layout settings are part of the layout, if any of them change the layout cannot be reused.
+ */
+internal class SmartParagraphLayout(
+    val chars: CharArray,
+    val firstIndent: Int,
+    val indent: Int,
+    val firstWidth: Int,
+    val width: Int,
+    val keepMarkdownHardBreaks: Boolean,
+    val keepLineBreaks: Boolean,
+    val charWidthProvider: CharWidthProvider
+) {
+    companion object {
+        const val PIECE_SOURCE = 0      // source range [start, end)
+        const val PIECE_REPEAT = 1      // source range [start, end) repeated to count characters
+        const val PIECE_SPACES = 2      // count spaces
+        const val PIECE_LINE_BREAK = 3  // inserted line break
+    }
+
+    private var myPieceKind = IntArray(64)
+    private var myPieceStart = IntArray(64)
+    private var myPieceEnd = IntArray(64)
+    private var myPieceCount = IntArray(64)
+    private var myLineStart = IntArray(16)
+    private var myLinePiece = IntArray(16)
+
+    var pieceCount: Int = 0
+        private set
+
+    var lineCount: Int = 0
+        private set
+
+    fun lineStart(line: Int): Int = myLineStart[line]
+
+    fun isSameSettings(other: SmartParagraphLayout): Boolean {
+        return firstIndent == other.firstIndent && indent == other.indent && firstWidth == other.firstWidth && width == other.width &&
+            keepMarkdownHardBreaks == other.keepMarkdownHardBreaks && keepLineBreaks == other.keepLineBreaks && charWidthProvider === other.charWidthProvider
+    }
+
+    /**
+     * @return line whose first token is at offset or -1
+     */
+    fun lineAt(offset: Int): Int {
+        val line = lineBefore(offset)
+        return if (line >= 0 && myLineStart[line] == offset) line else -1
+    }
+
+    /**
+     * @return last line starting at or before offset or -1 if none
+     */
+    fun lineBefore(offset: Int): Int {
+        var lo = -1
+        var hi = lineCount - 1
+        while (lo < hi) {
+            val mid = (lo + hi + 1) ushr 1
+            if (myLineStart[mid] <= offset) lo = mid else hi = mid - 1
+        }
+        return lo
+    }
+
+    fun startLine(offset: Int) {
+        if (lineCount == myLineStart.size) {
+            myLineStart = myLineStart.copyOf(lineCount * 2)
+            myLinePiece = myLinePiece.copyOf(lineCount * 2)
+        }
+        myLineStart[lineCount] = offset
+        myLinePiece[lineCount] = pieceCount
+        lineCount++
+    }
+
+    fun addPiece(kind: Int, start: Int, end: Int, count: Int) {
+        if (pieceCount == myPieceKind.size) {
+            val size = pieceCount * 2
+            myPieceKind = myPieceKind.copyOf(size)
+            myPieceStart = myPieceStart.copyOf(size)
+            myPieceEnd = myPieceEnd.copyOf(size)
+            myPieceCount = myPieceCount.copyOf(size)
+        }
+        myPieceKind[pieceCount] = kind
+        myPieceStart[pieceCount] = start
+        myPieceEnd[pieceCount] = end
+        myPieceCount[pieceCount] = count
+        pieceCount++
+    }
+
+    /**
+     * copy lines before given line of other layout, with their pieces up to the first piece of endLine
+     */
+    fun copyLines(other: SmartParagraphLayout, endLine: Int) {
+        for (line in 0..endLine - 1) {
+            startLine(other.myLineStart[line])
+            myLinePiece[line] = other.myLinePiece[line]
+        }
+
+        val endPiece = if (endLine < other.lineCount) other.myLinePiece[endLine] else other.pieceCount
+        for (i in 0..endPiece - 1) {
+            addPiece(other.myPieceKind[i], other.myPieceStart[i], other.myPieceEnd[i], other.myPieceCount[i])
+        }
+    }
+
+    /**
+     * append lines of other layout starting with given line, source offsets shifted by delta
+     */
+    fun appendShifted(other: SmartParagraphLayout, startLine: Int, delta: Int) {
+        val pieceDelta = pieceCount - other.myLinePiece[startLine]
+
+        for (line in startLine..other.lineCount - 1) {
+            if (lineCount == myLineStart.size) {
+                myLineStart = myLineStart.copyOf(lineCount * 2)
+                myLinePiece = myLinePiece.copyOf(lineCount * 2)
+            }
+            myLineStart[lineCount] = other.myLineStart[line] + delta
+            myLinePiece[lineCount] = other.myLinePiece[line] + pieceDelta
+            lineCount++
+        }
+
+        for (i in other.myLinePiece[startLine]..other.pieceCount - 1) {
+            val kind = other.myPieceKind[i]
+            if (kind == PIECE_SOURCE || kind == PIECE_REPEAT) {
+                addPiece(kind, other.myPieceStart[i] + delta, other.myPieceEnd[i] + delta, other.myPieceCount[i])
+            } else {
+                addPiece(kind, other.myPieceStart[i], other.myPieceEnd[i], other.myPieceCount[i])
+            }
+        }
+    }
+
+    /**
+     * materialize the layout, adjacent source ranges are combined into one sub-sequence
+     */
+    fun toSequence(source: SmartCharSequence): SmartCharSequence {
+        val lineBreak = SmartRepeatedCharSequence("\n")
+        val result = ArrayList<SmartCharSequence>()
+        var i = 0
+
+        while (i < pieceCount) {
+            when (myPieceKind[i]) {
+                PIECE_SOURCE -> {
+                    val start = myPieceStart[i]
+                    var end = myPieceEnd[i]
+                    while (i + 1 < pieceCount && myPieceKind[i + 1] == PIECE_SOURCE && myPieceStart[i + 1] == end) {
+                        i++
+                        end = myPieceEnd[i]
+                    }
+                    result.add(source.subSequence(start, end))
+                }
+                PIECE_REPEAT -> result.add(SmartRepeatedCharSequence(source.subSequence(myPieceStart[i], myPieceEnd[i]), 0, myPieceCount[i]))
+                PIECE_SPACES -> result.add(SmartRepeatedCharSequence(' ', myPieceCount[i]))
+                PIECE_LINE_BREAK -> result.add(lineBreak)
+            }
+            i++
+        }
+
+        return SmartCharSequenceBase.smart(result)
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart
+
+import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
+import java.util.function.Supplier
+
+/**
+ * batch re-flow of paragraphs on an executor
+ *
+ * each paragraph is re-flowed on a worker thread in the caller's version domain and grouped update,
+ * results are then stitched into one segmented sequence on the calling thread. Sequences cache lookups and
+ * update versions without synchronization, so paragraphs whose sources share a sequence instance are re-flowed
+ * one at a time on the calling thread. Sources must not be edited while the re-flow is running.
+ */
+object SmartParagraphReflow {
+    /**
+     * @param chars    sequences to combine, SmartParagraphCharSequence items are re-flowed in parallel
+     * @param executor executor for re-flow tasks, ForkJoinPool.commonPool() by default,
+     *                 Executors.newVirtualThreadPerTaskExecutor() can be used where available
+     * @return segmented sequence of all chars
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun reflow(chars: List<CharSequence>, executor: Executor = ForkJoinPool.commonPool()): SmartCharSequence {
+        var paragraphs = 0
+        for (item in chars) {
+            if (item is SmartParagraphCharSequence) paragraphs++
+        }
+
+        if (paragraphs > 1) {
+            val domain = SmartVersionDomain.current
+            val groupedSerial = domain.groupedSerial
+            val shared = sharedParagraphs(chars)
+            val futures = ArrayList<CompletableFuture<Void>>(paragraphs)
+            val started = Collections.newSetFromMap(IdentityHashMap<SmartParagraphCharSequence, Boolean>())
+
+            for (item in chars) {
+                if (item is SmartParagraphCharSequence && !shared.contains(item) && started.add(item)) {
+                    futures.add(CompletableFuture.runAsync(Runnable {
+                        domain.joinGroupedUpdate(groupedSerial, Supplier { item.reflow() })
+                    }, executor))
+                }
+            }
+
+            for (paragraph in shared) {
+                paragraph.reflow()
+            }
+
+            try {
+                CompletableFuture.allOf(*futures.toTypedArray()).join()
+            } catch (e: CompletionException) {
+                throw e.cause ?: e
+            }
+        }
+
+        return SmartSegmentedCharSequence(chars)
+    }
+
+    /**
+     * @return paragraphs whose source shares a sequence instance with the source of another paragraph
+     */
+    private fun sharedParagraphs(chars: List<CharSequence>): Set<SmartParagraphCharSequence> {
+        val owners = IdentityHashMap<SmartCharSequence, SmartParagraphCharSequence>()
+        val shared = Collections.newSetFromMap(IdentityHashMap<SmartParagraphCharSequence, Boolean>())
+
+        for (item in chars) {
+            if (item is SmartParagraphCharSequence) {
+                addSources(item, item.sourceChars, owners, shared)
+            }
+        }
+        return shared
+    }
+
+    private fun addSources(paragraph: SmartParagraphCharSequence, chars: SmartCharSequence, owners: IdentityHashMap<SmartCharSequence, SmartParagraphCharSequence>, shared: MutableSet<SmartParagraphCharSequence>) {
+        val owner = owners[chars]
+        if (owner != null) {
+            if (owner !== paragraph) {
+                shared.add(owner)
+                shared.add(paragraph)
+            }
+            return
+        }
+
+        owners[chars] = paragraph
+
+        val original = chars.original
+        if (original !== chars) addSources(paragraph, original, owners, shared)
+
+        when (chars) {
+            is SmartSegmentedCharSequence -> for (segment in chars.segments) addSources(paragraph, segment, owners, shared)
+            is SmartRopeCharSequence -> for (segment in chars.segments) addSources(paragraph, segment, owners, shared)
+            is SmartParagraphCharSequence -> addSources(paragraph, chars.sourceChars, owners, shared)
+        }
+    }
+}
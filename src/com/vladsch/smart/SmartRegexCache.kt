@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart
+
+import java.util.*
+
+/**
+ * compiled regex for string patterns, least recently used patterns are dropped when capacity is exceeded
+ *
+ * used by string pattern versions of extractGroups() so repeated calls with the same pattern only compile it once
+ */
+object SmartRegexCache {
+    const val DEFAULT_CAPACITY = 64
+
+    private val myCache = object : LinkedHashMap<String, Regex>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Regex>?): Boolean = size > myCapacity
+    }
+
+    private var myCapacity = DEFAULT_CAPACITY
+
+    @JvmStatic
+    var capacity: Int
+        get() = synchronized(myCache) { myCapacity }
+        set(value) {
+            synchronized(myCache) {
+                myCapacity = value.minLimit(1)
+                val iterator = myCache.keys.iterator()
+                while (myCache.size > myCapacity && iterator.hasNext()) {
+                    iterator.next()
+                    iterator.remove()
+                }
+            }
+        }
+
+    val size: Int get() = synchronized(myCache) { myCache.size }
+
+    @JvmStatic
+    fun regex(pattern: String): Regex {
+        synchronized(myCache) {
+            val regex = myCache[pattern]
+            if (regex != null) return regex
+        }
+
+        // compile outside the lock, if two threads compile the same pattern the last one is kept
+        val regex = pattern.toRegex()
+        synchronized(myCache) {
+            myCache.put(pattern, regex)
+        }
+        return regex
+    }
+
+    @JvmStatic
+    fun clear() {
+        synchronized(myCache) {
+            myCache.clear()
+        }
+    }
+}
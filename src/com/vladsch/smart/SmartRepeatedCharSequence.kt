@@ -121,15 +121,16 @@ class SmartRepeatedCharSequence(replacedChars: SmartCharSequence, chars: CharSeq
         }
 
     override fun getCharsImpl(dst: CharArray, dstOffset: Int) = resultSequence.getChars(dst, dstOffset)
+    override fun getCharsImpl(srcBegin: Int, srcEnd: Int, dst: CharArray, dstOffset: Int) = resultSequence.getChars(srcBegin, srcEnd, dst, dstOffset)
     override fun charAtImpl(index: Int): Char = resultSequence[index]
     override fun properSubSequence(startIndex: Int, endIndex: Int): SmartCharSequence = resultSequence.subSequence(startIndex, endIndex)
     override fun getCharsImpl(): CharArray = resultSequence.chars
     override fun getCachedProxy(): SmartCharSequence = resultSequence.cachedProxy
 
-    override fun trackedSourceLocation(index: Int): TrackedLocation {
+    override fun trackedSourceLocation(index: Int, location: TrackedLocationCursor) {
         checkIndex(index)
-        val location = resultSequence.trackedSourceLocation(index)
-        return adjustTrackedSourceLocation(location)
+        resultSequence.trackedSourceLocation(index, location)
+        adjustTrackedSourceLocation(location)
     }
 
     protected fun adjustTrackedLocation(location: TrackedLocation?): TrackedLocation? {
@@ -142,12 +143,12 @@ class SmartRepeatedCharSequence(replacedChars: SmartCharSequence, chars: CharSeq
         return location
     }
 
-    protected fun adjustTrackedSourceLocation(location: TrackedLocation): TrackedLocation {
+    @Suppress("UNUSED_PARAMETER")
+    protected fun adjustTrackedSourceLocation(location: TrackedLocationCursor) {
         //        val leadPadding = myLeftPadding.length + myPrefix.value.length
         //        if (leadPadding > 0) {
-        //            return location.withIndex(leadPadding + location.index).withPrevClosest(leadPadding + location.prevIndex).withNextClosest(leadPadding + location.nextIndex)
+        //            location.shiftIndex(leadPadding)
         //        }
-        return location
     }
 
     override fun getMarkers(id: String?): List<TrackedLocation> {
@@ -163,9 +164,10 @@ class SmartRepeatedCharSequence(replacedChars: SmartCharSequence, chars: CharSeq
         return TrackedLocation.EMPTY_LIST
     }
 
-    override fun trackedLocation(source: Any?, offset: Int): TrackedLocation? {
-        val location = resultSequence.trackedLocation(source, offset)
-        return adjustTrackedLocation(location)
+    override fun trackedLocation(source: Any?, offset: Int, location: TrackedLocationCursor): Boolean {
+        if (!resultSequence.trackedLocation(source, offset, location)) return false
+        adjustTrackedSourceLocation(location)
+        return true
     }
 
     override fun splicedWith(other: CharSequence?): SmartCharSequence? {
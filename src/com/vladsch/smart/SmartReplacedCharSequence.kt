@@ -68,20 +68,21 @@ class SmartReplacedCharSequence(replacedChars: SmartCharSequence, val chars: Cha
         if (myChars is CharSequenceBackedByArray) {
             myChars.getChars(dst, dstOffset)
         } else {
-            val iMax = length
-            for (i in 0..iMax-1) {
-                dst[dstOffset+i] = myChars[i]
-            }
+            myChars.getChars(0, myChars.length, dst, dstOffset)
         }
     }
 
+    override fun getCharsImpl(srcBegin: Int, srcEnd: Int, dst: CharArray, dstOffset: Int) {
+        myChars.getChars(srcBegin, srcEnd, dst, dstOffset)
+    }
+
     override fun properSubSequence(startIndex: Int, endIndex: Int): SmartReplacedCharSequence {
         return SmartReplacedCharSequence(myReplacedChars, myChars.subSequence(startIndex, endIndex))
     }
 
-    override fun trackedSourceLocation(index: Int): TrackedLocation {
+    override fun trackedSourceLocation(index: Int, location: TrackedLocationCursor) {
         checkIndex(index)
-        return myReplacedChars.trackedSourceLocation(if (index < myReplacedChars.length) index else myReplacedChars.length - 1)
+        myReplacedChars.trackedSourceLocation(if (index < myReplacedChars.length) index else myReplacedChars.length - 1, location)
     }
 
     override fun getMarkers(id: String?): List<TrackedLocation> {
@@ -102,24 +103,19 @@ class SmartReplacedCharSequence(replacedChars: SmartCharSequence, val chars: Cha
         return TrackedLocation.EMPTY_LIST
     }
 
-    protected fun adjustTrackedLocation(location: TrackedLocation?): TrackedLocation? {
-        if (location != null) {
-            val length = length
-            if (length < myReplacedChars.length) {
-                @Suppress("NAME_SHADOWING")
-                var location = location
-                if (location.index > length) location = location.withIndex(length)
-                if (location.prevIndex > length) location = location.withPrevClosest(length)
-                if (location.prevIndex > length) location = location.withNextClosest(length)
-                return location
-            }
+    protected fun adjustTrackedLocation(location: TrackedLocation): TrackedLocation {
+        val length = length
+        if (length < myReplacedChars.length && (location.index > length || location.prevIndex > length || location.nextIndex > length)) {
+            return TrackedLocationCursor().set(location).limitIndex(length).toTrackedLocation()
         }
         return location
     }
 
-    override fun trackedLocation(source: Any?, offset: Int): TrackedLocation? {
-        val location = myReplacedChars.trackedLocation(source, offset)
-        return adjustTrackedLocation(location)
+    override fun trackedLocation(source: Any?, offset: Int, location: TrackedLocationCursor): Boolean {
+        if (!myReplacedChars.trackedLocation(source, offset, location)) return false
+        val length = length
+        if (length < myReplacedChars.length) location.limitIndex(length)
+        return true
     }
 
     override fun splicedWith(other: CharSequence?): SmartCharSequence? {
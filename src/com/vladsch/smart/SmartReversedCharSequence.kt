@@ -48,9 +48,22 @@ class SmartReversedCharSequence(chars: SmartCharSequence) : SmartCharSequenceBas
 //    override fun charAtImpl(index: Int): Char = myChars[reversedOffset(index)]
 
     override fun getCharsImpl(dst: CharArray, dstOffset: Int) {
-        val iMax = length
-        for (i in 0..iMax - 1) {
-            dst[dstOffset + reversedOffset(i)] = myChars[i]
+        getCharsImpl(0, length, dst, dstOffset)
+    }
+
+    override fun getCharsImpl(srcBegin: Int, srcEnd: Int, dst: CharArray, dstOffset: Int) {
+        // bulk copy of the mirrored range then reverse in place
+        val length = length
+        myChars.getChars(length - srcEnd, length - srcBegin, dst, dstOffset)
+
+        var i = dstOffset
+        var j = dstOffset + srcEnd - srcBegin - 1
+        while (i < j) {
+            val c = dst[i]
+            dst[i] = dst[j]
+            dst[j] = c
+            i++
+            j--
         }
     }
 
@@ -59,15 +72,15 @@ class SmartReversedCharSequence(chars: SmartCharSequence) : SmartCharSequenceBas
         return String(chars)
     }
 
-    override fun properSubSequence(startIndex: Int, endIndex: Int): SmartReversedCharSequence = SmartReversedCharSequence(myChars.subSequence(startIndex, endIndex))
+    override fun properSubSequence(startIndex: Int, endIndex: Int): SmartReversedCharSequence = SmartReversedCharSequence(myChars.subSequence(length - endIndex, length - startIndex))
 
     protected fun reversedOffset(offset: Int): Int = length - offset - 1
 
-    override fun trackedSourceLocation(index: Int): TrackedLocation {
+    override fun trackedSourceLocation(index: Int, location: TrackedLocationCursor) {
         checkIndex(index)
 
-        val location = myChars.trackedSourceLocation(reversedOffset(index))
-        return adjustTrackedSourceLocation(location)
+        myChars.trackedSourceLocation(reversedOffset(index), location)
+        location.reverseIndex(length)
     }
 
     override fun getMarkers(id: String?): List<TrackedLocation> {
@@ -94,9 +107,10 @@ class SmartReversedCharSequence(chars: SmartCharSequence) : SmartCharSequenceBas
         return location.withIndex(reversedOffset(location.index)).withPrevClosest(reversedOffset(location.prevIndex)).withNextClosest(reversedOffset(location.nextIndex))
     }
 
-    override fun trackedLocation(source: Any?, offset: Int): TrackedLocation? {
-        val location = myChars.trackedLocation(source, offset)
-        return adjustTrackedLocation(location)
+    override fun trackedLocation(source: Any?, offset: Int, location: TrackedLocationCursor): Boolean {
+        if (!myChars.trackedLocation(source, offset, location)) return false
+        location.reverseIndex(length)
+        return true
     }
 
     override fun splicedWith(other: CharSequence?): SmartCharSequence? {
@@ -0,0 +1,413 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart
+
+import java.util.*
+
+/**
+ * segmented sequence backed by a balanced (AVL) tree of segments
+ *
+ * charAt, subSequence, insert, delete and replace are O(log n) in the number of segments and do not
+ * nest sequences, the result of editing a rope is a rope sharing unchanged sub-trees with the original.
+ * Segments which are themselves ropes or segmented sequences are flattened into the tree.
+ */
+open class SmartRopeCharSequence : SmartCharSequenceBase<SmartCharSequence>, TrackingCharSequenceMarkerHolder {
+    protected val myRoot: SmartRopeNode?
+    protected val myVersion: SmartVersion
+    protected val myCacheVersion: SmartDependentRunnableVersionHolder
+    private var mySegments: List<SmartCharSequence>? = null
+
+    // leaf of the last lookup with its start, a hint for the next lookup checked before use
+    @Volatile private var myLastHit: LeafHit? = null
+
+    protected class LeafHit(val leaf: SmartRopeNode, val start: Int)
+
+    internal constructor(root: SmartRopeNode?) {
+        myRoot = root
+        myVersion = root?.version ?: SmartImmutableVersion()
+        myCacheVersion = SmartDependentRunnableVersionHolder(this, Runnable { computeCachedData() })
+    }
+
+    constructor(vararg charSequences: CharSequence) : this(charSequences.toList())
+
+    constructor(charSequences: Collection<CharSequence>) : this(ropeOf(charSequences))
+
+    internal fun computeCachedData() {
+        myRoot?.refreshLengths()
+        myLastHit = null
+    }
+
+    private fun freshen() {
+        // only variable segments can change length
+        if (myRoot?.isVariable == true) myCacheVersion.nextVersion()
+    }
+
+    /**
+     * segments in order, computed on first use
+     */
+    val segments: List<SmartCharSequence>
+        get() {
+            var segments = mySegments
+            if (segments == null) {
+                val list = ArrayList<SmartCharSequence>(myRoot?.count ?: 0)
+                myRoot?.addSegments(list)
+                segments = list
+                mySegments = list
+            }
+            return segments
+        }
+
+    val height: Int get() = myRoot?.height ?: 0
+
+    val isVariableContent: Boolean get() = myRoot?.isVariable ?: false
+
+    override fun getVersion(): SmartVersion = myVersion
+
+    override fun addStats(stats: SmartCharSequence.Stats) {
+        var maxNesting = 0
+
+        for (segment in segments) {
+            val childStats = SmartCharSequence.Stats()
+            segment.addStats(childStats)
+            stats.segments += childStats.segments
+            maxNesting = maxNesting.minLimit(childStats.nesting)
+        }
+
+        stats.nesting = maxNesting + 1
+    }
+
+    override val length: Int
+        get() {
+            freshen()
+            return myRoot?.length ?: 0
+        }
+
+    /**
+     * find leaf containing index and its start offset, the result is local to the caller
+     */
+    protected fun findLeaf(index: Int): LeafHit? {
+        freshen()
+
+        val lastHit = myLastHit
+        if (lastHit != null && index >= lastHit.start && index < lastHit.start + lastHit.leaf.length) return lastHit
+
+        var node = myRoot ?: return null
+        if (index < 0 || index >= node.length) return null
+
+        var start = 0
+        while (true) {
+            val left = node.left ?: break
+            if (index < start + left.length) {
+                node = left
+            } else {
+                start += left.length
+                node = node.right!!
+            }
+        }
+
+        val hit = LeafHit(node, start)
+        myLastHit = hit
+        return hit
+    }
+
+    override fun charAtImpl(index: Int): Char {
+        val hit = findLeaf(index) ?: throw IndexOutOfBoundsException("charAt($index) is not within underlying char sequence range [0, $length)")
+        return hit.leaf.segment!![index - hit.start]
+    }
+
+    override fun getCharsImpl(dst: CharArray, dstOffset: Int) {
+        freshen()
+        var offset = dstOffset
+        for (segment in segments) {
+            segment.getChars(dst, offset)
+            offset += segment.length
+        }
+    }
+
+    override fun getCharsImpl(srcBegin: Int, srcEnd: Int, dst: CharArray, dstOffset: Int) {
+        freshen()
+        myRoot?.getChars(srcBegin, srcEnd, dst, dstOffset - srcBegin)
+    }
+
+    override fun properSubSequence(startIndex: Int, endIndex: Int): SmartCharSequence {
+        val hit = findLeaf(startIndex)
+        if (hit != null && endIndex <= hit.start + hit.leaf.length) {
+            // subSequence of one of the segments
+            return hit.leaf.segment!!.subSequence(startIndex - hit.start, endIndex - hit.start)
+        }
+
+        val tail = split(myRoot, startIndex).second
+        return SmartRopeCharSequence(split(tail, endIndex - startIndex).first)
+    }
+
+    override fun replace(charSequence: CharSequence, startIndex: Int, endIndex: Int): SmartCharSequence {
+        val length = length
+        if (startIndex < 0 || startIndex > length || endIndex < startIndex) {
+            throw IndexOutOfBoundsException("replace($startIndex, $endIndex) is not within range [0, $length]")
+        }
+
+        val canEliminate = charSequence.length == 0 && (charSequence !is SmartCharSequence || !charSequence.version.isMutable)
+        if (canEliminate && startIndex == endIndex) return this
+
+        val (head, rest) = split(myRoot, startIndex)
+        val tail = split(rest, endIndex.maxLimit(length) - startIndex).second
+        val middle = if (canEliminate) null else ropeOf(listOf(charSequence))
+        return SmartRopeCharSequence(join(join(head, middle), tail))
+    }
+
+    override fun append(vararg others: CharSequence): SmartCharSequence {
+        return SmartRopeCharSequence(join(myRoot, ropeOf(others.toList())))
+    }
+
+    override fun appendOptimized(vararg others: CharSequence): SmartCharSequence {
+        return SmartRopeCharSequence(join(myRoot, ropeOf(spliceSequences(others.toList()))))
+    }
+
+    override fun flattened(sequences: ArrayList<SmartCharSequence>) {
+        sequences.addAll(segments)
+    }
+
+    override fun trackedSourceLocation(index: Int, location: TrackedLocationCursor) {
+        val hit = findLeaf(index) ?: throw IndexOutOfBoundsException("charAt($index) is not within underlying char sequence range [0, $length)")
+        hit.leaf.segment!!.trackedSourceLocation(index - hit.start, location)
+        location.shiftIndex(hit.start)
+    }
+
+    override fun trackedLocation(source: Any?, offset: Int, location: TrackedLocationCursor): Boolean {
+        freshen()
+        var start = 0
+        for (segment in segments) {
+            if (segment.trackedLocation(source, offset, location)) {
+                location.shiftIndex(start)
+                return true
+            }
+            start += segment.length
+        }
+        return false
+    }
+
+    override fun getMarkers(id: String?): List<TrackedLocation> {
+        if (!isVariableContent) return TrackedLocation.EMPTY_LIST
+
+        freshen()
+        val markers = ArrayList<TrackedLocation>()
+        val length = length
+        var start = 0
+        var location: TrackedLocationCursor? = null
+        for (segment in segments) {
+            val end = start + segment.length
+            if (segment is SmartCharSequenceMarker && (id == null || id == segment.id)) {
+                if (location == null) location = TrackedLocationCursor()
+                val marker = TrackedLocationCursor().set(start, 0, segment)
+                if (start > 0) {
+                    // have real previous
+                    trackedSourceLocation(start - 1, location)
+                    marker.setPrevClosest(location.index, location.offset, location.source)
+                }
+
+                if (end < length) {
+                    // there is a next real segment after the marker
+                    trackedSourceLocation(end, location)
+                    marker.setNextClosest(location.index, location.offset, location.source)
+                }
+                markers.add(marker.toTrackedLocation())
+            } else {
+                val locations = segment.getMarkers(id)
+                for (segmentLocation in locations) {
+                    markers.add(segmentLocation.withIndex(start + segmentLocation.index).withPrevClosest(start + segmentLocation.prevIndex).withNextClosest(start + segmentLocation.nextIndex))
+                }
+            }
+            start = end
+        }
+
+        return if (markers.isEmpty()) TrackedLocation.EMPTY_LIST else markers
+    }
+
+    override fun splicedWith(other: CharSequence?): SmartCharSequence? {
+        val root = myRoot ?: return null
+        if (other == null) return null
+
+        val merged = root.lastLeaf.segment!!.splicedWith(other) ?: return null
+        return SmartRopeCharSequence(root.withLastLeaf(SmartRopeNode(merged)))
+    }
+
+    companion object {
+        /**
+         * balanced tree of the given sequences, nested ropes and segmented sequences are flattened
+         */
+        internal fun ropeOf(charSequences: Collection<CharSequence>): SmartRopeNode? {
+            var root: SmartRopeNode? = null
+            val leaves = ArrayList<SmartRopeNode>()
+
+            for (charSequence in charSequences) {
+                val contents = smartContents(charSequence)
+                if (contents is SmartRopeCharSequence) {
+                    root = join(join(root, build(leaves, 0, leaves.size)), contents.myRoot)
+                    leaves.clear()
+                } else {
+                    val segments = ArrayList<SmartCharSequence>()
+                    contents.flattened(segments)
+                    for (segment in segments) {
+                        leaves.add(SmartRopeNode(segment))
+                    }
+                }
+            }
+
+            return join(root, build(leaves, 0, leaves.size))
+        }
+
+        internal fun build(leaves: List<SmartRopeNode>, startIndex: Int, endIndex: Int): SmartRopeNode? {
+            if (startIndex >= endIndex) return null
+            if (startIndex + 1 == endIndex) return leaves[startIndex]
+            val mid = (startIndex + endIndex + 1) / 2
+            return SmartRopeNode(build(leaves, startIndex, mid)!!, build(leaves, mid, endIndex)!!)
+        }
+
+        /**
+         * concatenate two trees, O(height difference)
+         */
+        internal fun join(left: SmartRopeNode?, right: SmartRopeNode?): SmartRopeNode? {
+            if (left == null) return right
+            if (right == null) return left
+
+            if (left.height > right.height + 1) return balanced(left.left!!, join(left.right, right)!!)
+            if (right.height > left.height + 1) return balanced(join(left, right.left)!!, right.right!!)
+            return SmartRopeNode(left, right)
+        }
+
+        private fun balanced(left: SmartRopeNode, right: SmartRopeNode): SmartRopeNode {
+            if (left.height > right.height + 1) {
+                val leftLeft = left.left!!
+                val leftRight = left.right!!
+                if (leftLeft.height >= leftRight.height) return SmartRopeNode(leftLeft, SmartRopeNode(leftRight, right))
+                return SmartRopeNode(SmartRopeNode(leftLeft, leftRight.left!!), SmartRopeNode(leftRight.right!!, right))
+            }
+
+            if (right.height > left.height + 1) {
+                val rightLeft = right.left!!
+                val rightRight = right.right!!
+                if (rightRight.height >= rightLeft.height) return SmartRopeNode(SmartRopeNode(left, rightLeft), rightRight)
+                return SmartRopeNode(SmartRopeNode(left, rightLeft.left!!), SmartRopeNode(rightLeft.right!!, rightRight))
+            }
+
+            return SmartRopeNode(left, right)
+        }
+
+        /**
+         * split tree into the first index characters and the rest, O(log n)
+         */
+        internal fun split(node: SmartRopeNode?, index: Int): Pair<SmartRopeNode?, SmartRopeNode?> {
+            if (node == null) return Pair(null, null)
+            if (index <= 0) return Pair(null, node)
+            if (index >= node.length) return Pair(node, null)
+
+            val left = node.left
+            if (left == null) {
+                val segment = node.segment!!
+                return Pair(SmartRopeNode(segment.subSequence(0, index)), SmartRopeNode(segment.subSequence(index, segment.length)))
+            }
+
+            val right = node.right!!
+            if (index < left.length) {
+                val parts = split(left, index)
+                return Pair(parts.first, join(parts.second, right))
+            } else if (index > left.length) {
+                val parts = split(right, index - left.length)
+                return Pair(join(left, parts.first), parts.second)
+            }
+            return Pair(left, right)
+        }
+    }
+}
+
+/**
+ * rope tree node, a leaf has a segment, an inner node has both left and right children
+ *
+ * structure is immutable, only the cached lengths of variable sub-trees are refreshed when segment lengths change
+ */
+class SmartRopeNode private constructor(val segment: SmartCharSequence?, val left: SmartRopeNode?, val right: SmartRopeNode?) {
+    constructor(segment: SmartCharSequence) : this(segment, null, null)
+
+    constructor(left: SmartRopeNode, right: SmartRopeNode) : this(null, left, right)
+
+    var length: Int = if (segment != null) segment.length else left!!.length + right!!.length
+        private set
+
+    val height: Int = if (segment != null) 1 else Math.max(left!!.height, right!!.height) + 1
+    val count: Int = if (segment != null) 1 else left!!.count + right!!.count
+    val isVariable: Boolean = if (segment != null) segment.version.isMutable else left!!.isVariable || right!!.isVariable
+
+    private var myVersion: SmartVersion? = null
+
+    val version: SmartVersion
+        get() {
+            var version = myVersion
+            if (version == null) {
+                // sub-trees without variable segments never change, no need to check their segments
+                version = if (!isVariable) IMMUTABLE_VERSION
+                else if (segment != null) segment.version
+                else SmartDependentVersion(listOf(left!!.version, right!!.version))
+                myVersion = version
+            }
+            return version
+        }
+
+    val lastLeaf: SmartRopeNode get() = right?.lastLeaf ?: this
+
+    fun refreshLengths(): Int {
+        if (isVariable) {
+            length = if (segment != null) segment.length else left!!.refreshLengths() + right!!.refreshLengths()
+        }
+        return length
+    }
+
+    fun addSegments(segments: ArrayList<SmartCharSequence>) {
+        if (segment != null) {
+            segments.add(segment)
+        } else {
+            left!!.addSegments(segments)
+            right!!.addSegments(segments)
+        }
+    }
+
+    // copy chars in [srcBegin, srcEnd) relative to this node, char at node index i goes to dst[dstBase + i]
+    fun getChars(srcBegin: Int, srcEnd: Int, dst: CharArray, dstBase: Int) {
+        if (srcBegin >= srcEnd) return
+
+        if (segment != null) {
+            segment.getChars(srcBegin, srcEnd, dst, dstBase + srcBegin)
+        } else {
+            val leftLength = left!!.length
+            if (srcBegin < leftLength) left.getChars(srcBegin, srcEnd.maxLimit(leftLength), dst, dstBase)
+            if (srcEnd > leftLength) right!!.getChars((srcBegin - leftLength).minLimit(0), srcEnd - leftLength, dst, dstBase + leftLength)
+        }
+    }
+
+    fun withLastLeaf(leaf: SmartRopeNode): SmartRopeNode {
+        if (segment != null) return leaf
+        return SmartRopeNode(left!!, right!!.withLastLeaf(leaf))
+    }
+
+    companion object {
+        private val IMMUTABLE_VERSION = SmartImmutableVersion()
+    }
+}
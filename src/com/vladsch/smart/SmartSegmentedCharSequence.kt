@@ -26,11 +26,24 @@ import java.util.*
 open class SmartSegmentedCharSequence : SmartCharSequenceBase<SmartCharSequence>, TrackingCharSequenceMarkerHolder {
     protected val myVersion: SmartVersion
     protected val myCacheVersion: SmartDependentRunnableVersionHolder
-    private var myLengths = IntArray(0)
     private var myVariableContent: Boolean = false
     val segments: List<SmartCharSequence>
-    private var myLastSegment: Int? = null
+
+    // segment and start of the last lookup packed as by segmentHit(), a hint for the next lookup validated before use
+    @Volatile private var myLastHit: Long = -1L
+
+    // segment lengths as of last update, fenwick tree over them and total
+    private var myIsIndexed = false
+    private var mySegmentLengths = IntArray(0)
+    private var myLengthIndex = IntArray(1)
     private var myLengthSpan: Int = 0
+    private var myLength: Int = 0
+
+    // mutable segments which push their changes mark themselves dirty, the rest are checked on every update
+    private var myTrackers: Array<SegmentTracker>? = null
+    private var myPulledSegments = IntArray(0)
+    private val myDirtySegments = BitSet()
+    @Volatile private var myPushDisabled = false
 
     override fun addStats(stats: SmartCharSequence.Stats) {
         var maxNesting = 0
@@ -58,27 +71,115 @@ open class SmartSegmentedCharSequence : SmartCharSequenceBase<SmartCharSequence>
         myCacheVersion = SmartDependentRunnableVersionHolder(this, Runnable { computeCachedData() })
     }
 
+    private inner class SegmentTracker(val index: Int) : SmartPushDependent {
+        override fun invalidate(pass: Int) {
+            synchronized(myDirtySegments) {
+                myDirtySegments.set(index)
+            }
+        }
+
+        override fun disablePush() {
+            myPushDisabled = true
+        }
+    }
+
     internal fun computeCachedData() {
-        val lengths = IntArray(segments.size + 1)
+        if (!myIsIndexed) {
+            indexSegments()
+        } else if (myPushDisabled) {
+            // a segment stopped pushing, check all mutable ones
+            val trackers = myTrackers
+            if (trackers != null) {
+                for (tracker in trackers) updateSegmentLength(tracker.index)
+            }
+            for (index in myPulledSegments) updateSegmentLength(index)
+        } else {
+            val dirty: BitSet
+            synchronized(myDirtySegments) {
+                dirty = myDirtySegments.clone() as BitSet
+                myDirtySegments.clear()
+            }
+
+            var index = dirty.nextSetBit(0)
+            while (index >= 0) {
+                updateSegmentLength(index)
+                index = dirty.nextSetBit(index + 1)
+            }
+
+            for (pulled in myPulledSegments) updateSegmentLength(pulled)
+        }
+
+        myLastHit = -1L
+    }
+
+    private fun indexSegments() {
+        val iMax = segments.size
+        val lengths = IntArray(iMax)
+        val trackers = ArrayList<SegmentTracker>()
+        val pulled = ArrayList<Int>()
         var length = 0
-        var i = 1
-        lengths[0] = 0
-        var variableContent = false
-        for (charSequence in segments) {
-            length += charSequence.length
-            lengths[i++] = length
-            if (!variableContent) {
-                variableContent = charSequence.version.isMutable
+
+        for (i in 0..iMax - 1) {
+            val charSequence = segments[i]
+            lengths[i] = charSequence.length
+            length += lengths[i]
+
+            val version = charSequence.version
+            if (version.isMutable) {
+                if (version is SmartPushVersion && version.isPushable) {
+                    val tracker = SegmentTracker(i)
+                    version.addDependent(tracker)
+                    trackers.add(tracker)
+                } else {
+                    pulled.add(i)
+                }
             }
         }
 
-        myLengths = lengths
-        myVariableContent = variableContent
-        myLastSegment = 0
+        // fenwick tree, 1 based
+        val lengthIndex = IntArray(iMax + 1)
+        for (i in 1..iMax) {
+            lengthIndex[i] += lengths[i - 1]
+            val parent = i + i.and(-i)
+            if (parent <= iMax) lengthIndex[parent] += lengthIndex[i]
+        }
+
+        mySegmentLengths = lengths
+        myLengthIndex = lengthIndex
+        myLengthSpan = Integer.highestOneBit(iMax)
+        myLength = length
+        myVariableContent = trackers.size > 0 || pulled.size > 0
+        myTrackers = if (trackers.isEmpty()) null else trackers.toTypedArray()
+        myPulledSegments = pulled.toIntArray()
+        myIsIndexed = true
+    }
+
+    private fun updateSegmentLength(segmentIndex: Int) {
+        val length = segments[segmentIndex].length
+        val delta = length - mySegmentLengths[segmentIndex]
+        if (delta != 0) {
+            mySegmentLengths[segmentIndex] = length
+            myLength += delta
+
+            val lengthIndex = myLengthIndex
+            var i = segmentIndex + 1
+            while (i < lengthIndex.size) {
+                lengthIndex[i] += delta
+                i += i.and(-i)
+            }
+        }
+    }
 
-        i = 1
-        while (i < lengths.size) i = i.shl(1)
-        myLengthSpan = i
+    // total length of segments before segmentIndex
+    private fun prefixLength(segmentIndex: Int): Int {
+        val lengthIndex = myLengthIndex
+        var length = 0
+        var i = segmentIndex
+        while (i > 0) {
+            length += lengthIndex[i]
+            i -= i.and(-i)
+        }
+        return length
     }
 
     val isVariableContent: Boolean
@@ -90,16 +191,15 @@ open class SmartSegmentedCharSequence : SmartCharSequenceBase<SmartCharSequence>
     override val length: Int
         get() {
             myCacheVersion.nextVersion()
-            return myLengths[myLengths.size - 1]
+            return myLength
         }
 
     public override fun charAtImpl(index: Int): Char {
-        val i = getCharSequenceIndex(index)
-        if (i >= 0) {
-            myLastSegment = i
-            return segments[i][index - myLengths[i]]
+        val hit = getCharSequenceIndex(index)
+        if (hit >= 0) {
+            return segments[hitSegment(hit)][index - hitStart(hit)]
         }
-        throw IndexOutOfBoundsException("charAt(" + index + ") is not within underlying char sequence range [0, " + myLengths[myLengths.size - 1])
+        throw IndexOutOfBoundsException("charAt(" + index + ") is not within underlying char sequence range [0, " + myLength)
     }
 
     override fun getVersion(): SmartVersion {
@@ -113,22 +213,23 @@ open class SmartSegmentedCharSequence : SmartCharSequenceBase<SmartCharSequence>
 
     fun startIndex(segmentIndex: Int): Int {
         myCacheVersion.nextVersion()
-        return myLengths[segmentIndex]
+        return prefixLength(segmentIndex)
     }
 
     fun endIndex(segmentIndex: Int): Int {
         myCacheVersion.nextVersion()
-        return myLengths[segmentIndex + 1]
+        return prefixLength(segmentIndex) + mySegmentLengths[segmentIndex]
     }
 
     fun length(segmentIndex: Int): Int {
         myCacheVersion.nextVersion()
-        return myLengths[segmentIndex + 1] - myLengths[segmentIndex]
+        return mySegmentLengths[segmentIndex]
     }
 
     fun lastIndex(segmentIndex: Int): Int {
         myCacheVersion.nextVersion()
-        return if (myLengths[segmentIndex + 1] > myLengths[segmentIndex]) myLengths[segmentIndex + 1] - 1 else myLengths[segmentIndex]
+        val startIndex = prefixLength(segmentIndex)
+        return if (mySegmentLengths[segmentIndex] > 0) startIndex + mySegmentLengths[segmentIndex] - 1 else startIndex
     }
 
     override fun getMarkers(id: String?): List<TrackedLocation> {
@@ -136,33 +237,36 @@ open class SmartSegmentedCharSequence : SmartCharSequenceBase<SmartCharSequence>
         if (myVariableContent) {
             val markers = ArrayList<TrackedLocation>()
             val iMax = segments.size
+            var startIndex = 0
+            var location: TrackedLocationCursor? = null
             for (i in 0..iMax - 1) {
                 val charSequence = segments[i]
+                val endIndex = startIndex + mySegmentLengths[i]
                 if (charSequence is SmartCharSequenceMarker && (id == null || id == charSequence.id)) {
-                    val index = myLengths[i]
-                    var trackedLocation = TrackedLocation(index, 0, charSequence)
-                    if (index > 0) {
+                    if (location == null) location = TrackedLocationCursor()
+                    val marker = TrackedLocationCursor().set(startIndex, 0, charSequence)
+                    if (startIndex > 0) {
                         // have real previous
-                        val prevLocation = trackedSourceLocation(index - 1)
-                        trackedLocation = trackedLocation.withPrevClosest(prevLocation.index, prevLocation.offset, prevLocation.source)
+                        trackedSourceLocation(startIndex - 1, location)
+                        marker.setPrevClosest(location.index, location.offset, location.source)
                     }
 
-                    if (myLengths[i + 1] < length) {
+                    if (endIndex < myLength) {
                         // there is a next real segment after the marker
-                        val nextIndex = myLengths[i + 1]
-                        val nextLocation = trackedSourceLocation(nextIndex)
-                        trackedLocation = trackedLocation.withPrevClosest(nextLocation.index, nextLocation.offset, nextLocation.source)
+                        trackedSourceLocation(endIndex, location)
+                        marker.setNextClosest(location.index, location.offset, location.source)
                     }
-                    markers.add(trackedLocation)
+                    markers.add(marker.toTrackedLocation())
                 } else {
                     val locations = charSequence.getMarkers(id)
                     if (!locations.isEmpty()) {
                         // re-map
-                        for (location in locations) {
-                            markers.add(location.withIndex(myLengths[i] + location.index).withPrevClosest(myLengths[i] + location.prevIndex).withNextClosest(myLengths[i] + location.nextIndex))
+                        for (segmentLocation in locations) {
+                            markers.add(segmentLocation.withIndex(startIndex + segmentLocation.index).withPrevClosest(startIndex + segmentLocation.prevIndex).withNextClosest(startIndex + segmentLocation.nextIndex))
                         }
                     }
                 }
+                startIndex = endIndex
             }
 
             if (!markers.isEmpty()) return markers
@@ -173,8 +277,29 @@ open class SmartSegmentedCharSequence : SmartCharSequenceBase<SmartCharSequence>
     override fun getCharsImpl(dst: CharArray, dstOffset: Int) {
         myCacheVersion.nextVersion()
         val iMax = segments.size
+        var offset = dstOffset
         for (i in 0..iMax - 1) {
-            segments[i].getChars(dst, dstOffset + myLengths[i])
+            segments[i].getChars(dst, offset)
+            offset += mySegmentLengths[i]
+        }
+    }
+
+    override fun getCharsImpl(srcBegin: Int, srcEnd: Int, dst: CharArray, dstOffset: Int) {
+        if (srcBegin >= srcEnd) return
+
+        val hit = getCharSequenceIndex(srcBegin)
+        var i = hitSegment(hit)
+        var startIndex = hitStart(hit)
+        var index = srcBegin
+        while (index < srcEnd) {
+            val endIndex = startIndex + mySegmentLengths[i]
+            val copyEnd = endIndex.maxLimit(srcEnd)
+            if (index < copyEnd) {
+                segments[i].getChars(index - startIndex, copyEnd - startIndex, dst, dstOffset + index - srcBegin)
+                index = copyEnd
+            }
+            startIndex = endIndex
+            i++
         }
     }
 
@@ -182,117 +307,92 @@ open class SmartSegmentedCharSequence : SmartCharSequenceBase<SmartCharSequence>
         super.getSourceLocations(sources, locations, sourceLocations)
     }
 
-    protected fun getCharSequenceIndex(index: Int): Int {
-        var lastSegment = myLastSegment
-
-        if (lastSegment != null) {
-            if (index >= myLengths[lastSegment] && index < myLengths[lastSegment + 1]) return lastSegment
-            // see if it is next or previous
-            if (lastSegment + 2 <= myLengths.lastIndex && index >= myLengths[lastSegment + 1] && index < myLengths[lastSegment + 2]) {
-                lastSegment++
-                myLastSegment = lastSegment
-                return lastSegment
-            }
+    /**
+     * segment containing index and its start index packed into a Long, segment in the high and start in the low
+     * 32 bits, -1 if out of range. The result is local to the caller so concurrent lookups never see each other's start.
+     */
+    protected fun getCharSequenceIndex(index: Int): Long {
+        val lastHit = myLastHit
+
+        if (lastHit >= 0) {
+            val lastSegment = hitSegment(lastHit)
+            val lastStart = hitStart(lastHit)
+            val lengths = mySegmentLengths
+
+            if (lastSegment < lengths.size) {
+                val lastEnd = lastStart + lengths[lastSegment]
+                if (index >= lastStart && index < lastEnd) return lastHit
+
+                // see if it is next or previous
+                if (lastSegment + 1 < lengths.size && index >= lastEnd && index < lastEnd + lengths[lastSegment + 1]) {
+                    val hit = segmentHit(lastSegment + 1, lastEnd)
+                    myLastHit = hit
+                    return hit
+                }
 
-            if (lastSegment > 0 && index >= myLengths[lastSegment - 1] && index < myLengths[lastSegment]) {
-                lastSegment--
-                myLastSegment = lastSegment
-                return lastSegment
+                if (lastSegment > 0 && index < lastStart && index >= lastStart - lengths[lastSegment - 1]) {
+                    val hit = segmentHit(lastSegment - 1, lastStart - lengths[lastSegment - 1])
+                    myLastHit = hit
+                    return hit
+                }
             }
         } else {
             // need to update indices
             myCacheVersion.nextVersion()
         }
 
-        return adjustBinaryIndex(getIndexBinary(index))
-        //        return getIndexLinear(index)
-
-        //        val result = getIndexLinear(index)
-        //        var fastResult = getIndexBinary(index)
-        //
-        //        if (result != fastResult) {
-        //            println("result:$result != fastResult:$fastResult")
-        //            assert(result == fastResult, { "result:$result != fastResult:$fastResult" })
-        //        }
-        //
-        //        return result
-    }
-
-    internal fun getIndexLinear(index: Int): Int {
-        for (i in 1..myLengths.size - 1) {
-            if (index < myLengths[i] || index == myLengths[i] && i + 1 == myLengths.size) {
-                return i - 1
+        if (index < 0 || index >= myLength) return -1L
+
+        // descend the fenwick tree to the last segment ending at or before index
+        val lengthIndex = myLengthIndex
+        var segmentIndex = 0
+        var remainder = index
+        var span = myLengthSpan
+        while (span > 0) {
+            val next = segmentIndex + span
+            if (next < lengthIndex.size && lengthIndex[next] <= remainder) {
+                segmentIndex = next
+                remainder -= lengthIndex[next]
             }
+            span = span.shr(1)
         }
-        return -1
-    }
 
-    internal fun adjustBinaryIndex(index: Int): Int {
-        @Suppress("NAME_SHADOWING")
-        var index = index
-        // since we can have 0 length segments we need to skip them
-        if (index < 0) return index
-        while (index + 1 < myLengths.size - 1 && myLengths[index] == myLengths[index + 1]) index++
-        return if (index >= myLengths.size - 1) -1 else index
+        val hit = segmentHit(segmentIndex, index - remainder)
+        myLastHit = hit
+        return hit
     }
 
-    internal fun getIndexBinary(index: Int): Int {
-        val iMax = myLengths.size
-
-        if (iMax >= 0) {
-            var i = myLengthSpan.shr(1) - 1
-            var span = myLengthSpan.shr(2)
-
-            loop@
-            while (true) {
-                val len = myLengths[i]
-
-                if (index <= len) {
-                    if (span == 0 || index == len) {
-                        return if (index == len && i < iMax - 1) i else i - 1
-                    }
-
-                    i -= span
-                    span /= 2
-                } else {
-                    if (span == 0) {
-                        return i
-                    }
-
-                    i += span
-                    span /= 2
-
-                    while (i >= iMax) {
-                        if (span == 0) break@loop
-                        i -= span
-                        span /= 2
-                    }
-                }
-            }
-        }
-        return -1
-    }
+    private fun segmentHit(segmentIndex: Int, startIndex: Int): Long = segmentIndex.toLong().shl(32) or startIndex.toLong().and(0xffffffffL)
+    private fun hitSegment(hit: Long): Int = hit.ushr(32).toInt()
+    private fun hitStart(hit: Long): Int = hit.toInt()
 
     override fun properSubSequence(startIndex: Int, endIndex: Int): SmartCharSequence {
-        val iStart = getCharSequenceIndex(startIndex)
-        val iEnd = getCharSequenceIndex(endIndex)
+        val startHit = getCharSequenceIndex(startIndex)
+
+        if (startHit >= 0) {
+            val iStart = hitSegment(startHit)
+            val segmentStart = hitStart(startHit)
+            val startOffset = startIndex - segmentStart
 
-        if (iStart >= 0 && iEnd >= 0 && iStart <= iEnd) {
-            if (iStart == iEnd) {
+            if (endIndex <= segmentStart + mySegmentLengths[iStart]) {
                 // subSequence of one of the sequences
-                return segments[iStart].subSequence(startIndex - myLengths[iStart], endIndex - myLengths[iStart])
-            } else if (iStart == 0 && startIndex == 0 && iEnd == myLengths.size - 2 && endIndex == myLengths[iEnd + 1]) {
+                return segments[iStart].subSequence(startOffset, endIndex - segmentStart)
+            } else if (startIndex == 0 && endIndex == myLength) {
                 // just a copy of us
                 return this
             } else {
                 // partial of our sequence
-                val trackingSequences = trackingSequences(segments, iStart, startIndex - myLengths[iStart], iEnd, endIndex - myLengths[iEnd])
+                val endHit = getCharSequenceIndex(endIndex - 1)
+                val trackingSequences = trackingSequences(segments, iStart, startOffset, hitSegment(endHit), endIndex - hitStart(endHit))
                 if (trackingSequences.size == 1) {
                     return trackingSequences[0]
                 } else {
                     return SmartSegmentedCharSequence(trackingSequences)
                 }
             }
+        } else if (startIndex == endIndex && startIndex == myLength && segments.size > 0) {
+            val lastSegment = segments[segments.size - 1]
+            return lastSegment.subSequence(lastSegment.length, lastSegment.length)
         }
 
         // won't happen but we leave it in
@@ -305,32 +405,30 @@ open class SmartSegmentedCharSequence : SmartCharSequenceBase<SmartCharSequence>
         }
     }
 
-    override fun trackedSourceLocation(index: Int): TrackedLocation {
-        val i = getCharSequenceIndex(index)
-        if (i >= 0) {
-            val trackedLocation = segments[i].trackedSourceLocation(index - myLengths[i])
-            if (myLengths[i] == 0) return trackedLocation
-            return trackedLocation.withIndex(trackedLocation.index + myLengths[i])
-                    .withPrevClosest(trackedLocation.prevIndex + myLengths[i])
-                    .withNextClosest(trackedLocation.nextIndex + myLengths[i])
+    override fun trackedSourceLocation(index: Int, location: TrackedLocationCursor) {
+        val hit = getCharSequenceIndex(index)
+        if (hit >= 0) {
+            val startIndex = hitStart(hit)
+            segments[hitSegment(hit)].trackedSourceLocation(index - startIndex, location)
+            location.shiftIndex(startIndex)
+            return
         }
-        throw IndexOutOfBoundsException("charAt(" + index + ") is not within underlying char sequence range [0, " + myLengths[myLengths.size - 1])
+        throw IndexOutOfBoundsException("charAt(" + index + ") is not within underlying char sequence range [0, " + myLength)
     }
 
-    override fun trackedLocation(source: Any?, offset: Int): TrackedLocation? {
+    override fun trackedLocation(source: Any?, offset: Int, location: TrackedLocationCursor): Boolean {
         var i = 0
+        var startIndex = 0
         myCacheVersion.nextVersion()
         for (charSequence in segments) {
-            val trackedLocation = charSequence.trackedLocation(source, offset)
-            if (trackedLocation != null) {
-                if (myLengths[i] == 0) return trackedLocation
-                else return trackedLocation.withIndex(trackedLocation.index + myLengths[i])
-                        .withPrevClosest(trackedLocation.prevIndex + myLengths[i])
-                        .withNextClosest(trackedLocation.nextIndex + myLengths[i])
+            if (charSequence.trackedLocation(source, offset, location)) {
+                location.shiftIndex(startIndex)
+                return true
             }
+            startIndex += mySegmentLengths[i]
             i++
         }
-        return null
+        return false
     }
 
     override fun splicedWith(other: CharSequence?): SmartCharSequence? {
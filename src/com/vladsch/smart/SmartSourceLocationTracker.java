@@ -33,6 +33,17 @@ public interface SmartSourceLocationTracker {
      */
     @NotNull
     TrackedLocation trackedSourceLocation(int index);
+
+    /**
+     * trackedSourceLocation filled into a reusable cursor, does not allocate when implemented by the sequence
+     *
+     * @param index    offset into the sequence
+     * @param location cursor to receive the location data
+     */
+    default void trackedSourceLocation(int index, @NotNull TrackedLocationCursor location) {
+        location.set(trackedSourceLocation(index));
+    }
+
     /**
      * get Source location information for a given source data and originalOffset in it
      *
@@ -42,4 +53,19 @@ public interface SmartSourceLocationTracker {
      */
     @Nullable
     TrackedLocation trackedLocation(@Nullable Object source, int offset);
+
+    /**
+     * trackedLocation filled into a reusable cursor, does not allocate when implemented by the sequence
+     *
+     * @param source   source data object or null if any will do
+     * @param offset   original offset in that source data object
+     * @param location cursor to receive the location data, contents undefined if not found
+     * @return true if found
+     */
+    default boolean trackedLocation(@Nullable Object source, int offset, @NotNull TrackedLocationCursor location) {
+        TrackedLocation trackedLocation = trackedLocation(source, offset);
+        if (trackedLocation == null) return false;
+        location.set(trackedLocation);
+        return true;
+    }
 }
@@ -38,8 +38,23 @@ class SmartTableColumnBalancer(charWidthProvider: CharWidthProvider?) {
     protected var myMinColumnWidth = 3
 
     // values during balancing computation
-    protected var myColumnWidths = Array(0, { 0 })
-    protected var myAdditionalColumnWidths = Array(0, { 0 })
+    protected var myColumnWidths = IntArray(0)
+    protected var myAdditionalColumnWidths = IntArray(0)
+    protected var myColumnPrefixWidths = IntArray(1)
+    protected var myColumnFixed = BooleanArray(0)
+
+    // spans flattened into primitive arrays, columns of span i are at [mySpanOffsets[i], mySpanOffsets[i + 1]) of mySpanColumns
+    protected var mySpanOffsets = IntArray(1)
+    protected var mySpanColumns = IntArray(0)
+    protected var mySpanKeys = LongArray(0)
+    protected var mySpanLengths = IntArray(0)
+    protected var myActiveSpans = IntArray(0)
+
+    /**
+     * number of distribution passes of the last balanceColumns(), at most the number of columns covered by spans
+     */
+    var balancePasses: Int = 0
+        private set
 
     // these are outputs
     protected val myAlignmentDataPoints = ArrayList<SmartVersionedDataAlias<TextAlignment>>()
@@ -111,7 +126,7 @@ class SmartTableColumnBalancer(charWidthProvider: CharWidthProvider?) {
         return myAlignmentDataPoints[index]
     }
 
-    class SmartVersionedDefaultTextAlignment(val delegate: SmartVersionedDataAlias<TextAlignment>, val isHeader: Boolean) : SmartVersionedDataHolder<TextAlignment> {
+    class SmartVersionedDefaultTextAlignment(val delegate: SmartVersionedDataAlias<TextAlignment>, val isHeader: Boolean) : SmartVersionedDataHolder<TextAlignment>, SmartPushVersion {
         override fun get(): TextAlignment {
             return if (delegate.get() == TextAlignment.DEFAULT && isHeader) TextAlignment.CENTER else TextAlignment.LEFT
         }
@@ -129,6 +144,17 @@ class SmartTableColumnBalancer(charWidthProvider: CharWidthProvider?) {
             delegate.nextVersion()
         }
 
+        override val isPushable: Boolean
+            get() = delegate.isPushable
+
+        override fun addDependent(dependent: SmartPushDependent) {
+            delegate.addDependent(dependent)
+        }
+
+        override fun removeDependent(dependent: SmartPushDependent) {
+            delegate.removeDependent(dependent)
+        }
+
         override var dataSnapshot: DataSnapshot<TextAlignment>
             get() {
                 return if (isHeader && delegate.dataSnapshot.value == TextAlignment.DEFAULT) DataSnapshot(delegate.dataSnapshot.serial, TextAlignment.CENTER) else delegate.dataSnapshot
@@ -173,8 +199,11 @@ class SmartTableColumnBalancer(charWidthProvider: CharWidthProvider?) {
 
         myDependencies = dependencies
 
-        myColumnWidths = Array(myColumnWidthDataPoints.size, { 0 })
-        myAdditionalColumnWidths = Array(myColumnWidthDataPoints.size, { 0 })
+        myColumnWidths = IntArray(myColumnWidthDataPoints.size)
+        myAdditionalColumnWidths = IntArray(myColumnWidthDataPoints.size)
+        myColumnPrefixWidths = IntArray(myColumnWidthDataPoints.size + 1)
+        myColumnFixed = BooleanArray(myColumnWidthDataPoints.size)
+        prepareSpans()
 
         for (index in 0..myColumnWidthDataPoints.lastIndex) {
             myColumnWidthDataPoints[index].alias = SmartDependentData(myVersionData, { columnWidth(index) })
@@ -188,11 +217,31 @@ class SmartTableColumnBalancer(charWidthProvider: CharWidthProvider?) {
         myVersionData.alias = SmartDependentData(dependencies, { balanceColumns(); 0 })
     }
 
-    private fun additionalColumnWidth(index: Int): Int {
-        return myAdditionalColumnWidths[index]
+    private fun prepareSpans() {
+        val spanCount = myColumnSpans.size
+        mySpanOffsets = IntArray(spanCount + 1)
+        for (i in 0..spanCount - 1) {
+            val columnSpan = myColumnSpans[i]
+            mySpanOffsets[i + 1] = mySpanOffsets[i] + columnSpan.endIndex - columnSpan.startIndex
+        }
+
+        mySpanColumns = IntArray(mySpanOffsets[spanCount])
+        mySpanKeys = LongArray(mySpanOffsets[spanCount])
+        mySpanLengths = IntArray(spanCount)
+        myActiveSpans = IntArray(spanCount)
     }
 
-    // called when something has changed in the dependencies, so here we recompute everything
+    /**
+     * called when something has changed in the dependencies, so here we recompute everything
+     *
+     * spans distribute their text length exceeding the lengths of their columns evenly to their unfixed columns,
+     * longer columns get the remainder first. A column takes the largest amount distributed to it by any span.
+     * After each pass columns with the largest additional width are fixed and spans re-distribute over the rest.
+     *
+     * every pass fixes at least one column, so for P column positions covered by spans and C columns covered by
+     * spans there are at most C passes of O(P) each, only spans with unfixed columns take part in a pass.
+     * Column order within spans is sorted once, O(P log P), all state is kept in primitive arrays.
+     */
     fun balanceColumns() {
         // get all the single column text lengths
         for (index in 0..myColumnWidthDataPoints.lastIndex) {
@@ -200,85 +249,133 @@ class SmartTableColumnBalancer(charWidthProvider: CharWidthProvider?) {
             val lengths = myColumnLengths[index]
             if (lengths != null) {
                 for (length in lengths) {
-                    if (width < length.get()) width = length.get()
+                    val value = length.get()
+                    if (width < value) width = value
                 }
             }
             myColumnWidths[index] = width
+            myAdditionalColumnWidths[index] = 0
+            myColumnFixed[index] = false
         }
 
-        // get all the span lengths
-        for (columnSpan in myColumnSpans) {
+        if (mySpanLengths.size != myColumnSpans.size) prepareSpans()
+
+        // get all the span lengths and order span columns by length descending then by index
+        val spanCount = myColumnSpans.size
+        for (i in 0..spanCount - 1) {
+            val columnSpan = myColumnSpans[i]
             columnSpan.textLength = columnSpan.textLengthDataPoint.get()
-        }
+            mySpanLengths[i] = columnSpan.textLength + columnSpan.widthOffset
 
-        // compute unfixed columns, which are all columns at first
-        var haveUnfixedColumns = myColumnSpans.size > 0
-        while (haveUnfixedColumns) {
-            haveUnfixedColumns = false
+            val offset = mySpanOffsets[i]
+            for (index in columnSpan.startIndex..columnSpan.lastIndex) {
+                mySpanKeys[offset + index - columnSpan.startIndex] = (-myColumnWidths[index].toLong() shl 32) + index
+            }
 
-            for (columnSpan in myColumnSpans) {
-                columnSpan.distributeLength()
+            if (mySpanOffsets[i + 1] - offset > 1) Arrays.sort(mySpanKeys, offset, mySpanOffsets[i + 1])
+
+            for (k in offset..mySpanOffsets[i + 1] - 1) {
+                mySpanColumns[k] = (mySpanKeys[k] and 0xFFFFFFFFL).toInt()
             }
+            myActiveSpans[i] = i
+        }
 
-            var fixedAdditionalWidth = 0
-            var unfixedColumns = setOf<Int>()
-            for (columnSpan in myColumnSpans) {
-                unfixedColumns = unfixedColumns.union(columnSpan.unfixedColumns)
+        var activeSpans = spanCount
+        var passes = 0
+
+        while (activeSpans > 0) {
+            passes++
+            updatePrefixWidths()
+
+            // unfixed columns take the largest additional width of this pass
+            for (a in 0..activeSpans - 1) {
+                val span = myActiveSpans[a]
+                for (k in mySpanOffsets[span]..mySpanOffsets[span + 1] - 1) {
+                    val index = mySpanColumns[k]
+                    if (!myColumnFixed[index]) myAdditionalColumnWidths[index] = 0
+                }
             }
 
-            // need to reset all unfixed additional columns so we recompute them
-            for (index in unfixedColumns) {
-                myAdditionalColumnWidths[index] = 0
+            var fixedAdditionalWidth = 0
+            for (a in 0..activeSpans - 1) {
+                val additionalWidth = distributeLength(myActiveSpans[a])
+                if (fixedAdditionalWidth < additionalWidth) fixedAdditionalWidth = additionalWidth
             }
 
-            for (columnSpan in myColumnSpans) {
-                if (!columnSpan.unfixedColumns.isEmpty()) {
-                    for (index in columnSpan.unfixedColumns) {
-                        val additionalWidth = columnSpan.additionalWidths[index - columnSpan.startIndex]
-                        if (myAdditionalColumnWidths[index] < additionalWidth) {
-                            myAdditionalColumnWidths[index] = additionalWidth
-                            if (fixedAdditionalWidth < additionalWidth) {
-                                fixedAdditionalWidth = additionalWidth
-                            }
-                        }
+            // fix columns with the largest additional width, keep spans which still have unfixed columns
+            var remainingSpans = 0
+            for (a in 0..activeSpans - 1) {
+                val span = myActiveSpans[a]
+                var unfixed = false
+                for (k in mySpanOffsets[span]..mySpanOffsets[span + 1] - 1) {
+                    val index = mySpanColumns[k]
+                    if (!myColumnFixed[index]) {
+                        if (myAdditionalColumnWidths[index] == fixedAdditionalWidth) myColumnFixed[index] = true
+                        else unfixed = true
                     }
                 }
+                if (unfixed) myActiveSpans[remainingSpans++] = span
             }
+            activeSpans = remainingSpans
+        }
 
-            for (columnSpan in myColumnSpans) {
-                if (!columnSpan.unfixedColumns.isEmpty()) {
-                    columnSpan.fixLengths(fixedAdditionalWidth)
+        balancePasses = passes
+        updatePrefixWidths()
+    }
 
-                    if (!columnSpan.unfixedColumns.isEmpty()) haveUnfixedColumns = true
-                }
+    /**
+     * distribute length difference of a span to its unfixed columns
+     *
+     * @return largest additional width given to a column
+     */
+    private fun distributeLength(span: Int): Int {
+        val start = mySpanOffsets[span]
+        val end = mySpanOffsets[span + 1]
+        var fixedWidth = 0
+        var unfixed = 0
+
+        for (k in start..end - 1) {
+            val index = mySpanColumns[k]
+            if (myColumnFixed[index]) {
+                fixedWidth += columnWidth(index)
+            } else {
+                fixedWidth += myColumnWidths[index]
+                unfixed++
             }
         }
 
-        // we now have everything computed, can clear the
-        for (columnSpan in myColumnSpans) {
-            columnSpan.clearIterationData()
+        if (unfixed == 0) return 0
+
+        val extraLength = (mySpanLengths[span] - fixedWidth).minLimit(0)
+        val whole = extraLength / unfixed
+        var remainder = extraLength - whole * unfixed
+        var maxWidth = 0
+
+        for (k in start..end - 1) {
+            val index = mySpanColumns[k]
+            if (!myColumnFixed[index]) {
+                val additionalWidth = whole + if (remainder > 0) 1 else 0
+                if (remainder > 0) remainder--
+                if (myAdditionalColumnWidths[index] < additionalWidth) myAdditionalColumnWidths[index] = additionalWidth
+                if (maxWidth < additionalWidth) maxWidth = additionalWidth
+            }
         }
+        return maxWidth
     }
 
-    internal fun spanWidth(startIndex: Int, endIndex: Int): Int {
-        if (myCharWidthProvider === CharWidthProvider.UNITY_PROVIDER) {
-            var width = 0
-            for (index in startIndex..endIndex - 1) {
-                width += columnWidth(index)
-            }
-            return width
+    private fun updatePrefixWidths() {
+        for (i in 0..myColumnWidths.size - 1) {
+            myColumnPrefixWidths[i + 1] = myColumnPrefixWidths[i] + myColumnWidths[i] + myAdditionalColumnWidths[i]
         }
+    }
 
-        var preWidth = 0
-        var spanWidth = 0
-        for (i in 0..endIndex - 1) {
-            val rawWidth = myColumnWidths[i] + myAdditionalColumnWidths[i]
-            if (i < startIndex) preWidth += rawWidth
-            if (i < endIndex) spanWidth += rawWidth
+    internal fun spanWidth(startIndex: Int, endIndex: Int): Int {
+        if (myCharWidthProvider === CharWidthProvider.UNITY_PROVIDER) {
+            return myColumnPrefixWidths[endIndex] - myColumnPrefixWidths[startIndex]
         }
 
         val spaceWidth = myCharWidthProvider.spaceWidth
-        return ((spanWidth + spaceWidth / 2) / spaceWidth) * spaceWidth - preWidth
+        return ((myColumnPrefixWidths[endIndex] + spaceWidth / 2) / spaceWidth) * spaceWidth - myColumnPrefixWidths[startIndex]
     }
 
     internal fun columnWidth(index: Int): Int {
@@ -286,13 +383,10 @@ class SmartTableColumnBalancer(charWidthProvider: CharWidthProvider?) {
         if (index == 0 || myCharWidthProvider === CharWidthProvider.UNITY_PROVIDER) {
             return myColumnWidths[index] + myAdditionalColumnWidths[index]
         }
-        var preWidth = 0
-        for (i in 0..index - 1) {
-            preWidth += myColumnWidths[i] + myAdditionalColumnWidths[i]
-        }
 
+        val preWidth = myColumnPrefixWidths[index]
         val spaceWidth = myCharWidthProvider.spaceWidth
-        return (((myColumnWidths[index] + myAdditionalColumnWidths[index] + preWidth) + spaceWidth / 2) / spaceWidth) * spaceWidth - preWidth
+        return ((myColumnPrefixWidths[index + 1] + spaceWidth / 2) / spaceWidth) * spaceWidth - preWidth
     }
 
     internal fun columnLength(index: Int): Int = myColumnWidths[index]
@@ -305,24 +399,8 @@ class SmartTableColumnBalancer(charWidthProvider: CharWidthProvider?) {
         protected val myTextLengthDataPoint = textLength
         protected val myWidthOffset: Int = widthOffset
         protected val myWidthDataPoint = SmartVersionedDataAlias(IMMUTABLE_ZERO)
-        protected val myColumns: Set<Int>
-
-        // used during balancing
-        protected var myFixedColumns = setOf<Int>()
-        protected var myUnfixedColumns = setOf<Int>()
-        protected val myAddColumnWidth: Array<Int>
         protected var myTextLength: Int = 0
 
-        init {
-            val columns = HashSet<Int>()
-            for (span in startIndex..lastIndex) {
-                columns.add(span)
-            }
-
-            myColumns = columns
-            myAddColumnWidth = Array(columnSpan, { 0 })
-        }
-
         val startIndex: Int get() = myStartIndex
         val endIndex: Int get() = myEndIndex
         val lastIndex: Int get() = myEndIndex - 1
@@ -331,72 +409,10 @@ class SmartTableColumnBalancer(charWidthProvider: CharWidthProvider?) {
 
         val textLengthDataPoint: SmartVersionedDataHolder<Int> get() = myTextLengthDataPoint
         val widthDataPoint: SmartVersionedDataAlias<Int> get() = myWidthDataPoint
-        val additionalWidths: Array<Int> get() = myAddColumnWidth
         var textLength: Int
             get() = myTextLength
             set(value) {
                 myTextLength = value
             }
-
-        val fixedColumns: Set<Int> get() = myFixedColumns
-        val unfixedColumns: Set<Int> get() = myUnfixedColumns
-
-        // distribute length difference to unfixed columns
-        fun distributeLength() {
-            val unfixed = HashSet<Int>()
-            var fixedWidth = 0
-            for (index in startIndex..lastIndex) {
-                if (fixedColumns.contains(index)) {
-                    // this one is fixed
-                    fixedWidth += myTableColumnBalancer.columnWidth(index)
-                } else {
-                    fixedWidth += myTableColumnBalancer.columnLength(index)
-                    unfixed.add(index)
-                }
-            }
-
-            myUnfixedColumns = unfixed
-
-            if (!unfixed.isEmpty()) {
-                val extraLength = (myTextLength + myWidthOffset - fixedWidth).minLimit(0)
-                val whole = extraLength / unfixed.size
-                var remainder = extraLength - whole * unfixed.size
-
-                for (index in unfixed.sortedByDescending { myTableColumnBalancer.columnLength(it) }) {
-                    additionalWidths[index - myStartIndex] = whole + if (remainder > 0) 1 else 0
-                    if (remainder > 0) remainder--
-                }
-            }
-        }
-
-        fun fixLengths(fixedLength: Int) {
-            val fixedColumns = HashSet<Int>()
-            val unfixedColumns = HashSet<Int>()
-            fixedColumns.addAll(myFixedColumns)
-
-            for (index in myUnfixedColumns) {
-                val additionalColumnWidth = myTableColumnBalancer.additionalColumnWidth(index)
-
-                if (additionalColumnWidth == fixedLength) {
-                    // this one is fixed
-                    myAddColumnWidth[index - myStartIndex] = fixedLength
-                    fixedColumns.add(index)
-                } else {
-                    if (fixedLength < additionalColumnWidth) {
-                        fixedColumns.add(index)
-                    } else {
-                        unfixedColumns.add(index)
-                    }
-                }
-            }
-
-            myFixedColumns = fixedColumns
-            myUnfixedColumns = unfixedColumns
-        }
-
-        fun clearIterationData() {
-            myFixedColumns = setOf()
-            myUnfixedColumns = setOf()
-        }
     }
 }
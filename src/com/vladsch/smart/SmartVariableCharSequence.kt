@@ -126,8 +126,8 @@ class SmartVariableCharSequence(replacedChars: SmartCharSequence, chars: CharSeq
         get() = myResultSequence.get()
 
     protected fun computeResultSequence(): SmartCharArraySequence {
-        val leftPadWidth = myCharWidthProvider.getCharWidth(myLeftPadChar.get())
-        val rightPadWidth = myCharWidthProvider.getCharWidth(myRightPadChar.get())
+        val leftPadWidth = myCharWidthProvider.charWidth(myLeftPadChar.get())
+        val rightPadWidth = myCharWidthProvider.charWidth(myRightPadChar.get())
         val paddingSize = (myWidth.get() - myFixedLength.get() + myCharWidthProvider.spaceWidth / 2)
         var leftPadding = 0
         var rightPadding = 0
@@ -180,20 +180,19 @@ class SmartVariableCharSequence(replacedChars: SmartCharSequence, chars: CharSeq
         }
 
     override fun getCharsImpl(dst: CharArray, dstOffset: Int) = resultSequence.getCharsImpl(dst, dstOffset)
+    override fun getCharsImpl(srcBegin: Int, srcEnd: Int, dst: CharArray, dstOffset: Int) = resultSequence.getChars(srcBegin, srcEnd, dst, dstOffset)
     override fun charAtImpl(index: Int): Char = resultSequence[index]
     override fun properSubSequence(startIndex: Int, endIndex: Int): SmartCharSequence = resultSequence.subSequence(startIndex, endIndex)
     override fun getCharsImpl(): CharArray = resultSequence.getCharsImpl()
     override fun getCachedProxy(): SmartCharSequence = resultSequence.cachedProxy
 
-    override fun trackedLocation(source: Any?, offset: Int): TrackedLocation? {
-        val location = resultSequence.trackedLocation(source, offset)
-        return location
+    override fun trackedLocation(source: Any?, offset: Int, location: TrackedLocationCursor): Boolean {
+        return resultSequence.trackedLocation(source, offset, location)
     }
 
-    override fun trackedSourceLocation(index: Int): TrackedLocation {
+    override fun trackedSourceLocation(index: Int, location: TrackedLocationCursor) {
         checkIndex(index)
-        val location = resultSequence.trackedSourceLocation(index)
-        return location
+        resultSequence.trackedSourceLocation(index, location)
     }
 
     protected fun adjustTrackedLocation(location: TrackedLocation): TrackedLocation {
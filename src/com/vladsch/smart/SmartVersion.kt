@@ -21,12 +21,28 @@
 
 package com.vladsch.smart
 
+import java.lang.ref.WeakReference
 import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.function.Consumer
 import java.util.function.Supplier
 
-object SmartVersionManager {
-    private var mySerial = Integer.MIN_VALUE + 1
+/**
+ *  serial number space with its own grouped update state
+ *
+ *  serials are only comparable within a domain so all dependencies of a version must come from the same domain.
+ *  Versions and data created inside [create] belong to that domain, otherwise to [SmartVersionManager], the default domain.
+ *  Serial changes in one domain do not make versions in another domain do any work in isStale()
+ *
+ *  With isPushInvalidation, dependent versions register with their dependencies and are marked dirty when a dependency changes,
+ *  so a clean isStale() is a flag test instead of a walk of all dependencies. Dependents with any dependency that is not
+ *  a [SmartPushVersion] fall back to pulling
+ */
+open class SmartVersionDomain(val name: String, val isPushInvalidation: Boolean) {
+    constructor(name: String) : this(name, false)
+
+    // lock-free serial source, all threads allocate from the same counter so serial ordering is global to the domain
+    private val mySerial = AtomicInteger(Integer.MIN_VALUE + 1)
 
     class GroupedUpdate {
         var myInGroup = 0
@@ -46,11 +62,12 @@ object SmartVersionManager {
     val isGrouped: Boolean get() = groupedUpdate.myInGroup > 0
 
     private val currentSerialRaw: Int
-        get() {
-            synchronized (this) {
-                return mySerial
-            }
-        }
+        get() = mySerial.get()
+
+    // changes on every nextSerial, even in grouped updates, and on every touchSerial
+    // if it did not change then no version in the domain changed and staleness checks can be skipped
+    val changeSerial: Int
+        get() = mySerial.get()
 
     val currentSerial: Int
         get() {
@@ -60,20 +77,27 @@ object SmartVersionManager {
 
     val nextSerial: Int
         get() {
-            if (groupedUpdate.myInGroup > 0) return groupedUpdate.myFrozenSerial
+            val groupedUpdate = groupedUpdate
+            if (groupedUpdate.myInGroup > 0) {
+                touchSerial()
+                return groupedUpdate.myFrozenSerial
+            }
             return nextVersionRaw
         }
 
+    // used when a version changes to an existing serial, so memoized staleness checks will be redone
+    fun touchSerial() {
+        @Suppress("UNUSED_VARIABLE")
+        val serial = nextVersionRaw
+    }
+
     private val nextVersionRaw: Int
         get() {
-            synchronized (this) {
-                if (mySerial == MAX_SERIAL) {
-                    // roll over, should not happen under normal conditions
-                    mySerial = MIN_SERIAL
-                    return mySerial
-                } else {
-                    return ++mySerial
-                }
+            while (true) {
+                val serial = mySerial.get()
+                // roll over, should not happen under normal conditions
+                val next = if (serial == MAX_SERIAL) MIN_SERIAL else serial + 1
+                if (mySerial.compareAndSet(serial, next)) return next
             }
         }
 
@@ -125,23 +149,66 @@ object SmartVersionManager {
         }
     }
 
+    // frozen serial of this thread's grouped update or NULL_SERIAL if not grouped, see joinGroupedUpdate()
+    val groupedSerial: Int
+        get() {
+            val groupedUpdate = groupedUpdate
+            return if (groupedUpdate.myInGroup > 0) groupedUpdate.myFrozenSerial else NULL_SERIAL
+        }
+
+    /**
+     *  run supplier on this thread as part of work started by another thread
+     *
+     *  versions and data are created in this domain and, if groupedSerial is not NULL_SERIAL, the supplier runs in
+     *  a grouped update with the other thread's frozen serial so both threads see the same currentSerial
+     */
+    fun <V> joinGroupedUpdate(groupedSerial: Int, supplier: Supplier<V>): V {
+        if (groupedSerial == NULL_SERIAL) return create(supplier)
+
+        val groupedUpdate = groupedUpdate
+        val frozenSerial = groupedUpdate.myFrozenSerial
+        groupedUpdate.myInGroup++
+        groupedUpdate.myFrozenSerial = groupedSerial
+        try {
+            return create(supplier)
+        } finally {
+            groupedUpdate.myFrozenSerial = frozenSerial
+            groupedUpdate.myInGroup--
+        }
+    }
+
+    // versions and data created by the supplier will belong to this domain
+    fun <V> create(supplier: Supplier<V>): V {
+        val domain = myCurrentDomain.get()
+        myCurrentDomain.set(this)
+        try {
+            return supplier.get()
+        } finally {
+            if (domain == null) myCurrentDomain.remove()
+            else myCurrentDomain.set(domain)
+        }
+    }
+
+    fun <V> create(dataComputable: () -> V): V {
+        return create(Supplier { dataComputable() })
+    }
+
+    // read only, does not enter a grouped update so it does not allocate or use up a serial
     fun isStale(dependencies: Iterable<SmartVersion>, snapshotSerial: Int, dependenciesSerial: Int): Boolean {
         // see if last evaluation is current
-        return groupedCompute(Supplier {
-            if (snapshotSerial >= currentSerial) return@Supplier false
+        if (snapshotSerial >= currentSerial) return false
 
-            // if last snapshot is less than the version serial then snapshot needs to be computed
-            if (snapshotSerial < dependenciesSerial) return@Supplier true
+        // if last snapshot is less than the version serial then snapshot needs to be computed
+        if (snapshotSerial < dependenciesSerial) return true
 
-            // version snapshot < dependencies snapshot, see if any of the dependencies changed their version
-            for (dependency in dependencies) {
-                // if dependency is stale, then this snapshot is stale
-                if (dependency.isStale) return@Supplier true
-                if (snapshotSerial < dependency.versionSerial) return@Supplier true
-            }
+        // version snapshot < dependencies snapshot, see if any of the dependencies changed their version
+        for (dependency in dependencies) {
+            // if dependency is stale, then this snapshot is stale
+            if (dependency.isStale) return true
+            if (snapshotSerial < dependency.versionSerial) return true
+        }
 
-            false
-        })
+        return false
     }
 
     fun computeVersionSnapshot(dependencies: Iterable<SmartVersion>): VersionSnapshot {
@@ -159,6 +226,21 @@ object SmartVersionManager {
         return VersionSnapshot(currentSerial, dependenciesSerial, latestVersion)
     }
 
+    /**
+     * throws IllegalArgumentException if a dependency belongs to another domain, its changes would never be seen as stale here
+     */
+    fun checkDependencies(dependencies: Iterable<SmartVersion>) {
+        for (dependency in dependencies) {
+            checkDependency(dependency)
+        }
+    }
+
+    fun checkDependency(dependency: SmartVersion) {
+        if (dependency is SmartDomainVersion && dependency.domain !== this) {
+            throw IllegalArgumentException("dependency $dependency is in version domain ${dependency.domain.name}, not in $name")
+        }
+    }
+
     fun isMutable(dependencies: Iterable<SmartVersion>): Boolean {
         for (dependency in dependencies) {
             if (dependency.isMutable) {
@@ -193,8 +275,22 @@ object SmartVersionManager {
         }
         return false
     }
+
+    override fun toString(): String {
+        return "$name:(currentSerial: $currentSerial)"
+    }
+
+    companion object {
+        private val myCurrentDomain = ThreadLocal<SmartVersionDomain>()
+
+        // domain in which new versions and data are created on this thread
+        @JvmStatic
+        val current: SmartVersionDomain get() = myCurrentDomain.get() ?: SmartVersionManager
+    }
 }
 
+object SmartVersionManager : SmartVersionDomain("SmartVersionManager")
+
 const val NULL_SERIAL = Integer.MIN_VALUE
 const val STALE_SERIAL = Integer.MIN_VALUE + 1
 const val MIN_SERIAL = Integer.MIN_VALUE + 2
@@ -228,54 +324,270 @@ interface SmartVersion {
     fun nextVersion()                   // cause version to be updated
 }
 
-class SmartImmutableVersion(override val versionSerial: Int) : SmartVersion {
-    constructor() : this(SmartVersionManager.nextSerial)
+/**
+ *  version that pushes invalidation to its registered dependents when it changes
+ */
+interface SmartPushVersion : SmartVersion {
+    val isPushable: Boolean             // return true if all changes to this version are pushed to dependents
+    fun addDependent(dependent: SmartPushDependent)
+    fun removeDependent(dependent: SmartPushDependent)
+}
+
+/**
+ *  version created in a version domain, serials of different domains are not comparable so versions only depend on
+ *  versions of their own domain or versions which do not belong to one
+ */
+interface SmartDomainVersion : SmartVersion {
+    val domain: SmartVersionDomain
+}
+
+interface SmartPushDependent {
+    fun invalidate(pass: Int)           // a dependency changed, pass is unique to each change so propagation stops on cycles
+    fun disablePush()                   // a dependency can no longer push its changes, dependent has to pull
+}
+
+/**
+ *  weakly held dependents of a push version, dependents hold their dependencies but not the other way around
+ */
+class SmartPushDependents {
+    @Volatile private var myDependents: ArrayList<WeakReference<SmartPushDependent>>? = null
+
+    val isEmpty: Boolean get() = myDependents == null
+
+    fun add(dependent: SmartPushDependent) {
+        synchronized(this) {
+            val dependents = myDependents ?: ArrayList<WeakReference<SmartPushDependent>>()
+            dependents.add(WeakReference(dependent))
+            myDependents = dependents
+        }
+    }
+
+    fun remove(dependent: SmartPushDependent) {
+        synchronized(this) {
+            val dependents = myDependents ?: return
+            dependents.removeAll { it.get() === dependent || it.get() == null }
+            if (dependents.isEmpty()) myDependents = null
+        }
+    }
+
+    // dependents are called outside the lock
+    private fun dependents(): Array<SmartPushDependent?>? {
+        synchronized(this) {
+            val dependents = myDependents ?: return null
+            dependents.removeAll { it.get() == null }
+            if (dependents.isEmpty()) {
+                myDependents = null
+                return null
+            }
+            return Array(dependents.size) { dependents[it].get() }
+        }
+    }
+
+    fun invalidate() {
+        if (myDependents != null) invalidate(nextPass)
+    }
+
+    fun invalidate(pass: Int) {
+        val dependents = dependents() ?: return
+        for (dependent in dependents) {
+            dependent?.invalidate(pass)
+        }
+    }
+
+    fun disablePush() {
+        val dependents = dependents() ?: return
+        for (dependent in dependents) {
+            dependent?.disablePush()
+        }
+    }
+
+    companion object {
+        private val myPass = AtomicInteger()
+
+        val nextPass: Int get() = myPass.incrementAndGet()
+    }
+}
+
+internal const val PUSH_UNKNOWN = 0
+internal const val PUSH_RESOLVING = 1
+internal const val PUSH_ENABLED = 2
+internal const val PUSH_DISABLED = 3
+
+class SmartImmutableVersion(override val versionSerial: Int) : SmartPushVersion {
+    constructor() : this(SmartVersionDomain.current.nextSerial)
 
     final override val isStale: Boolean get() = false
     final override val isMutable: Boolean get() = false
     override val dependencies: Iterable<SmartVersion> get() = EMPTY_DEPENDENCIES
     final override fun nextVersion() {
     }
+
+    // never changes, nothing to push
+    override val isPushable: Boolean get() = true
+
+    override fun addDependent(dependent: SmartPushDependent) {
+    }
+
+    override fun removeDependent(dependent: SmartPushDependent) {
+    }
 }
 
 fun SmartVersionedDataIterableAdapter(iterable: Iterable<SmartVersionedData>): Iterable<SmartVersion> = IterableAdapter(iterable, DataValueComputable<SmartVersionedData, SmartVersion> { it.version })
 
 fun <V> IterableValueDependenciesAdapter(iterable: Iterable<SmartVersionedDataHolder<V>>): Iterable<V> = IterableAdapter(iterable, DataValueComputable<SmartVersionedDataHolder<V>, V> { it.get() })
 
-open class SmartVolatileVersion(versionSerial: Int) : SmartVersion {
-    constructor() : this(SmartVersionManager.nextSerial)
+open class SmartVolatileVersion(versionSerial: Int) : SmartPushVersion, SmartDomainVersion {
+    constructor() : this(SmartVersionDomain.current.nextSerial)
 
     constructor(version: SmartVersion) : this(version.versionSerial)
 
+    protected val myDomain = SmartVersionDomain.current
+    protected val myDependents = SmartPushDependents()
+
     protected var myVersion = versionSerial
         private set
 
+    override val domain: SmartVersionDomain get() = myDomain
+
     override val versionSerial: Int
         get() = myVersion
 
     internal fun setVersion(versionSerial: Int) {
         myVersion = versionSerial
+        myDomain.touchSerial()
+        myDependents.invalidate()
     }
 
     override val isStale: Boolean get() = false
     override val isMutable: Boolean get() = true
     override fun nextVersion() {
-        myVersion = SmartVersionManager.nextSerial
+        myVersion = myDomain.nextSerial
+        myDependents.invalidate()
+    }
+
+    override val isPushable: Boolean get() = true
+
+    override fun addDependent(dependent: SmartPushDependent) {
+        myDependents.add(dependent)
+    }
+
+    override fun removeDependent(dependent: SmartPushDependent) {
+        myDependents.remove(dependent)
     }
 
     override val dependencies: Iterable<SmartVersion> = EMPTY_DEPENDENCIES
 }
 
-abstract class SmartDependentVersionBase : SmartVersion, SnapshotHolder<VersionSnapshot> {
+abstract class SmartDependentVersionBase : SmartPushVersion, SmartDomainVersion, SmartPushDependent, SnapshotHolder<VersionSnapshot> {
+    protected val myDomain = SmartVersionDomain.current
     protected var mySnapshot = STALE_COMPUTED_VERSION_SNAPSHOT
     protected var myMutable: Boolean? = null
     protected var myIsStale: Boolean = false
 
-    final protected val isStaleRaw: Boolean get() = SmartVersionManager.isStale(dependencies, mySnapshot.snapshotSerial, mySnapshot.dependenciesSerial)
+    // push invalidation state, only used if the domain has push invalidation
+    protected val myDependents = SmartPushDependents()
+    @Volatile protected var myPushState = PUSH_UNKNOWN
+    @Volatile protected var myIsDirty = true
+    protected var myPass = 0
+
+    // change serial at which the last pull check found this version not stale, only valid because all dependencies are in myDomain
+    protected var myVerifiedSerial = NULL_SERIAL
+
+    override val domain: SmartVersionDomain get() = myDomain
+
+    final protected val isStaleRaw: Boolean
+        get() {
+            if (myPushState == PUSH_ENABLED || myPushState == PUSH_UNKNOWN && isPushable) {
+                // clean means none of the dependencies changed since last check
+                if (!myIsDirty) return false
+                myIsDirty = false
+                val stale = myDomain.isStale(dependencies, mySnapshot.snapshotSerial, mySnapshot.dependenciesSerial)
+                if (stale) myIsDirty = true
+                return stale
+            }
+
+            // nothing changed in the domain since the last check
+            val changeSerial = myDomain.changeSerial
+            if (changeSerial == myVerifiedSerial) return false
+            val stale = myDomain.isStale(dependencies, mySnapshot.snapshotSerial, mySnapshot.dependenciesSerial)
+            if (!stale) myVerifiedSerial = changeSerial
+            return stale
+        }
+
+    // resolved on first use, registers with dependencies if all of them are pushable
+    override val isPushable: Boolean
+        get() {
+            if (myPushState == PUSH_UNKNOWN) {
+                synchronized(this) {
+                    if (myPushState == PUSH_UNKNOWN) {
+                        myPushState = PUSH_RESOLVING
+                        var pushable = myDomain.isPushInvalidation
+                        if (pushable) {
+                            for (dependency in dependencies) {
+                                if (dependency !is SmartPushVersion || !dependency.isPushable) {
+                                    pushable = false
+                                    break
+                                }
+                            }
+                        }
+
+                        if (pushable) {
+                            for (dependency in dependencies) {
+                                (dependency as SmartPushVersion).addDependent(this)
+                            }
+                        }
+
+                        myIsDirty = true
+                        myPushState = if (pushable) PUSH_ENABLED else PUSH_DISABLED
+                    }
+                }
+            }
+
+            // resolving only happens on a dependency cycle, it will have to pull
+            return myPushState == PUSH_ENABLED
+        }
+
+    override fun addDependent(dependent: SmartPushDependent) {
+        if (isPushable) myDependents.add(dependent)
+    }
+
+    override fun removeDependent(dependent: SmartPushDependent) {
+        myDependents.remove(dependent)
+    }
+
+    override fun invalidate(pass: Int) {
+        if (myPass != pass) {
+            myPass = pass
+            myIsDirty = true
+            myDependents.invalidate(pass)
+        }
+    }
+
+    override fun disablePush() {
+        if (myPushState != PUSH_DISABLED) {
+            myPushState = PUSH_DISABLED
+            myIsDirty = true
+            myDependents.disablePush()
+        }
+    }
+
+    // name under which staleness checks are profiled, null if not profiled
+    protected open val profileName: String? get() = null
 
     override val versionSerial: Int get() = mySnapshot.dependenciesSerial
     override val isStale: Boolean get() {
-        myIsStale = (myIsStale || isStaleRaw)
+        if (!myIsStale) {
+            if (SmartDataProfiler.isEnabled) {
+                val entered = SmartDataProfiler.enterStaleCheck()
+                try {
+                    myIsStale = isStaleRaw
+                } finally {
+                    SmartDataProfiler.leaveStaleCheck(profileName, entered)
+                }
+            } else {
+                myIsStale = isStaleRaw
+            }
+        }
         return myIsStale
     }
 
@@ -283,7 +595,7 @@ abstract class SmartDependentVersionBase : SmartVersion, SnapshotHolder<VersionS
         get() {
             var mutable = myMutable
             if (mutable == null) {
-                mutable = SmartVersionManager.isMutable(dependencies)
+                mutable = myDomain.isMutable(dependencies)
                 myMutable = mutable
             }
             return mutable
@@ -300,6 +612,7 @@ abstract class SmartDependentVersionBase : SmartVersion, SnapshotHolder<VersionS
     }
 
     protected open fun onSuperInit() {
+        myDomain.checkDependencies(dependencies)
         onNextVersion()
     }
 
@@ -311,7 +624,8 @@ abstract class SmartDependentVersionBase : SmartVersion, SnapshotHolder<VersionS
 
     protected open fun onNextVersion() {
         myIsStale = false
-        SmartVersionManager.freshenSnapshot(this, dependencies)
+        myIsDirty = false
+        myDomain.freshenSnapshot(this, dependencies)
     }
 }
 
@@ -388,6 +702,12 @@ open class SmartSnapshotVersion(dependencies: Iterable<SmartVersion>) : SmartCac
     override val isStale: Boolean
         get() = false
 
+    // never changes, nothing to push
+    override val isPushable: Boolean
+        get() = true
+
+    override fun addDependent(dependent: SmartPushDependent) {
+    }
 }
 
 open class SmartDependentVersionHolder(dependencies: Iterable<SmartVersionedData>) : SmartDependentVersion(SmartVersionedDataIterableAdapter(dependencies)) {
@@ -402,6 +722,39 @@ open class SmartCacheVersionHolder(dependencies: Iterable<SmartVersionedData>) :
     constructor(dependency: SmartVersionedData) : this(listOf(dependency))
 }
 
+/**
+ * version of versioned data, ie. a smart char sequence, as a data holder so it can be a dependency of dependent data,
+ * value is the version serial
+ */
+open class SmartVersionedDataVersion(val data: SmartVersionedData) : SmartVersionedDataHolder<Int>, SmartPushVersion {
+    override val versionSerial: Int get() = data.version.versionSerial
+    override val isStale: Boolean get() = data.version.isStale
+    override val isMutable: Boolean get() = data.version.isMutable
+    override val dependencies: Iterable<SmartVersion> get() = data.version.dependencies
+
+    override fun nextVersion() {
+        data.version.nextVersion()
+    }
+
+    override val isPushable: Boolean get() = (data.version as? SmartPushVersion)?.isPushable ?: false
+
+    override fun addDependent(dependent: SmartPushDependent) {
+        (data.version as? SmartPushVersion)?.addDependent(dependent)
+    }
+
+    override fun removeDependent(dependent: SmartPushDependent) {
+        (data.version as? SmartPushVersion)?.removeDependent(dependent)
+    }
+
+    override fun get(): Int = versionSerial
+
+    @Suppress("UNUSED_PARAMETER")
+    override var dataSnapshot: DataSnapshot<Int>
+        get() = DataSnapshot(versionSerial, versionSerial)
+        set(value) {
+        }
+}
+
 /**
  * Versioned Data Classes
  */
@@ -412,10 +765,10 @@ interface DataSnapshotHolder<V> {
     var dataSnapshot: DataSnapshot<V>
 }
 
-open class SmartImmutableData<V>(name: String, value: V, versionSerial: Int) : SmartVersionedDataHolder<V> {
-    constructor(value: V) : this("<unnamed>", value, SmartVersionManager.nextSerial)
+open class SmartImmutableData<V>(name: String, value: V, versionSerial: Int) : SmartVersionedDataHolder<V>, SmartPushVersion {
+    constructor(value: V) : this("<unnamed>", value, SmartVersionDomain.current.nextSerial)
 
-    constructor(name: String, value: V) : this(name, value, SmartVersionManager.nextSerial)
+    constructor(name: String, value: V) : this(name, value, SmartVersionDomain.current.nextSerial)
 
     protected val myVersion = versionSerial
 
@@ -427,6 +780,15 @@ open class SmartImmutableData<V>(name: String, value: V, versionSerial: Int) : S
     final override fun nextVersion() {
     }
 
+    // never changes, nothing to push
+    final override val isPushable: Boolean get() = true
+
+    final override fun addDependent(dependent: SmartPushDependent) {
+    }
+
+    final override fun removeDependent(dependent: SmartPushDependent) {
+    }
+
     val myName = name
 
     protected val myValue = value
@@ -454,7 +816,7 @@ open class SmartVolatileData<V>(name: String, value: V) : SmartVolatileVersion()
     override fun set(value: V) {
         if (myValue.value != value) {
             super.nextVersion()
-            SmartVersionManager.freshenSnapshot(this, DataSnapshot(versionSerial, value))
+            myDomain.freshenSnapshot(this, DataSnapshot(versionSerial, value))
         }
     }
 
@@ -530,6 +892,13 @@ open class SmartSnapshotData<V>(name: String, dependency: SmartVersionedDataHold
     override val isStale: Boolean
         get() = false
 
+    // never changes, nothing to push
+    override val isPushable: Boolean
+        get() = true
+
+    override fun addDependent(dependent: SmartPushDependent) {
+    }
+
 }
 
 open class SmartComputedData<V>(name: String, computable: Supplier<V>) : SmartVolatileVersion(), SmartVersionedDataHolder<V> {
@@ -545,7 +914,7 @@ open class SmartComputedData<V>(name: String, computable: Supplier<V>) : SmartVo
 
     open protected fun onCompute(): V {
         super.nextVersion()
-        SmartVersionManager.freshenSnapshot(this, DataSnapshot(myVersion, myComputable.get()))
+        myDomain.freshenSnapshot(this, DataSnapshot(myVersion, myComputable.get()))
         return myValue.value
     }
 
@@ -588,6 +957,7 @@ open class SmartUpdateDependentData<V>(name: String, dependencies: Iterable<Smar
     constructor(dependency: SmartVersionedDataHolder<*>, computable: () -> V) : this(listOf(dependency), computable)
 
     val myName = name
+    override val profileName: String? get() = myName
     protected var myComputable: Supplier<V>? = computable
     protected var myValue: DataSnapshot<V> = onCompute()
 
@@ -595,7 +965,7 @@ open class SmartUpdateDependentData<V>(name: String, dependencies: Iterable<Smar
         val computable = myComputable
         if (computable != null) {
             super.onNextVersion()
-            SmartVersionManager.freshenSnapshot(this, DataSnapshot(mySnapshot.dependenciesSerial, computable.get()))
+            myDomain.freshenSnapshot(this, DataSnapshot(mySnapshot.dependenciesSerial, SmartDataProfiler.compute(myName, mySnapshot) { computable.get() }))
         }
     }
 
@@ -670,6 +1040,7 @@ open class SmartUpdateIterableData<V>(name: String, dependencies: Iterable<Smart
     constructor(dependency: SmartVersionedDataHolder<V>) : this("<unnamed>", dependency)
 
     val myName = name
+    override val profileName: String? get() = myName
     protected var myComputable: DataValueComputable<Iterable<SmartVersionedDataHolder<*>>, V>? = computable
     protected var myValue: DataSnapshot<V> = onCompute()
 
@@ -677,7 +1048,7 @@ open class SmartUpdateIterableData<V>(name: String, dependencies: Iterable<Smart
         val computable = myComputable
         if (computable != null) {
             super.onNextVersion()
-            SmartVersionManager.freshenSnapshot(this, DataSnapshot(mySnapshot.dependenciesSerial, computable.compute(dataDependencies)))
+            myDomain.freshenSnapshot(this, DataSnapshot(mySnapshot.dependenciesSerial, SmartDataProfiler.compute(myName, mySnapshot) { computable.compute(dataDependencies) }))
         }
     }
 
@@ -770,6 +1141,7 @@ open class SmartUpdateVectorData<V>(name: String, dependencies: Iterable<SmartVe
     constructor(dependency: SmartVersionedDataHolder<V>, computable: (Iterable<V>) -> V) : this(listOf(dependency), computable)
 
     val myName = name
+    override val profileName: String? get() = myName
     protected var myComputable: IterableDataComputable<V>? = computable
     protected var myValue = onCompute()
 
@@ -777,7 +1149,7 @@ open class SmartUpdateVectorData<V>(name: String, dependencies: Iterable<SmartVe
         val computable = myComputable
         if (computable != null) {
             super.onNextVersion()
-            SmartVersionManager.freshenSnapshot(this, DataSnapshot(mySnapshot.dependenciesSerial, computable.compute(valueDependencies)))
+            myDomain.freshenSnapshot(this, DataSnapshot(mySnapshot.dependenciesSerial, SmartDataProfiler.compute(myName, mySnapshot) { computable.compute(valueDependencies) }))
         }
     }
 
@@ -856,6 +1228,7 @@ open class SmartLatestDependentData<V>(name: String, dependencies: Iterable<Smar
     }
 
     val myName = name
+    override val profileName: String? get() = myName
     protected val myRunnable = runnable
     @Suppress("UNCHECKED_CAST")
     protected val myComputable = Supplier<DataSnapshot<V>> {
@@ -870,7 +1243,7 @@ open class SmartLatestDependentData<V>(name: String, dependencies: Iterable<Smar
         if (computable != null) {
             super.onNextVersion()
             val runnable = myRunnable
-            if (SmartVersionManager.freshenSnapshot(this, computable.get()) && runnable != null) {
+            if (myDomain.freshenSnapshot(this, SmartDataProfiler.compute(myName, mySnapshot) { computable.get() }) && runnable != null) {
                 runnable.run()
             }
         }
@@ -890,6 +1263,8 @@ open class SmartLatestDependentData<V>(name: String, dependencies: Iterable<Smar
     internal fun setVersionedValue(value: V, versionSerial: Int) {
         mySnapshot = VersionSnapshot(versionSerial, versionSerial, NULL_VERSION)
         myValue = DataSnapshot(versionSerial, value)
+        myDomain.touchSerial()
+        myDependents.invalidate()
     }
 
     override fun get(): V {
@@ -902,17 +1277,27 @@ open class SmartLatestDependentData<V>(name: String, dependencies: Iterable<Smar
     }
 }
 
-open class SmartVersionedDataAlias<V>(name: String, aliased: SmartVersionedDataHolder<V>) : SmartVersionedDataHolder<V>, SmartVersionedVolatileDataHolder<V> {
+open class SmartVersionedDataAlias<V>(name: String, aliased: SmartVersionedDataHolder<V>) : SmartVersionedDataHolder<V>, SmartVersionedVolatileDataHolder<V>, SmartPushVersion, SmartDomainVersion, SmartPushDependent {
     constructor(aliased: SmartVersionedDataHolder<V>) : this("<unnamed>", aliased)
 
     protected val myName = name
-    protected var myVersion: Int = SmartVersionManager.nextSerial
+    protected val myDomain = SmartVersionDomain.current
+    protected var myVersion: Int = myDomain.nextSerial
+    protected val myDependents = SmartPushDependents()
+    @Volatile protected var myPushState = PUSH_UNKNOWN
+    protected var myPass = 0
 
     // unwrap nested alias references
     protected var myAliased = aliased //if (aliased is SmartVersionedDataAlias<V>) aliased.alias else aliased
     protected var myRecursion = RecursionGuard()
     protected var myLastDataSnapshot: DataSnapshot<V> = myAliased.dataSnapshot
 
+    init {
+        myDomain.checkDependency(aliased)
+    }
+
+    override val domain: SmartVersionDomain get() = myDomain
+
     protected fun updateDataSnapshot() {
         myLastDataSnapshot = myAliased.dataSnapshot
     }
@@ -920,13 +1305,65 @@ open class SmartVersionedDataAlias<V>(name: String, aliased: SmartVersionedDataH
     var alias: SmartVersionedDataHolder<V>
         get() = myAliased
         set(value) {
+            myDomain.checkDependency(value)
+            val aliased = myAliased
             myAliased = value
-            if (value.versionSerial != NULL_SERIAL) touchVersionSerial()
+            retargetPush(aliased, value)
+            if (value.versionSerial != NULL_SERIAL) myVersion = myDomain.nextSerial
+            else myDomain.touchSerial()
             updateDataSnapshot()
+            myDependents.invalidate()
         }
 
     fun touchVersionSerial() {
-        myVersion = SmartVersionManager.nextSerial
+        myVersion = myDomain.nextSerial
+        myDependents.invalidate()
+    }
+
+    protected fun retargetPush(aliased: SmartVersionedDataHolder<V>, value: SmartVersionedDataHolder<V>) {
+        if (myPushState == PUSH_ENABLED) {
+            if (aliased is SmartPushVersion) aliased.removeDependent(this)
+            if (value is SmartPushVersion && value.isPushable) value.addDependent(this)
+            else disablePush()
+        }
+    }
+
+    override val isPushable: Boolean
+        get() {
+            if (myPushState == PUSH_UNKNOWN) {
+                synchronized(this) {
+                    if (myPushState == PUSH_UNKNOWN) {
+                        myPushState = PUSH_RESOLVING
+                        val aliased = myAliased
+                        val pushable = myDomain.isPushInvalidation && aliased is SmartPushVersion && aliased.isPushable
+                        if (pushable) (aliased as SmartPushVersion).addDependent(this)
+                        myPushState = if (pushable) PUSH_ENABLED else PUSH_DISABLED
+                    }
+                }
+            }
+            return myPushState == PUSH_ENABLED
+        }
+
+    override fun addDependent(dependent: SmartPushDependent) {
+        if (isPushable) myDependents.add(dependent)
+    }
+
+    override fun removeDependent(dependent: SmartPushDependent) {
+        myDependents.remove(dependent)
+    }
+
+    override fun invalidate(pass: Int) {
+        if (myPass != pass) {
+            myPass = pass
+            myDependents.invalidate(pass)
+        }
+    }
+
+    override fun disablePush() {
+        if (myPushState != PUSH_DISABLED) {
+            myPushState = PUSH_DISABLED
+            myDependents.disablePush()
+        }
     }
 
     override val versionSerial: Int
@@ -991,6 +1428,7 @@ open class SmartVersionedDataAlias<V>(name: String, aliased: SmartVersionedDataH
         val aliased = myAliased
         if (aliased is SmartVersionedDataAlias<V>) {
             myAliased = aliased.alias
+            retargetPush(aliased, myAliased)
         }
     }
 
@@ -1005,7 +1443,7 @@ open class SmartVersionedDataAlias<V>(name: String, aliased: SmartVersionedDataH
  *  The final value is the latest value between the volatile version and the external dependency version, effectively just like volatile data will hold the last value written
  *
  */
-open class SmartVersionedProperty<V>(name: String, initialValue: V, runnable: Consumer<V>?) : SmartVersionedPropertyHolder<V> {
+open class SmartVersionedProperty<V>(name: String, initialValue: V, runnable: Consumer<V>?) : SmartVersionedPropertyHolder<V>, SmartPushVersion {
     constructor(name: String, initialValue: V) : this(name, initialValue, null)
 
     constructor(name: String, initialValue: V, runnable: (V) -> Unit) : this(name, initialValue, Consumer { runnable(it) })
@@ -1026,6 +1464,17 @@ open class SmartVersionedProperty<V>(name: String, initialValue: V, runnable: Co
 
     override val dependencies: Iterable<SmartVersion> get() = myValue.dependencies
 
+    // changes reach dependents through the latest value
+    override val isPushable: Boolean get() = myValue.isPushable
+
+    override fun addDependent(dependent: SmartPushDependent) {
+        myValue.addDependent(dependent)
+    }
+
+    override fun removeDependent(dependent: SmartPushDependent) {
+        myValue.removeDependent(dependent)
+    }
+
     override fun connect(aliased: SmartVersionedDataHolder<V>) {
         myExternal.alias = aliased
     }
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * mutable version of TrackedLocation, sequences fill it in place so mapping an index through nested
+ * sequences does not allocate a TrackedLocation per nesting level
+ */
+public class TrackedLocationCursor {
+    public int index;
+    public int prevIndex;
+    public int nextIndex;
+    public int offset;
+    public int prevOffset;
+    public int nextOffset;
+    @NotNull public Object source;
+    @NotNull public Object prevSource;
+    @NotNull public Object nextSource;
+
+    public TrackedLocationCursor() {
+        source = this;
+        prevSource = this;
+        nextSource = this;
+    }
+
+    public boolean isExact() {
+        return index == prevIndex && index == nextIndex && source == prevSource && source == nextSource;
+    }
+
+    @NotNull
+    public TrackedLocationCursor set(int index, int offset, @NotNull Object source) {
+        this.index = index;
+        this.prevIndex = index;
+        this.nextIndex = index;
+        this.offset = offset;
+        this.prevOffset = offset;
+        this.nextOffset = offset;
+        this.source = source;
+        this.prevSource = source;
+        this.nextSource = source;
+        return this;
+    }
+
+    @NotNull
+    public TrackedLocationCursor set(@NotNull TrackedLocation location) {
+        index = location.index;
+        prevIndex = location.prevIndex;
+        nextIndex = location.nextIndex;
+        offset = location.offset;
+        prevOffset = location.prevOffset;
+        nextOffset = location.nextOffset;
+        source = location.source;
+        prevSource = location.prevSource;
+        nextSource = location.nextSource;
+        return this;
+    }
+
+    @NotNull
+    public TrackedLocationCursor setPrevClosest(int prevIndex, int prevOffset, @NotNull Object prevSource) {
+        this.prevIndex = prevIndex;
+        this.prevOffset = prevOffset;
+        this.prevSource = prevSource;
+        return this;
+    }
+
+    @NotNull
+    public TrackedLocationCursor setNextClosest(int nextIndex, int nextOffset, @NotNull Object nextSource) {
+        this.nextIndex = nextIndex;
+        this.nextOffset = nextOffset;
+        this.nextSource = nextSource;
+        return this;
+    }
+
+    /**
+     * shift index, prevIndex and nextIndex by delta, used when mapping from a segment to its parent
+     */
+    @NotNull
+    public TrackedLocationCursor shiftIndex(int delta) {
+        index += delta;
+        prevIndex += delta;
+        nextIndex += delta;
+        return this;
+    }
+
+    /**
+     * mirror index, prevIndex and nextIndex for a reversed sequence of given length
+     */
+    @NotNull
+    public TrackedLocationCursor reverseIndex(int length) {
+        index = length - index - 1;
+        prevIndex = length - prevIndex - 1;
+        nextIndex = length - nextIndex - 1;
+        return this;
+    }
+
+    /**
+     * limit index, prevIndex and nextIndex to maxIndex
+     */
+    @NotNull
+    public TrackedLocationCursor limitIndex(int maxIndex) {
+        if (index > maxIndex) index = maxIndex;
+        if (prevIndex > maxIndex) prevIndex = maxIndex;
+        if (nextIndex > maxIndex) nextIndex = maxIndex;
+        return this;
+    }
+
+    @NotNull
+    public TrackedLocation toTrackedLocation() {
+        return new TrackedLocation(index, prevIndex, nextIndex, offset, prevOffset, nextOffset, source, prevSource, nextSource);
+    }
+}
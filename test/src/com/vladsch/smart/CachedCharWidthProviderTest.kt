@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.vladsch.smart
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Test
+
+class CachedCharWidthProviderTest {
+    // upper case chars are upperWidth wide, counts calls to measure widths
+    class CountingWidthProvider(val upperWidth: Int = 2) : CharWidthProvider {
+        var charCalls = 0
+        var stringCalls = 0
+        var batchCalls = 0
+        var batchWidths = 0
+
+        override fun charWidth(c: Char): Int {
+            charCalls++
+            return if (c.isUpperCase()) upperWidth else 1
+        }
+
+        override fun getStringWidth(charSequence: CharSequence, zeroWidth: CharSequence?): Int {
+            stringCalls++
+            var width = 0
+            for (c in charSequence) {
+                if (zeroWidth == null || zeroWidth.indexOf(c) < 0) width += if (c.isUpperCase()) upperWidth else 1
+            }
+            return width
+        }
+
+        override fun getStringWidths(chars: CharArray, starts: IntArray, ends: IntArray, count: Int, widths: IntArray) {
+            batchCalls++
+            batchWidths += count
+            for (i in 0..count - 1) {
+                widths[i] = 0
+                for (k in starts[i]..ends[i] - 1) widths[i] += if (chars[k].isUpperCase()) upperWidth else 1
+            }
+        }
+
+        override fun getSpaceWidth(): Int = 1
+        override fun lineChars(line: Int): CharSequence? = null
+        override fun lineStart(line: Int): Int? = null
+        override fun lineEnd(line: Int): Int? = null
+        override fun offsetLineStart(offset: Int): Int? = null
+        override fun offsetLineEnd(offset: Int): Int? = null
+        override fun offsetLineNumber(offset: Int): Int? = null
+        override fun initCharWidths(startOffset: Int, endOffset: Int) {
+        }
+    }
+
+    @Test
+    fun test_charWidths() {
+        val delegate = CountingWidthProvider()
+        val provider = CachedCharWidthProvider(delegate)
+
+        assertEquals(2, provider.charWidth('A'))
+        assertEquals(1, provider.charWidth('a'))
+        assertEquals(2, provider.getCharWidth('A'))
+        assertEquals(1, provider.charWidth('\uFFFF'))
+        assertEquals(3, delegate.charCalls)
+
+        provider.clear()
+        assertEquals(2, provider.charWidth('A'))
+        assertEquals(4, delegate.charCalls)
+    }
+
+    @Test
+    fun test_stringWidths() {
+        val delegate = CountingWidthProvider()
+        val provider = CachedCharWidthProvider(delegate, 2, 8)
+
+        assertEquals(10, provider.getStringWidth("Cell Txt"))
+        assertEquals(10, provider.getStringWidth(SmartCharArraySequence("Cell Txt".toCharArray())))
+        assertEquals(1, delegate.stringCalls)
+
+        // same content in a mutable sequence is measured once and not affected by later changes
+        val chars = StringBuilder("Cell")
+        assertEquals(5, provider.getStringWidth(chars))
+        chars.setCharAt(0, 'c')
+        assertEquals(4, provider.getStringWidth(chars))
+        assertEquals(3, delegate.stringCalls)
+
+        // least recently used is dropped
+        assertEquals(2, provider.size)
+        assertEquals(10, provider.getStringWidth("Cell Txt"))
+        assertEquals(4, delegate.stringCalls)
+
+        // long strings and zero width chars go to the delegate
+        assertEquals(14, provider.getStringWidth("long cell text"))
+        assertEquals(3, provider.getStringWidth("a-b-c", "-"))
+        assertEquals(6, delegate.stringCalls)
+    }
+
+    @Test
+    fun test_stringWidthsBatch() {
+        val delegate = CountingWidthProvider()
+        val provider = CachedCharWidthProvider(delegate)
+        val chars = "ab Cd ab x".toCharArray()
+        val starts = intArrayOf(0, 3, 6, 9, 2)
+        val ends = intArrayOf(2, 5, 8, 10, 2)
+        val widths = IntArray(5)
+
+        // misses go to the delegate in one batch
+        provider.getStringWidths(chars, starts, ends, 5, widths)
+        assertEquals("[2, 3, 2, 1, 0]", widths.contentToString())
+        assertEquals(1, delegate.batchCalls)
+        assertEquals(3, delegate.batchWidths)
+
+        widths.fill(-1)
+        provider.getStringWidths(chars, starts, ends, 5, widths)
+        assertEquals("[2, 3, 2, 1, 0]", widths.contentToString())
+        assertEquals(1, delegate.batchCalls)
+
+        assertEquals(3, provider.getStringWidth("Cd"))
+        assertEquals(0, delegate.stringCalls)
+
+        CharWidthProvider.UNITY_PROVIDER.getStringWidths(chars, starts, ends, 5, widths)
+        assertEquals("[2, 2, 2, 1, 0]", widths.contentToString())
+    }
+
+    @Test
+    fun test_of() {
+        val provider = CachedCharWidthProvider.of(CountingWidthProvider())
+
+        assertSame(CharWidthProvider.UNITY_PROVIDER, CachedCharWidthProvider.of(CharWidthProvider.UNITY_PROVIDER))
+        assertSame(provider, CachedCharWidthProvider.of(provider))
+    }
+
+    @Test
+    fun test_ofShared() {
+        val delegate = CountingWidthProvider()
+        val provider = CachedCharWidthProvider.of(delegate)
+
+        assertSame(provider, CachedCharWidthProvider.of(delegate))
+        assertEquals(2, provider.charWidth('A'))
+        assertEquals(2, CachedCharWidthProvider.of(delegate).charWidth('A'))
+        assertEquals(1, delegate.charCalls)
+    }
+}
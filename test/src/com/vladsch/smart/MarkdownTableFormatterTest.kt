@@ -342,4 +342,128 @@ Row 2 Col 0 Default Alignment|Row 2 Col 1 More Data|Row 2 Col 2 a lot more Data|
     | Row 2 Col 0 Default Alignment | Row 2 Col 1 More Data | Row 2 Col 2 a lot more Data |      Row 2 Col 3 Data |
 """, formattedTable.toString())
     }
+
+    @Test
+    fun parseTableCells() {
+        val table = SmartCharArraySequence("""    |a| b |  |
+    | :--- |---:| - |
+${'\t'}  x|| y  |
+    |
+""".toCharArray())
+
+        val markdownTable = MarkdownTableFormatter.parseTable(table, -1, false)
+        val rows = markdownTable.rows
+
+        assertEquals("    ", markdownTable.indentPrefix.toString())
+        assertEquals(4, rows.size)
+        assertEquals(1, markdownTable.separatorRow)
+
+        assertEquals(listOf("a", "b", " "), rows[0].rowCells.map { it.charSequence.toString() })
+        assertEquals(listOf(1, 3, 2), rows[0].rowCells.map { it.untrimmedWidth })
+        assertEquals(false, rows[0].isSeparator)
+
+        assertEquals(listOf(":---", "---:", "-"), rows[1].rowCells.map { it.charSequence.toString() })
+        assertEquals(true, rows[1].isSeparator)
+
+        assertEquals(listOf("x", "y"), rows[2].rowCells.map { it.charSequence.toString() })
+        assertEquals(listOf(2, 1), rows[2].rowCells.map { it.colSpan })
+        assertEquals(listOf(1, 4), rows[2].rowCells.map { it.untrimmedWidth })
+
+        assertEquals(0, rows[3].rowCells.size)
+        assertEquals(false, rows[3].isSeparator)
+    }
+
+    @Test
+    fun parseTableCaretCell() {
+        val table = SmartCharArraySequence("| abc  | d |\n".toCharArray())
+
+        val markdownTable = MarkdownTableFormatter.parseTable(table, 6, false)
+        assertEquals(0, markdownTable.offsetRow)
+        assertEquals(0, markdownTable.offsetColumn)
+        assertEquals(listOf("abc ", "d"), markdownTable.rows[0].rowCells.map { it.charSequence.toString() })
+
+        val trimmedTable = MarkdownTableFormatter.parseTable(table, 6, true)
+        assertEquals(listOf("abc", "d"), trimmedTable.rows[0].rowCells.map { it.charSequence.toString() })
+        assertEquals(listOf(3, 1), trimmedTable.rows[0].rowCells.map { it.untrimmedWidth })
+    }
+
+    @Test
+    fun separatorColumnMarkers() {
+        val left = MarkdownTableParser.SEPARATOR_HAVE_LEFT
+        val right = MarkdownTableParser.SEPARATOR_HAVE_RIGHT
+
+        assertEquals(0, MarkdownTableParser.separatorMarkers("-"))
+        assertEquals(0, MarkdownTableParser.separatorMarkers(" \t---  "))
+        assertEquals(left, MarkdownTableParser.separatorMarkers(" :---"))
+        assertEquals(right, MarkdownTableParser.separatorMarkers("---: "))
+        assertEquals(left or right, MarkdownTableParser.separatorMarkers(":-:"))
+
+        for (column in arrayOf("", " ", ":", "::", ":-::", "- -", "-a", "::-", "-:-", "--- :")) {
+            assertEquals("'$column'", -1, MarkdownTableParser.separatorMarkers(column))
+            assertEquals("'$column'", false, MarkdownTableFormatter.SEPARATOR_COLUMN_PATTERN_REGEX.matches(column))
+        }
+    }
+
+    @Test
+    fun formattedTableUpdate() {
+        val lines = arrayListOf(
+                "Header 0|Header 1|Header 2|Header 3",
+                " --------|:-------- |:--------:|-------:",
+                "|Row 1 Col 0 Data|Row 1 Col 1 Data|Row 1 Col 2 More Data|Row 1 Col 3 Much Data|",
+                "|Row 2 Col 0 Default Alignment|Row 2 Col 1 More Data|Row 2 Col 2 a lot more Data|Row 2 Col 3 Data|",
+                "|Row 3 Col 0-1 Default Alignment||Row 3 Col 2 a lot more Data|Row 3 Col 3 Data|")
+
+        val settings = MarkdownTableFormatSettings()
+        val formattedTable = MarkdownFormattedTable(MarkdownTableFormatter(settings))
+
+        fun tableChars(): SmartCharSequence = SmartCharArraySequence(lines.joinToString("\n", postfix = "\n").toCharArray())
+        fun expected(chars: SmartCharSequence): String = MarkdownTableFormatter(settings).formatTable(chars).toString()
+
+        var chars = tableChars()
+        assertEquals(expected(chars), formattedTable.format(chars, -1).toString())
+        assertEquals(5, formattedTable.reformattedRows)
+
+        // wider cell in one row
+        lines[3] = "|Row 2 Col 0 Default Alignment with more text|Row 2 Col 1 More Data|Row 2 Col 2 a lot more Data|Row 2 Col 3 Data|"
+        chars = tableChars()
+        assertEquals(expected(chars), formattedTable.update(chars, 3, 4, -1).toString())
+        assertEquals(1, formattedTable.reformattedRows)
+
+        // narrower again and a span
+        lines[3] = "|Row 2|Row 2 Col 1 More Data|Row 2 Col 2 a lot more Data|Row 2 Col 3 Data|"
+        lines[4] = "|Row 3 Col 0-1 Default Alignment and a lot more text||Row 3 Col 2|Row 3 Col 3 Data|"
+        chars = tableChars()
+        assertEquals(expected(chars), formattedTable.update(chars, 3, 5, -1).toString())
+        assertEquals(2, formattedTable.reformattedRows)
+
+        // different spans re-format all rows
+        lines[4] = "|Row 3 Col 0|Row 3 Col 1|Row 3 Col 2|Row 3 Col 3 Data|"
+        chars = tableChars()
+        assertEquals(expected(chars), formattedTable.update(chars, 4, 5, -1).toString())
+        assertEquals(5, formattedTable.reformattedRows)
+
+        // separator row re-formats all rows
+        lines[1] = "|---|---|---|---|"
+        chars = tableChars()
+        assertEquals(expected(chars), formattedTable.update(chars, 1, 2, -1).toString())
+        assertEquals(5, formattedTable.reformattedRows)
+    }
+
+    @Test
+    fun formatTableBatchWidths() {
+        val table = SmartCharArraySequence("""Header 0|Header 1|Header 2|Header 3
+ --------|:-------- |:--------:|-------:
+|Row 1 Col 0 Data|Row 1 Col 1 Data|Row 1 Col 2 More Data|Row 1 Col 3 Much Data|
+|Row 2 Col 0 Default Alignment|Row 2 Col 1 More Data|Row 2 Col 2 a lot more Data|Row 2 Col 3 Data|
+|Row 3 Col 0-1 Default Alignment||Row 3 Col 2 a lot more Data|Row 3 Col 3 Data|
+""".toCharArray())
+
+        val settings = MarkdownTableFormatSettings()
+        val expected = MarkdownTableFormatter(settings).formatTable(table, -1, CharWidthProvider.UNITY_PROVIDER).toString()
+
+        // unit widths through a measuring provider give the same table, cell text is measured in one batch
+        val widthProvider = CachedCharWidthProviderTest.CountingWidthProvider(1)
+        assertEquals(expected, MarkdownTableFormatter(settings).formatTable(table, -1, widthProvider).toString())
+        assertEquals(1, widthProvider.batchCalls)
+    }
 }
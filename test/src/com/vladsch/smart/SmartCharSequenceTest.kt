@@ -22,6 +22,8 @@
 package com.vladsch.smart
 
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
 import org.junit.Test
 
 class SmartCharSequenceTest() {
@@ -70,4 +72,99 @@ class SmartCharSequenceTest() {
         assertEquals("bbbcdef", charSeq.replace("a", "").toString())
         assertEquals("aa.b..b..b.cdefa", charSeq.replace("b", ".b.").toString())
     }
+
+    fun longText(): String {
+        val sb = StringBuilder()
+        for (i in 0..299) {
+            sb.append("line ").append(i).append('\t').append("text\n")
+        }
+        return sb.toString()
+    }
+
+    fun longSequences(text: String): List<SmartCharSequence> {
+        val segments = ArrayList<CharSequence>()
+        var i = 0
+        while (i < text.length) {
+            val end = (i + 7 + i % 13).minLimit(text.length)
+            segments.add(SmartCharSequenceWrapper(text, i, end.maxLimit(text.length)))
+            i = end
+        }
+
+        return listOf(
+                SmartCharArraySequence(text.toCharArray()),
+                SmartCharSequenceWrapper("<" + text + ">", 1, text.length + 1),
+                SmartReversedCharSequence(text.reversed()),
+                SmartMappedCharSequence(SmartCharSequenceWrapper(text.uppercase()), LowerCaseMapper).lowercase(),
+                SmartReplacedCharSequence(SmartCharSequenceWrapper(text.reversed()), text),
+                SmartSegmentedCharSequence(segments),
+                SmartRopeCharSequence(segments)
+        )
+    }
+
+    @Test
+    fun test_rangeGetChars() {
+        val text = longText().lowercase()
+        for (chars in longSequences(text)) {
+            for (start in listOf(0, 1, 15, 100, 1000, text.length)) {
+                for (end in listOf(start, start + 1, start + 17, start + 2000, text.length)) {
+                    if (end > text.length || end < start) continue
+                    val dst = CharArray(end - start + 2)
+                    chars.getChars(start, end, dst, 1)
+                    assertEquals("${chars.javaClass.simpleName} [$start, $end)", text.substring(start, end), String(dst, 1, end - start))
+                }
+            }
+        }
+    }
+
+    @Test
+    fun test_chunkCursor() {
+        val text = longText()
+        val chars = SmartCharSequenceWrapper(text)
+        for (isForward in listOf(true, false)) {
+            val cursor = CharChunkCursor(chars, 3, text.length - 5, isForward)
+            val sb = StringBuilder()
+            var lastEnd = if (isForward) 3 else text.length - 5
+            while (cursor.next()) {
+                assertTrue(cursor.chunkLength <= CharChunkCursor.MAX_CHUNK_SIZE)
+                assertEquals(lastEnd, if (isForward) cursor.chunkStart else cursor.chunkEnd)
+                val chunk = String(cursor.chunk, 0, cursor.chunkLength)
+                if (isForward) sb.append(chunk) else sb.insert(0, chunk)
+                lastEnd = if (isForward) cursor.chunkEnd else cursor.chunkStart
+            }
+            assertEquals(text.substring(3, text.length - 5), sb.toString())
+        }
+    }
+
+    @Test
+    fun test_longScans() {
+        val text = " ".repeat(1500) + "x" + " \t".repeat(1200)
+        val expandedText = SmartCharSequenceWrapper(longText()).expandTabs(8).toString()
+        for (chars in longSequences(text)) {
+            assertEquals(1500, chars.countLeading(" "))
+            assertEquals(2400, chars.countTrailing(" \t"))
+            assertEquals(1500, chars.countLeading(' '))
+            assertEquals(2400, chars.countTrailing(' ', '\t'))
+            assertTrue(chars.equivalent(text))
+            assertFalse(chars.equivalent(text.replace('x', 'y')))
+            assertEquals(chars.javaClass.simpleName, text.replace("\t", "--"), chars.replace("\t", "--").toString())
+        }
+        for (chars in longSequences(longText())) {
+            assertEquals(expandedText, chars.expandTabs(8).toString())
+        }
+    }
+
+    @Test
+    fun test_extractGroups() {
+        val pattern = "(\\w+)=(\\d+)?"
+        val chars = SmartCharArraySequence("abc=123".toCharArray())
+
+        val groups = chars.extractGroups(pattern)!!
+        assertEquals(listOf("abc=123", "abc", "123"), groups.map { it.toString() })
+        assertTrue(SmartRegexCache.regex(pattern) === SmartRegexCache.regex(pattern))
+
+        val regex = pattern.toRegex()
+        assertEquals("abc=123abc123", chars.extractGroupsSegmented(regex).toString())
+        assertEquals(NULL_SEQUENCE, chars.subSequence(0, 4).extractGroups(regex)!![2])
+        assertEquals(null, chars.extractGroups("\\d+"))
+    }
 }
@@ -32,6 +32,8 @@ import org.junit.runners.Suite;
         SmartCharSequenceWrapperTest.class,
         SmartReversedCharSequenceTest.class,
         SmartSegmentedCharSequenceTest.class,
+        SmartRopeCharSequenceTest.class,
+        SmartOffsetMapTest.class,
         SmartVariableCharSequenceTest.class,
         SmartDataTestSuite.class,
         SmartRepeatedCharSequenceTest.class,
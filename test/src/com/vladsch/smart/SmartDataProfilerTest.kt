@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.vladsch.smart
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class SmartDataProfilerTest {
+    @Before
+    fun setUp() {
+        SmartDataProfiler.reset()
+        SmartDataProfiler.isEnabled = true
+    }
+
+    @After
+    fun tearDown() {
+        SmartDataProfiler.isEnabled = false
+        SmartDataProfiler.reset()
+    }
+
+    @Test
+    fun test_keyCounters() {
+        val WIDTH = SmartVolatileDataKey("PROFILED_WIDTH", 0)
+        val MAX_WIDTH = SmartAggregatedScopesDataKey("PROFILED_MAX_WIDTH", 0, WIDTH, SmartScopes.SELF_DOWN, IterableDataComputable { it.max() })
+
+        val topScope = SmartDataScopeManager.createDataScope("top")
+        val row0 = topScope.createDataScope("row0")
+        val row1 = topScope.createDataScope("row1")
+        WIDTH[row0, 0] = 10
+        WIDTH[row1, 0] = 15
+
+        val maxWidth = topScope[MAX_WIDTH, 0]
+        topScope.finalizeAllScopes()
+
+        // created in top and both rows, computed once when created
+        val created = SmartDataProfiler.profile(MAX_WIDTH)!!
+        assertEquals(3, created.createdCount)
+        assertEquals(3, created.computeCount)
+
+        val computed = ArrayList<String>()
+        val listener = object : SmartDataProfileListener {
+            override fun computed(name: String, nanos: Long, trigger: SmartVersion) {
+                computed.add(name)
+            }
+        }
+
+        SmartDataProfiler.addListener(listener)
+        try {
+            WIDTH[row1, 0] = 30
+            assertEquals(30, maxWidth.get())
+        } finally {
+            SmartDataProfiler.removeListener(listener)
+        }
+
+        val profile = SmartDataProfiler.profile(MAX_WIDTH)!!
+        assertEquals(4, profile.computeCount)
+        assertEquals(listOf("PROFILED_MAX_WIDTH"), computed)
+        assertTrue(profile.lastTrigger === row1.getRawValue(WIDTH, 0))
+        assertTrue(SmartDataProfiler.snapshot().contains(profile))
+    }
+
+    @Test
+    fun test_namedData() {
+        val width = SmartVolatileData("width", 5)
+        val doubled = SmartDependentData("doubled", width) { width.get() * 2 }
+
+        assertEquals(10, doubled.get())
+        width.set(7)
+        assertEquals(14, doubled.get())
+
+        val profile = SmartDataProfiler.profile("doubled")!!
+        assertEquals(2, profile.computeCount)
+        assertTrue(profile.lastTrigger === width)
+        assertEquals(width.versionSerial, profile.lastTriggerSerial)
+    }
+
+    @Test
+    fun test_staleCheckDepth() {
+        val outer = SmartDataProfiler.enterStaleCheck()
+        val inner = SmartDataProfiler.enterStaleCheck()
+        val leaf = SmartDataProfiler.enterStaleCheck()
+        SmartDataProfiler.leaveStaleCheck("leaf", leaf)
+        SmartDataProfiler.leaveStaleCheck("inner", inner)
+        val sibling = SmartDataProfiler.enterStaleCheck()
+        SmartDataProfiler.leaveStaleCheck("leaf", sibling)
+        SmartDataProfiler.leaveStaleCheck("outer", outer)
+
+        assertEquals(3, SmartDataProfiler.profile("outer")!!.maxStaleCheckDepth)
+        assertEquals(2, SmartDataProfiler.profile("inner")!!.maxStaleCheckDepth)
+        assertEquals(2, SmartDataProfiler.profile("leaf")!!.staleChecks)
+        assertEquals(2, SmartDataProfiler.profile("leaf")!!.staleCheckDepth)
+        assertEquals(1, SmartDataProfiler.profile("leaf")!!.maxStaleCheckDepth)
+    }
+
+    @Test
+    fun test_disabled() {
+        SmartDataProfiler.isEnabled = false
+
+        val width = SmartVolatileData("width", 5)
+        val doubled = SmartDependentData("doubled", width) { width.get() * 2 }
+        width.set(7)
+        assertEquals(14, doubled.get())
+
+        assertNull(SmartDataProfiler.profile("doubled"))
+        assertTrue(SmartDataProfiler.snapshot().isEmpty())
+    }
+}
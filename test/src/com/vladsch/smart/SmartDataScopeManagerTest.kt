@@ -24,6 +24,7 @@ package com.vladsch.smart
 import org.junit.Test
 import kotlin.test.assertEquals
 import kotlin.test.assertFalse
+import kotlin.test.assertNotEquals
 import kotlin.test.assertTrue
 
 class SmartDataScopeManagerTest {
@@ -46,7 +47,7 @@ class SmartDataScopeManagerTest {
     @Test
     fun test_DataKey_resolveDependenciesBasic() {
         val INDENT = SmartParentComputedDataKey("INDENT", 0, { it + 4 })
-        val MAX_INDENT = SmartAggregatedScopesDataKey("MAX_INDENT", 0, INDENT, setOf(SmartScopes.SELF, SmartScopes.CHILDREN, SmartScopes.DESCENDANTS), { it.max() ?: 0 })
+        val MAX_INDENT = SmartAggregatedScopesDataKey("MAX_INDENT", 0, INDENT, setOf(SmartScopes.SELF, SmartScopes.CHILDREN, SmartScopes.DESCENDANTS), { it.max() })
         val ADD_INDENT = SmartTransformedDataKey("ADD_INDENT", 0, MAX_INDENT, SmartScopes.SELF, { it + 4 })
 
         assertTrue(manager.dependentKeys.containsKey(INDENT))
@@ -59,4 +60,25 @@ class SmartDataScopeManagerTest {
         assertEquals(1, manager.keyComputeLevel[MAX_INDENT])
         assertEquals(2, manager.keyComputeLevel[ADD_INDENT])
     }
+
+    @Test
+    fun test_DataKey_denseKeyIds() {
+        val INDENT = SmartVolatileDataKey("INDENT", 0)
+        val WIDTH = SmartVolatileDataKey("WIDTH", 0)
+
+        assertEquals(INDENT.keyId + 1, WIDTH.keyId)
+        assertTrue(WIDTH.keyId < SmartDataScopeManager.INSTANCE.keyCount)
+    }
+
+    @Test
+    fun test_DataKey_uniqueKeyIdsAcrossManagers() {
+        val other = SmartDataScopeManager()
+        val INDENT = SmartVolatileDataKey("INDENT", 0)
+        val WIDTH = SmartVolatileDataKey("WIDTH", 0)
+        other.registerKey(WIDTH)
+
+        assertNotEquals(INDENT.keyId, WIDTH.keyId)
+        assertEquals(SmartDataScopeManager.INSTANCE.keyCount, other.keyCount)
+        assertTrue(WIDTH.keyId < other.keyCount)
+    }
 }
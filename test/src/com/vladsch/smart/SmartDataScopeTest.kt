@@ -22,8 +22,10 @@
 package com.vladsch.smart
 
 import org.junit.Test
+import java.util.concurrent.Executors
 import kotlin.test.assertEquals
 import kotlin.test.assertFalse
+import kotlin.test.assertNotEquals
 import kotlin.test.assertTrue
 
 class SmartDataScopeTest {
@@ -663,4 +665,255 @@ Row 2 Col 0 Default Alignment|Row 2 Col 1 More Data|Row 2 Col 2 a lot more Data|
 | Row 8 Col 0-3 Default Alignment Row 8 Col 1 More Data Row 8 Col 2 a lot more Data Row 8 Col 3 Data       ||||
 """, formattedTable.toString())
     }
+
+    @Test
+    fun test_indexedValues() {
+        val values = SmartIndexedValues()
+        val data = Array(4) { SmartImmutableData(it) }
+
+        values[0] = data[0]
+        values[SmartIndexedValues.MAX_DENSE_GAP * 4] = data[1]
+        values[-1] = data[2]
+        values[3] = data[3]
+
+        assertEquals(4, values.size)
+        assertEquals(data[0], values[0])
+        assertEquals(data[1], values[SmartIndexedValues.MAX_DENSE_GAP * 4])
+        assertEquals(data[2], values[-1])
+        assertEquals(data[3], values[3])
+        assertEquals(null, values[1])
+
+        // growing the array takes over sparse indices
+        for (i in 4..SmartIndexedValues.MAX_DENSE_GAP * 4 - 1 step SmartIndexedValues.MAX_DENSE_GAP / 2) values[i] = data[0]
+        assertEquals(12, values.size)
+        assertEquals(12, values.toMap().size)
+        assertEquals(data[1], values[SmartIndexedValues.MAX_DENSE_GAP * 4])
+        assertEquals(data[2], values[-1])
+    }
+
+    @Test
+    fun test_parentValues() {
+        val INDENT = SmartVolatileDataKey("INDENT", 0)
+        val scope = manager.createDataScope("top")
+        val child = scope.createDataScope("child")
+
+        INDENT[scope, 0] = 4
+        INDENT[scope, 1000] = 8
+
+        assertEquals(4, INDENT.value(child, 0)?.get())
+        assertEquals(8, INDENT.value(child, 1000)?.get())
+        assertEquals(null, INDENT.value(child, 1))
+        assertEquals(null, child.getRawValue(INDENT, 0))
+        assertEquals(hashSetOf(0, 1000), scope.getValues(INDENT)?.keys)
+    }
+
+    @Test
+    fun test_finalizationPlan() {
+        val WIDTH = SmartVolatileDataKey("WIDTH", 0)
+        val MAX_WIDTH = SmartAggregatedScopesDataKey("MAX_WIDTH", 0, WIDTH, setOf(SmartScopes.SELF, SmartScopes.CHILDREN, SmartScopes.DESCENDANTS), IterableDataComputable { it.max() })
+
+        val topScope = SmartDataScopeManager.createDataScope("top")
+        val child1 = topScope.createDataScope("child1")
+        val child2 = topScope.createDataScope("child2")
+
+        WIDTH[child1, 0] = 10
+        WIDTH[child2, 0] = 15
+        WIDTH[child1, 1] = 5
+        WIDTH[child2, 1] = 3
+
+        val maxWidth0 = topScope[MAX_WIDTH, 0]
+        topScope.finalizeAllScopes()
+        val plan = topScope.finalizationPlan
+
+        assertEquals(15, maxWidth0.get())
+        assertEquals(listOf(topScope, child1, child2), plan?.scopes?.take(1)?.plus(plan.scopes.drop(1).sortedBy { it.name }))
+        assertEquals(listOf<SmartDataKey<*>>(WIDTH, MAX_WIDTH), plan?.keys?.toList())
+
+        // same keys on the same tree reuse the plan
+        val maxWidth1 = topScope[MAX_WIDTH, 1]
+        topScope.finalizeAllScopes()
+        assertTrue(plan === topScope.finalizationPlan)
+        assertEquals(5, maxWidth1.get())
+
+        // a new scope needs a new plan
+        val grandChild = child1.createDataScope("grandChild")
+        WIDTH[grandChild, 2] = 20
+        val maxWidth2 = topScope[MAX_WIDTH, 2]
+        topScope.finalizeAllScopes()
+        assertFalse(plan === topScope.finalizationPlan)
+        assertEquals(4, topScope.finalizationPlan?.scopes?.size)
+        assertEquals(20, maxWidth2.get())
+        assertEquals(15, maxWidth0.get())
+    }
+
+    @Test
+    fun test_finalizeParallel() {
+        val WIDTH = SmartVolatileDataKey("WIDTH", 0)
+        val LENGTH = SmartVolatileDataKey("LENGTH", 0)
+        val MAX_WIDTH = SmartAggregatedScopesDataKey("MAX_WIDTH", 0, WIDTH, SmartScopes.SELF_DOWN, IterableDataComputable { it.max() })
+        val MAX_LENGTH = SmartAggregatedScopesDataKey("MAX_LENGTH", 0, LENGTH, SmartScopes.SELF_DOWN, IterableDataComputable { it.max() })
+        val TOTAL_WIDTH = SmartVectorDataKey("TOTAL_WIDTH", 0, listOf(WIDTH), SmartScopes.TOP_DOWN, IterableDataComputable { it.sum() })
+
+        val topScope = SmartDataScopeManager.createDataScope("top")
+        val rows = Array(20) { topScope.createDataScope("row$it") }
+
+        for (row in rows.indices) {
+            for (index in 0..4) {
+                WIDTH[rows[row], index] = row + index
+                LENGTH[rows[row], index] = row * index
+            }
+        }
+
+        val maxWidths = Array(5) { topScope[MAX_WIDTH, it] }
+        val maxLengths = Array(5) { topScope[MAX_LENGTH, it] }
+        val totalWidths = Array(5) { topScope[TOTAL_WIDTH, it] }
+        val rowMaxWidth = rows[3][MAX_WIDTH, 2]
+
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+            topScope.finalizeAllScopes(executor)
+        } finally {
+            executor.shutdown()
+        }
+
+        val plan = topScope.finalizationPlan!!
+        assertEquals(2, plan.levelCount)
+
+        // keys sharing WIDTH are created by one task
+        val keyGroup = { key: SmartDataKey<*> -> plan.keyGroups[plan.keys.indexOf(key)] }
+        assertEquals(keyGroup(MAX_WIDTH), keyGroup(TOTAL_WIDTH))
+        assertNotEquals(keyGroup(MAX_WIDTH), keyGroup(MAX_LENGTH))
+        for (index in 0..4) {
+            assertEquals(19 + index, maxWidths[index].get())
+            assertEquals(19 * index, maxLengths[index].get())
+            assertEquals(190 + 20 * index, totalWidths[index].get())
+        }
+        assertEquals(5, rowMaxWidth.get())
+
+        WIDTH[rows[7], 1] = 50
+        assertEquals(50, maxWidths[1].get())
+        assertEquals(190 + 20 + 42, totalWidths[1].get())
+        assertEquals(19 + 2, maxWidths[2].get())
+    }
+
+    @Test
+    fun test_finalizeIncremental() {
+        val WIDTH = SmartVolatileDataKey("WIDTH", 0)
+        val MAX_WIDTH = SmartAggregatedScopesDataKey("MAX_WIDTH", 0, WIDTH, SmartScopes.SELF_DOWN, IterableDataComputable { it.max() })
+        val TOTAL_WIDTH = SmartVectorDataKey("TOTAL_WIDTH", 0, listOf(WIDTH), SmartScopes.TOP_DOWN, IterableDataComputable { it.sum() })
+
+        val topScope = SmartDataScopeManager.createDataScope("top")
+        val row0 = topScope.createDataScope("row0")
+        val row1 = topScope.createDataScope("row1")
+
+        WIDTH[row0, 0] = 10
+        WIDTH[row1, 0] = 15
+        WIDTH[row0, 1] = 5
+        WIDTH[row1, 1] = 3
+
+        val maxWidth0 = topScope[MAX_WIDTH, 0]
+        val maxWidth1 = topScope[MAX_WIDTH, 1]
+        val row0MaxWidth = row0[MAX_WIDTH, 0] as SmartVersionedDataAlias<*>
+        val rowTotal = row0[TOTAL_WIDTH, 0]
+
+        // not finalized yet, same as finalizeAllScopes()
+        topScope.finalizeIncremental()
+        assertTrue(topScope.isFinalized)
+        assertTrue(topScope.addedScopes.isEmpty())
+
+        assertEquals(15, maxWidth0.get())
+        assertEquals(5, maxWidth1.get())
+        assertEquals(10, row0MaxWidth.get())
+        assertEquals(25, rowTotal.get())
+        val row0Data = row0MaxWidth.alias
+
+        // appended row updates existing consumers and leaves unrelated data points alone
+        val row2 = topScope.createDataScope("row2")
+        WIDTH[row2, 0] = 20
+        WIDTH[row2, 1] = 4
+        val row2MaxWidth = row2[MAX_WIDTH, 1]
+        assertEquals(setOf(row2), topScope.addedScopes)
+
+        topScope.finalizeIncremental()
+        assertTrue(topScope.addedScopes.isEmpty())
+
+        assertEquals(20, maxWidth0.get())
+        assertEquals(5, maxWidth1.get())
+        assertEquals(4, row2MaxWidth.get())
+        assertEquals(45, rowTotal.get())
+        assertTrue(row0Data === row0MaxWidth.alias)
+
+        WIDTH[row2, 0] = 25
+        assertEquals(25, maxWidth0.get())
+        assertEquals(50, rowTotal.get())
+
+        // consumer of a new index
+        WIDTH[row1, 2] = 7
+        val maxWidth2 = topScope[MAX_WIDTH, 2]
+
+        topScope.finalizeIncremental()
+
+        assertEquals(7, maxWidth2.get())
+        assertEquals(25, maxWidth0.get())
+        assertTrue(row0Data === row0MaxWidth.alias)
+    }
+
+    @Test
+    fun test_finalizeIncrementalExistingScopeConsumers() {
+        val WIDTH = SmartVolatileDataKey("WIDTH", 0)
+        val MAX_WIDTH = SmartAggregatedScopesDataKey("MAX_WIDTH", 0, WIDTH, SmartScopes.SELF_DOWN, IterableDataComputable { it.max() })
+        val DOUBLE_WIDTH = SmartTransformedDataKey("DOUBLE_WIDTH", 0, MAX_WIDTH, SmartScopes.SELF, { it * 2 })
+
+        fun createTree(): Array<SmartDataScope> {
+            val topScope = SmartDataScopeManager.createDataScope("top")
+            val row0 = topScope.createDataScope("row0")
+            val row1 = topScope.createDataScope("row1")
+            WIDTH[topScope, 0] = 3
+            WIDTH[row1, 0] = 2
+            WIDTH[row1, 1] = 5
+            return arrayOf(topScope, row0, row1)
+        }
+
+        fun consume(scopes: Array<SmartDataScope>): List<SmartVersionedDataHolder<*>> {
+            return listOf(scopes[1][MAX_WIDTH, 0], scopes[1][DOUBLE_WIDTH, 0], scopes[2][DOUBLE_WIDTH, 0], scopes[0][MAX_WIDTH, 1], scopes[2][DOUBLE_WIDTH, 1])
+        }
+
+        // consumers added to existing scopes after the tree was finalized
+        val incremental = createTree()
+        val topDouble = incremental[0][DOUBLE_WIDTH, 0]
+        incremental[0].finalizeAllScopes()
+        assertEquals(6, topDouble.get())
+
+        val incrementalValues = consume(incremental)
+        incremental[0].finalizeIncremental()
+
+        // same consumers before finalization
+        val full = createTree()
+        val fullTopDouble = full[0][DOUBLE_WIDTH, 0]
+        val fullValues = consume(full)
+        full[0].finalizeAllScopes()
+
+        assertEquals(fullTopDouble.get(), topDouble.get())
+        assertEquals(fullValues.map { it.get() }, incrementalValues.map { it.get() })
+        assertEquals(listOf<Any>(0, 0, 4, 5, 10), incrementalValues.map { it.get() })
+    }
+
+    @Test
+    fun test_indexSet() {
+        val indices = SmartIndexSet()
+        assertTrue(indices.isEmpty())
+
+        indices.add(5)
+        indices.add(-2)
+        indices.add(0)
+        indices.add(5)
+
+        assertEquals(3, indices.size)
+        assertEquals(listOf(-2, 0, 5), indices.toList())
+        assertTrue(indices.contains(-2))
+        assertFalse(indices.contains(1))
+
+        indices.clear()
+        assertTrue(indices.isEmpty())
+    }
 }
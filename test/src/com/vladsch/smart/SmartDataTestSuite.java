@@ -30,7 +30,8 @@ import org.junit.runners.Suite;
         BitSetEnumTest.class,
         SmartVersionTestSuite.class,
         SmartDataScopeManagerTest.class,
-        SmartDataScopeTest.class
+        SmartDataScopeTest.class,
+        SmartDataProfilerTest.class
 })
 
 public class SmartDataTestSuite {
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Test
+
+class SmartOffsetMapTest() {
+    val string123 = """0123456789
+0123456789
+0123456789
+0123456789
+"""
+    val chars123 = string123.toCharArray()
+    val stringAbc = """abcdefghijklmnopqrstuvwxyz
+abcdefghijklmnopqrstuvwxyz
+"""
+    val charsAbc = stringAbc.toCharArray()
+
+    @Test
+    fun test_forward() {
+        val charSeq123 = SmartCharArraySequence(chars123)
+        val charSeqAbc = SmartCharArraySequence(charsAbc)
+        val seq = SmartSegmentedCharSequence(charSeq123.subSequence(0, 11), charSeqAbc.subSequence(5, 20), charSeq123.subSequence(22, 33))
+        val map = seq.offsetMap
+
+        assertEquals(seq.length, map.length)
+        assertEquals(3, map.runCount)
+        for (i in 0..seq.lastIndex) {
+            val location = seq.trackedSourceLocation(i)
+            assertEquals(location.offset, map.offsetOf(i))
+            assertSame(location.source, map.sourceOf(i))
+        }
+    }
+
+    @Test
+    fun test_reverse() {
+        val charSeq123 = SmartCharArraySequence(chars123)
+        val charSeqAbc = SmartCharArraySequence(charsAbc)
+        val seq = SmartSegmentedCharSequence(charSeq123.subSequence(22, 33), charSeqAbc.subSequence(5, 20), charSeq123.subSequence(0, 11))
+        val map = seq.offsetMap
+
+        for (i in 0..seq.lastIndex) {
+            val location = seq.trackedSourceLocation(i)
+            assertEquals(i, map.indexOf(location.source, location.offset))
+            assertEquals(i, map.trackedLocation(location.source, location.offset)?.index)
+        }
+
+        assertEquals(-1, map.indexOf(chars123, 15))
+        assertEquals(-1, map.indexOf(charsAbc, 4))
+        assertEquals(-1, map.indexOf(this, 0))
+        assertEquals(0, map.indexOf(null, 22))
+    }
+
+    @Test
+    fun test_overlapping() {
+        val charSeq123 = SmartCharArraySequence(chars123)
+        val seq = SmartSegmentedCharSequence(charSeq123.subSequence(0, 20), charSeq123.subSequence(5, 8))
+        val map = seq.offsetMap
+
+        assertEquals(6, map.indexOf(chars123, 6))
+        assertEquals(19, map.indexOf(chars123, 19))
+        assertEquals(-1, map.indexOf(chars123, 20))
+    }
+
+    @Test
+    fun test_batch() {
+        val charSeq123 = SmartCharArraySequence(chars123)
+        val seq = SmartSegmentedCharSequence(charSeq123.subSequence(22, 33), charSeq123.subSequence(0, 11), charSeq123.subSequence(35, 40))
+        val map = seq.offsetMap
+
+        val offsets = IntArray(chars123.size) { it }
+        val indices = IntArray(offsets.size)
+        map.indicesOf(chars123, offsets, indices)
+
+        for (i in offsets.indices) {
+            assertEquals(map.indexOf(chars123, offsets[i]), indices[i])
+        }
+    }
+
+    @Test
+    fun test_cachedPerVersion() {
+        val charSeq123 = SmartCharArraySequence(chars123)
+        val seq = SmartSegmentedCharSequence(charSeq123.subSequence(0, 11), charSeq123.subSequence(22, 33))
+
+        assertSame(seq.offsetMap, seq.offsetMap)
+    }
+
+    @Test
+    fun test_snapshot() {
+        val charSeq123 = SmartCharArraySequence(chars123)
+        val seq = SmartSegmentedCharSequence(charSeq123.subSequence(22, 33), charSeq123.subSequence(0, 11))
+        val snapshot = SmartLocationSnapshot.create(seq)
+
+        assertEquals(11, snapshot.indexOf(chars123, 0))
+        assertEquals(0, snapshot.trackedSourceLocation(11).offset)
+        assertEquals(null, snapshot.trackedLocation(chars123, 12))
+    }
+}
@@ -22,6 +22,10 @@
 package com.vladsch.smart
 
 import org.junit.Test
+import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
+import java.util.function.Supplier
 import kotlin.test.assertEquals
 import kotlin.test.assertTrue
 
@@ -231,6 +235,247 @@ Duis aute in voluptate velit esse cillum dolore eu fugiat nulla pariatur."""
         }
     }
 
+    fun reflowed(text: String, width: Int, keepMarkdownHardBreaks: Boolean, keepLineBreaks: Boolean = false): String {
+        val par = SmartParagraphCharSequence(text)
+        par.keepMarkdownHardBreaks = keepMarkdownHardBreaks
+        par.keepLineBreaks = keepLineBreaks
+        par.firstIndent = 4
+        par.indent = 2
+        par.width = width
+        return par.asString()
+    }
+
+    // every edit is checked against a from scratch reflow of the edited text
+    fun checkIncrementalReflow(text: String, keepMarkdownHardBreaks: Boolean, width: Int = 40, keepLineBreaks: Boolean = false) {
+        val editable = EditableCharSequence(text)
+        val par = SmartParagraphCharSequence(editable)
+        par.keepMarkdownHardBreaks = keepMarkdownHardBreaks
+        par.keepLineBreaks = keepLineBreaks
+        par.firstIndent = 4
+        par.indent = 2
+        par.width = width
+        assertEquals(reflowed(editable.toString(), width, keepMarkdownHardBreaks, keepLineBreaks), par.asString())
+
+        val random = java.util.Random(1)
+        for (i in 0..199) {
+            val pos = random.nextInt(editable.length + 1)
+            when (random.nextInt(5)) {
+                0 -> editable.insert("x", pos)
+                1 -> editable.insert(" word ", pos)
+                2 -> if (pos < editable.length) editable[pos..(pos + random.nextInt(12)).maxLimit(editable.length - 1)] = ""
+                3 -> editable.insert(if (random.nextBoolean()) "\n" else "  \n", pos)
+                else -> if (pos < editable.length) editable[pos] = ' '
+            }
+
+            assertEquals(reflowed(editable.toString(), width, keepMarkdownHardBreaks, keepLineBreaks), par.asString(), "edit $i")
+        }
+    }
+
+    @Test
+    fun test_incrementalReflow() {
+        checkIncrementalReflow(multiLinePar, true)
+        checkIncrementalReflow(indentedMultiLinePar, true, 12)
+    }
+
+    @Test
+    fun test_incrementalReflowHardBreaks() {
+        checkIncrementalReflow(multiLineHardBreaksPar, true)
+        checkIncrementalReflow(multiLineHardBreaksPar, false)
+        checkIncrementalReflow(multiLineHardBreaksPar, true, 25, true)
+    }
+
+    @Test
+    fun test_incrementalReflowRepeatedEdits() {
+        // edits after the first one splice into a layout which was itself spliced
+        val editable = EditableCharSequence(simplePar)
+        val par = SmartParagraphCharSequence(editable)
+        par.firstIndent = 4
+        par.indent = 2
+        par.width = 40
+        par.asString()
+
+        for (i in 0..9) {
+            editable.insert("x", editable.length / 2)
+            editable.insert(" word", editable.length)
+            assertEquals(reflowed(editable.toString(), 40, true), par.asString(), "edit $i")
+        }
+    }
+
+    @Test
+    fun test_sourceEditInvalidatesResult() {
+        val editable = EditableCharSequence(simplePar)
+        val par = SmartParagraphCharSequence(editable)
+        par.firstIndent = 4
+        par.indent = 2
+        par.width = 40
+        par.asString()
+
+        // result depends on the source version, reading it is not needed to see the edit
+        editable.insert("x", 0)
+        assertTrue(par.version.isStale)
+        assertEquals(reflowed(editable.toString(), 40, true), par.asString())
+    }
+
+    @Test
+    fun test_parallelReflow() {
+        val sources = arrayOf(simplePar, multiLinePar, indentedMultiLinePar, multiLineHardBreaksPar)
+        val chars = ArrayList<CharSequence>()
+        val expected = StringBuilder()
+
+        for (i in 0..15) {
+            val par = SmartParagraphCharSequence(sources[i % sources.size])
+            par.width = 20 + i * 4
+            par.alignment = TextAlignment.values()[i % TextAlignment.values().size]
+            expected.append(SmartParagraphCharSequence(sources[i % sources.size]).apply { width = par.width; alignment = par.alignment }.asString())
+            chars.add(par)
+            chars.add("\n\n")
+            expected.append("\n\n")
+        }
+
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+            assertEquals(expected.toString(), SmartParagraphReflow.reflow(chars, executor).asString())
+
+            // grouped update serial is visible to worker threads
+            SmartVersionManager.groupedUpdate {
+                val serial = SmartVersionManager.currentSerial
+                val workerSerial = CompletableFuture.supplyAsync(Supplier {
+                    SmartVersionManager.joinGroupedUpdate(SmartVersionManager.groupedSerial, Supplier { SmartVersionManager.currentSerial })
+                }, executor).join()
+                assertEquals(serial, workerSerial)
+            }
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    @Test
+    fun test_parallelReflowSharedSource() {
+        val shared = SmartSegmentedCharSequence(multiLinePar, "\n", indentedMultiLinePar, "\n", multiLineHardBreaksPar)
+        val chars = ArrayList<CharSequence>()
+        val expected = StringBuilder()
+
+        for (i in 0..15) {
+            // every paragraph reads the same segmented sequence and its segment lookup cache
+            val par = SmartParagraphCharSequence(shared)
+            par.width = 20 + i * 4
+            par.alignment = TextAlignment.values()[i % TextAlignment.values().size]
+            val source = SmartSegmentedCharSequence(multiLinePar, "\n", indentedMultiLinePar, "\n", multiLineHardBreaksPar)
+            expected.append(SmartParagraphCharSequence(source).apply { width = par.width; alignment = par.alignment }.asString())
+            chars.add(par)
+            chars.add("\n\n")
+            expected.append("\n\n")
+        }
+
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+            assertEquals(expected.toString(), SmartParagraphReflow.reflow(chars, executor).asString())
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    @Test
+    fun test_optimalLineBreaks() {
+        val par = SmartParagraphCharSequence("aaa bb cc ddddd")
+        par.width = 6
+        assertEquals("aaa bb\ncc\nddddd", par.asString())
+
+        par.optimalLineBreaks = true
+        assertEquals("aaa\nbb cc\nddddd", par.asString())
+
+        par.alignment = TextAlignment.JUSTIFIED
+        assertEquals("aaa\nbb  cc\nddddd", par.asString())
+    }
+
+    @Test
+    fun test_optimalLineBreaksUnboundedWidth() {
+        val par = SmartParagraphCharSequence("aaa\nbb cc\nddddd eee")
+        par.width = Integer.MAX_VALUE
+        par.optimalLineBreaks = true
+        assertEquals("aaa bb cc ddddd eee", par.asString())
+    }
+
+    @Test
+    fun test_optimalLineBreaksNarrowWords() {
+        val text = (0 until 100).joinToString(" ") { ('a' + it % 26).toString() }
+        val par = SmartParagraphCharSequence(text)
+        par.width = 300
+        assertEquals(text, par.asString())
+
+        par.optimalLineBreaks = true
+        assertEquals(text, par.asString())
+
+        // 150 words fill a line to 299, greedy lines are already the optimal ones
+        val longPar = SmartParagraphCharSequence((0 until 400).joinToString(" ") { ('a' + it % 26).toString() })
+        longPar.width = 300
+        val greedy = longPar.asString()
+        assertEquals(3, greedy.split('\n').size)
+
+        longPar.optimalLineBreaks = true
+        assertEquals(greedy, longPar.asString())
+    }
+
+    @Test
+    fun test_optimalLineBreaksAlign() {
+        val par = SmartParagraphCharSequence(multiLineHardBreaksPar)
+        par.optimalLineBreaks = true
+
+        for (alignment in arrayOf(TextAlignment.LEFT, TextAlignment.CENTER, TextAlignment.RIGHT)) {
+            par.alignment = alignment
+            for (ind in 0..4 step 4) {
+                par.indent = ind
+                for (fInd in 0..8 step 4) {
+                    par.firstIndent = fInd
+                    for (i in 10..50 step 10) {
+                        par.width = i
+                        ensureAligned(par.alignment, par, par.firstIndent, par.indent, i, par.keepMarkdownHardBreaks)
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    fun test_tokenCursor() {
+        val text = "Lorem ipsum  \ndolor\tsit\nam"
+        val expected = listOf(
+                Token(TextType.WORD, Range(0, 5)),
+                Token(TextType.SPACE, Range(5, 6)),
+                Token(TextType.WORD, Range(6, 11)),
+                Token(TextType.MARKDOWN_BREAK, Range(11, 14)),
+                Token(TextType.WORD, Range(14, 19)),
+                Token(TextType.SPACE, Range(19, 20)),
+                Token(TextType.WORD, Range(20, 23)),
+                Token(TextType.BREAK, Range(23, 24)),
+                Token(TextType.WORD, Range(24, 26))
+        )
+
+        val tokenizer = TextTokenizer(text)
+        var i = 0
+        while (tokenizer.tokenType != null) {
+            assertEquals(expected[i].type, tokenizer.tokenType)
+            assertEquals(expected[i].range.start, tokenizer.tokenStart)
+            assertEquals(expected[i].range.end, tokenizer.tokenEnd)
+            assertEquals(expected[i], tokenizer.token)
+            tokenizer.advance()
+            i++
+        }
+        assertEquals(expected.size, i)
+
+        val tokens = TextTokenizer(text).asTokenList()
+        assertEquals(expected.size, tokens.size)
+        for (t in 0..tokens.lastIndex) {
+            assertEquals(expected[t].type, tokens.type(t))
+            assertEquals(expected[t].range.start, tokens.start(t))
+            assertEquals(expected[t].range.end, tokens.end(t))
+        }
+
+        assertEquals(expected, tokens.asList())
+        assertEquals("Lorem", text.substring(tokens.start(0), tokens.end(0)))
+        assertEquals("am", text.substring(tokens.start(8), tokens.end(8)))
+    }
+
     //    @Test
     fun test_SingleDebug() {
         val par = SmartParagraphCharSequence(multiLineHardBreaksPar)
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2015-2020 Vladimir Schneider <vladimir.schneider@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.vladsch.smart
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class SmartRopeCharSequenceTest() {
+    val string123 = """0123456789
+0123456789
+0123456789
+0123456789
+"""
+    val chars123 = string123.toCharArray()
+
+    fun ropeOf(chars: CharArray, segmentLength: Int): SmartRopeCharSequence {
+        val charSeq = SmartCharArraySequence(chars)
+        val segments = ArrayList<CharSequence>()
+        var i = 0
+        while (i < chars.size) {
+            segments.add(charSeq.subSequence(i, (i + segmentLength).maxLimit(chars.size)))
+            i += segmentLength
+        }
+        return SmartRopeCharSequence(segments)
+    }
+
+    @Test
+    fun test_basic() {
+        val rope = ropeOf(chars123, 3)
+
+        assertEquals(string123.length, rope.length)
+        assertEquals(string123, rope.toString())
+        for (i in 0..string123.lastIndex) {
+            assertEquals(string123[i], rope[i])
+        }
+    }
+
+    @Test
+    fun test_subSequence() {
+        val rope = ropeOf(chars123, 3)
+        for (j in 0..string123.length) {
+            for (i in 0..j) {
+                assertEquals("subSequence($i, $j)", string123.substring(i, j), rope.subSequence(i, j).toString())
+            }
+        }
+    }
+
+    @Test
+    fun test_delete() {
+        val rope = ropeOf(chars123, 3)
+        for (j in 0..string123.length) {
+            for (i in 0..string123.length - j) {
+                assertEquals("delete($i, ${i + j})", string123.substring(0, i) + string123.substring(i + j), rope.delete(i, i + j).toString())
+            }
+        }
+    }
+
+    @Test
+    fun test_insert() {
+        val rope = ropeOf(chars123, 3)
+        for (j in 0..string123.length) {
+            for (i in 0..string123.length - j) {
+                val inserted = rope.insert(rope.subSequence(i, i + j), j)
+                assertEquals("insert(rope($i, ${i + j}), $j)", string123.substring(0, j) + string123.substring(i, i + j) + string123.substring(j), inserted.toString())
+                assertTrue(inserted is SmartRopeCharSequence)
+            }
+        }
+    }
+
+    @Test
+    fun test_replace() {
+        val rope = ropeOf(chars123, 3)
+        for (j in 0..string123.length) {
+            for (i in 0..string123.length - j) {
+                assertEquals("replace($i, ${i + j})", string123.substring(0, i) + "abc" + string123.substring(i + j), rope.replace("abc", i, i + j).toString())
+            }
+        }
+    }
+
+    @Test
+    fun test_balanced() {
+        var rope: SmartCharSequence = SmartRopeCharSequence()
+        var expected = ""
+        for (i in 0..999) {
+            val text = "$i,"
+            rope = if (i % 2 == 0) rope.append(text) else rope.insert(text, rope.length / 2)
+            expected = if (i % 2 == 0) expected + text else expected.substring(0, expected.length / 2) + text + expected.substring(expected.length / 2)
+        }
+
+        assertTrue(rope is SmartRopeCharSequence)
+        assertEquals(expected, rope.toString())
+        // AVL height bound
+        val segments = (rope as SmartRopeCharSequence).segments.size
+        assertTrue(rope.height <= 1.45 * Math.log(segments + 2.0) / Math.log(2.0))
+
+        // editing does not nest sequences
+        val stats = SmartCharSequence.Stats()
+        rope.addStats(stats)
+        assertTrue(stats.nesting <= 2)
+    }
+
+    @Test
+    fun test_flattened() {
+        val rope = ropeOf(chars123, 3)
+        val nested = SmartRopeCharSequence(rope, SmartSegmentedCharSequence("abc", "def"), rope)
+
+        assertEquals(string123 + "abcdef" + string123, nested.toString())
+        assertEquals(rope.segments.size * 2 + 2, nested.segments.size)
+    }
+
+    @Test
+    fun test_variableSegments() {
+        val variable = SmartVariableCharSequence(SmartCharArraySequence("abc".toCharArray()))
+        val rope = ropeOf(chars123, 3).insert(variable, 11)
+
+        assertEquals(string123.substring(0, 11) + "abc" + string123.substring(11), rope.toString())
+
+        variable.width = 6
+        assertEquals(string123.length + 6, rope.length)
+        assertEquals(string123.substring(0, 11) + "abc   " + string123.substring(11), rope.toString())
+        assertEquals(string123[11], rope[17])
+    }
+
+    @Test
+    fun test_trackedSourceLocation() {
+        val rope = ropeOf(chars123, 3).delete(5, 10)
+        val expected = string123.substring(0, 5) + string123.substring(10)
+
+        for (i in 0..rope.lastIndex) {
+            val location = rope.trackedSourceLocation(i)
+            assertEquals(chars123, location.source)
+            assertEquals(if (i < 5) i else i + 5, location.offset)
+            assertEquals(expected[i], rope[i])
+        }
+    }
+
+    @Test
+    fun test_markers() {
+        val rope = ropeOf(chars123, 3).insert(SmartCharSequenceMarker("caret"), 7)
+        val markers = rope.getMarkers("caret")
+
+        assertEquals(1, markers.size)
+        assertEquals(7, markers[0].index)
+        assertEquals(string123, rope.toString())
+    }
+}
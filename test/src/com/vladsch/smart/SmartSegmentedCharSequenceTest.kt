@@ -22,6 +22,7 @@
 package com.vladsch.smart
 
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
 import org.junit.Test
 
 class SmartSegmentedCharSequenceTest() {
@@ -201,4 +202,91 @@ ABCDEFGHIJKLMNOPQRSTUVWXYZ
         assertEquals(recons123, string123)
         assertEquals(reconsAbc, stringAbc)
     }
+
+    fun checkVariableSegments() {
+        val cells = ArrayList<SmartVariableCharSequence>()
+        val parts = ArrayList<CharSequence>()
+        for (i in 0..99) {
+            val cell = SmartVariableCharSequence(SmartCharArraySequence("c$i".toCharArray()))
+            cells.add(cell)
+            parts.add(cell)
+            parts.add("|")
+        }
+
+        val row = SmartSegmentedCharSequence(parts)
+        val random = java.util.Random(1)
+
+        for (n in 0..199) {
+            cells[random.nextInt(cells.size)].width = random.nextInt(8)
+
+            val expected = StringBuilder()
+            for (cell in cells) expected.append(cell.toString()).append('|')
+
+            assertEquals(expected.length, row.length)
+            assertEquals(expected.toString(), row.toString())
+
+            val i = random.nextInt(cells.size)
+            assertEquals(if (i == 0) 0 else expected.indexOf("|c$i") + 1, row.startIndex(i * 2))
+            assertEquals(cells[i].length, row.length(i * 2))
+            for (j in 0..expected.length - 1 step 7) {
+                assertEquals(expected[j], row[j])
+            }
+
+            val start = random.nextInt(expected.length)
+            val end = start + random.nextInt(expected.length - start)
+            assertEquals(expected.substring(start, end), row.subSequence(start, end).toString())
+        }
+    }
+
+    @Test
+    fun test_variableSegments() {
+        checkVariableSegments()
+    }
+
+    @Test
+    fun test_variableSegmentsPush() {
+        SmartVersionDomain("push", true).create { checkVariableSegments() }
+    }
+
+    @Test
+    fun test_trackedLocationCursor() {
+        val charSeq123 = SmartCharArraySequence(chars123, 0, chars123.size)
+        val charSeqAbc = SmartCharArraySequence(charsAbc, 0, charsAbc.size)
+
+        val inner = SmartSegmentedCharSequence(charSeq123.subSequence(0, 11), charSeqAbc.subSequence(0, 27))
+        val listSeq = SmartSegmentedCharSequence(
+                charSeq123.subSequence(11, 22)
+                , inner.subSequence(5, 30)
+                , charSeqAbc.subSequence(27, 54)
+        )
+
+        // 123[11, 22), 123[5, 11), abc[0, 19), abc[27, 54)
+        assertEquals(63, listSeq.length)
+
+        val cursor = TrackedLocationCursor()
+        for (i in 0..listSeq.lastIndex) {
+            val source = if (i < 17) chars123 else charsAbc
+            val offset = when {
+                i < 11 -> 11 + i
+                i < 17 -> 5 + i - 11
+                i < 36 -> i - 17
+                else -> 27 + i - 36
+            }
+
+            listSeq.trackedSourceLocation(i, cursor)
+
+            assertEquals(i, cursor.index)
+            assertEquals(offset, cursor.offset)
+            assertTrue(source === cursor.source)
+            assertEquals(true, cursor.isExact)
+            assertEquals(listSeq[i], source[offset])
+            assertEquals(offset, listSeq.trackedSourceLocation(i).offset)
+
+            assertEquals(true, listSeq.trackedLocation(cursor.source, cursor.offset, cursor))
+            assertEquals(i, cursor.index)
+        }
+
+        assertEquals(false, listSeq.trackedLocation(chars123, 40, cursor))
+        assertEquals(null, listSeq.trackedLocation(chars123, 40))
+    }
 }
@@ -22,7 +22,9 @@
 package com.vladsch.smart
 
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
 import org.junit.Test
+import java.util.*
 
 class SmartTableColumnBalancerTest {
 
@@ -313,4 +315,108 @@ class SmartTableColumnBalancerTest {
         assertEquals(col3Align.get(), tableBalancer.alignmentDataPoint(2).get())
 
     }
+
+    // span balancing of the previous set based balancer: distribute each span's extra length to its unfixed
+    // columns, keep the largest addition per column and fix the columns which got the largest addition of the pass
+    private fun referenceWidths(lengths: IntArray, spans: List<IntArray>): IntArray {
+        val additional = IntArray(lengths.size)
+        val spanAdditional = spans.map { IntArray(it[1]) }
+        val fixed = spans.map { TreeSet<Int>() }
+        val unfixed = spans.map { TreeSet<Int>() }
+
+        var haveUnfixedColumns = !spans.isEmpty()
+        while (haveUnfixedColumns) {
+            haveUnfixedColumns = false
+
+            for (s in spans.indices) {
+                val span = spans[s]
+                var fixedWidth = 0
+                unfixed[s].clear()
+                for (index in span[0]..span[0] + span[1] - 1) {
+                    if (fixed[s].contains(index)) {
+                        fixedWidth += lengths[index] + additional[index]
+                    } else {
+                        fixedWidth += lengths[index]
+                        unfixed[s].add(index)
+                    }
+                }
+
+                if (!unfixed[s].isEmpty()) {
+                    val extraLength = Math.max(span[2] - fixedWidth, 0)
+                    val whole = extraLength / unfixed[s].size
+                    var remainder = extraLength - whole * unfixed[s].size
+
+                    for (index in unfixed[s].sortedByDescending { lengths[it] }) {
+                        spanAdditional[s][index - span[0]] = whole + if (remainder > 0) 1 else 0
+                        if (remainder > 0) remainder--
+                    }
+                }
+            }
+
+            for (cols in unfixed) for (index in cols) additional[index] = 0
+
+            var fixedAdditionalWidth = 0
+            for (s in spans.indices) {
+                for (index in unfixed[s]) {
+                    val additionalWidth = spanAdditional[s][index - spans[s][0]]
+                    if (additional[index] < additionalWidth) {
+                        additional[index] = additionalWidth
+                        if (fixedAdditionalWidth < additionalWidth) fixedAdditionalWidth = additionalWidth
+                    }
+                }
+            }
+
+            for (s in spans.indices) {
+                if (unfixed[s].isEmpty()) continue
+
+                val iterator = unfixed[s].iterator()
+                while (iterator.hasNext()) {
+                    val index = iterator.next()
+                    if (additional[index] >= fixedAdditionalWidth) {
+                        fixed[s].add(index)
+                        iterator.remove()
+                    }
+                }
+
+                if (!unfixed[s].isEmpty()) haveUnfixedColumns = true
+            }
+        }
+
+        return IntArray(lengths.size) { lengths[it] + additional[it] }
+    }
+
+    @Test
+    fun test_randomSpansMatchReference() {
+        val random = Random(1)
+
+        for (iteration in 0..199) {
+            val columns = 2 + random.nextInt(12)
+            val lengths = IntArray(columns) { 3 + random.nextInt(20) }
+            val spans = ArrayList<IntArray>()
+            for (i in 0..random.nextInt(8)) {
+                val start = random.nextInt(columns - 1)
+                val span = 2 + random.nextInt(columns - start - 1)
+                spans.add(intArrayOf(start, span, random.nextInt(30 * span)))
+            }
+
+            val tableBalancer = SmartTableColumnBalancer(CharWidthProvider.UNITY_PROVIDER)
+            val widths = Array(columns) { tableBalancer.width(it, SmartImmutableData(lengths[it])) }
+            val spanWidths = spans.map { tableBalancer.width(it[0], SmartImmutableData(it[2]), it[1], 0) }
+            tableBalancer.finalizeTable()
+
+            val expected = referenceWidths(lengths, spans)
+            for (index in 0..columns - 1) {
+                assertEquals("iteration $iteration column $index", expected[index], widths[index].get())
+            }
+
+            for (i in spans.indices) {
+                val span = spans[i]
+                assertEquals("iteration $iteration span $i", (span[0]..span[0] + span[1] - 1).sumOf { expected[it] }, spanWidths[i].get())
+            }
+
+            // every pass fixes at least one spanned column
+            val spanned = spans.flatMap { (it[0]..it[0] + it[1] - 1).toList() }.toSet().size
+            assertTrue("iteration $iteration passes ${tableBalancer.balancePasses} > $spanned", tableBalancer.balancePasses <= spanned)
+        }
+    }
 }
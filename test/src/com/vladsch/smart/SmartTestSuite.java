@@ -29,7 +29,8 @@ import org.junit.runners.Suite;
         SmartCharSequenceTestSuite.class,
         SafeCharSequenceTestSuite.class,
         SmartDataTestSuite.class,
-        MarkdownTableFormatterTest.class
+        MarkdownTableFormatterTest.class,
+        CachedCharWidthProviderTest.class
 })
 
 public class SmartTestSuite {
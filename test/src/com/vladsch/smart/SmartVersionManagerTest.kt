@@ -59,4 +59,83 @@ class SmartVersionManagerTest {
         assertNotEquals(version1, version2)
     }
 
+    @Test
+    fun test_concurrentNextVersion() {
+        val threadCount = 8
+        val serialCount = 10000
+        val serials = Array(threadCount) { IntArray(serialCount) }
+        val threads = Array(threadCount) { t ->
+            Thread {
+                val threadSerials = serials[t]
+                for (i in 0..serialCount - 1) {
+                    threadSerials[i] = SmartVersionManager.nextSerial
+                }
+            }
+        }
+
+        for (thread in threads) thread.start()
+        for (thread in threads) thread.join()
+
+        val allSerials = HashSet<Int>()
+        for (threadSerials in serials) {
+            for (i in 1..serialCount - 1) {
+                assertTrue(threadSerials[i - 1] < threadSerials[i])
+            }
+            for (serial in threadSerials) {
+                assertTrue(allSerials.add(serial))
+            }
+        }
+
+        assertEquals(threadCount * serialCount, allSerials.size)
+        assertTrue(serials.all { it.last() <= SmartVersionManager.currentSerial })
+    }
+
+    @Test
+    fun test_domainSerials() {
+        val domain = SmartVersionDomain("test")
+        val serial = domain.currentSerial
+        val defaultSerial = SmartVersionManager.nextSerial
+
+        assertEquals(serial, domain.currentSerial)
+        assertTrue(serial < domain.nextSerial)
+        assertEquals(defaultSerial, SmartVersionManager.currentSerial)
+    }
+
+    @Test
+    fun test_domainGroupedUpdate() {
+        val domain = SmartVersionDomain("test")
+        var version1: Int = 1
+        var version2: Int = 2
+
+        domain.groupedUpdate(Runnable {
+            version1 = domain.nextSerial
+            assertTrue(!SmartVersionManager.isGrouped)
+            version2 = domain.nextSerial
+        })
+
+        assertEquals(version1, version2)
+    }
+
+    @Test
+    fun test_domainCreate() {
+        val domain = SmartVersionDomain("test")
+        val v1 = domain.create { SmartVolatileData("v1", 1) }
+        val v2 = domain.create { SmartVolatileData("v2", 2) }
+        val sum = domain.create { SmartDependentData(listOf(v1, v2)) { v1.get() + v2.get() } }
+        val other = SmartVolatileData("other", 0)
+
+        assertEquals(SmartVersionManager, SmartVersionDomain.current)
+        assertEquals(3, sum.get())
+        assertTrue(v1.versionSerial <= domain.currentSerial)
+
+        // changes in the default domain do not affect the domain
+        val serial = domain.currentSerial
+        other.set(10)
+        assertEquals(serial, domain.currentSerial)
+        assertTrue(!sum.isStale)
+
+        v1.set(10)
+        assertTrue(sum.isStale)
+        assertEquals(12, sum.get())
+    }
 }
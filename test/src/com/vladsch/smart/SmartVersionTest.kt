@@ -182,4 +182,74 @@ class SmartVersionTest {
         assertEquals(v2.versionSerial, vs2.versionSerial)
         assertEquals(3, called)
     }
+
+    @Test
+    fun test_staleCheckUsesNoSerial() {
+        val domain = SmartVersionDomain("test")
+        val v1 = domain.create { SmartVolatileVersion() }
+        val v2 = domain.create { SmartVolatileVersion() }
+        val dv = domain.create { SmartDependentVersion(listOf(v1, v2)) }
+
+        val changeSerial = domain.changeSerial
+        assertFalse(dv.isStale)
+        assertFalse(dv.isStale)
+        assertEquals(changeSerial, domain.changeSerial)
+
+        v1.nextVersion()
+        assertTrue(dv.isStale)
+        dv.nextVersion()
+        assertFalse(dv.isStale)
+    }
+
+    @Test
+    fun test_staleCheckGrouped() {
+        val domain = SmartVersionDomain("test")
+        val v1 = domain.create { SmartVolatileVersion() }
+        val v2 = domain.create { SmartVolatileVersion() }
+        val dv = domain.create { SmartDependentVersion(listOf(v1, v2)) }
+
+        assertFalse(dv.isStale)
+
+        domain.groupedUpdate(Runnable {
+            // verified in the group, a change with the frozen serial must still be seen
+            assertFalse(dv.isStale)
+            v1.nextVersion()
+            assertTrue(dv.isStale)
+            dv.nextVersion()
+            assertFalse(dv.isStale)
+        })
+
+        assertFalse(dv.isStale)
+        v2.nextVersion()
+        assertTrue(dv.isStale)
+    }
+
+    @Test
+    fun test_crossDomainDependency() {
+        val domain = SmartVersionDomain("test")
+        val other = SmartVersionDomain("other")
+        val v1 = domain.create { SmartVolatileData("v1", 1) }
+        val v2 = other.create { SmartVolatileData("v2", 2) }
+
+        // a change in other would never make a dependent in domain stale
+        try {
+            domain.create { SmartDependentVersion(listOf<SmartVersion>(v1, v2)) }
+            fail("dependency in another domain accepted")
+        } catch (e: IllegalArgumentException) {
+        }
+
+        val alias = domain.create { SmartVersionedDataAlias(v1) }
+        try {
+            alias.alias = v2
+            fail("alias to another domain accepted")
+        } catch (e: IllegalArgumentException) {
+        }
+        assertSame(v1, alias.alias)
+
+        // versions without a domain can be shared
+        val dv = domain.create { SmartDependentVersion(listOf<SmartVersion>(v1, NULL_VERSION)) }
+        assertFalse(dv.isStale)
+        v1.set(5)
+        assertTrue(dv.isStale)
+    }
 }
@@ -795,4 +795,101 @@ class SmartVersionedDataTest {
             }
         }
     }
+
+    @Test
+    fun test_pushInvalidation() {
+        val domain = SmartVersionDomain("push", true)
+        val v1 = domain.create { SmartVolatileData("v1", 1) }
+        val v2 = domain.create { SmartVolatileData("v2", 2) }
+        val sum = domain.create { SmartDependentData("sum", listOf(v1, v2)) { v1.get() + v2.get() } }
+        val dbl = domain.create { SmartDependentData("dbl", sum) { sum.get() * 2 } }
+
+        assertEquals(6, dbl.get())
+        assertTrue(dbl.isPushable)
+        assertTrue(sum.isPushable)
+        assertFalse(dbl.isStale)
+
+        // unrelated change in the domain, still clean
+        domain.create { SmartVolatileData("v3", 3) }.set(4)
+        assertFalse(dbl.isStale)
+
+        v1.set(10)
+        assertTrue(dbl.isStale)
+        assertEquals(24, dbl.get())
+        assertFalse(dbl.isStale)
+
+        v2.set(20)
+        v1.set(20)
+        assertEquals(80, dbl.get())
+    }
+
+    @Test
+    fun test_pushInvalidationAlias() {
+        val domain = SmartVersionDomain("push", true)
+        val v1 = domain.create { SmartVolatileData("v1", 1) }
+        val v2 = domain.create { SmartVolatileData("v2", 2) }
+        val va = domain.create { SmartVersionedDataAlias("va", v1) }
+        val vd = domain.create { SmartDependentData("vd", va) { va.get() * 10 } }
+
+        assertEquals(10, vd.get())
+        assertTrue(vd.isPushable)
+
+        va.alias = v2
+        assertTrue(vd.isStale)
+        assertEquals(20, vd.get())
+
+        v1.set(5)
+        assertFalse(vd.isStale)
+        v2.set(3)
+        assertEquals(30, vd.get())
+
+        // not pushable alias target, dependents fall back to pulling
+        val pulled = SmartVersionedDefaultAlias(v1)
+        va.alias = pulled
+        assertFalse(vd.isPushable)
+        assertEquals(50, vd.get())
+        v1.set(7)
+        assertEquals(70, vd.get())
+    }
+
+    @Test
+    fun test_pushInvalidationProperty() {
+        val domain = SmartVersionDomain("push", true)
+        val v1 = domain.create { SmartVolatileData("v1", 1) }
+        val vp = domain.create { SmartVersionedProperty("vp", 0) }
+        val vd = domain.create { SmartDependentData("vd", vp) { vp.get() + 100 } }
+
+        assertEquals(100, vd.get())
+        assertTrue(vd.isPushable)
+
+        vp.set(5)
+        assertTrue(vd.isStale)
+        assertEquals(105, vd.get())
+
+        vp.connect(v1)
+        assertEquals(101, vd.get())
+
+        v1.set(2)
+        assertEquals(102, vd.get())
+
+        vp.disconnect()
+        assertEquals(105, vd.get())
+        vp.set(3)
+        assertEquals(103, vd.get())
+    }
+
+    // only implements SmartVersionedDataHolder, changes have to be pulled
+    class SmartVersionedDefaultAlias<V>(val delegate: SmartVersionedDataHolder<V>) : SmartVersionedDataHolder<V> {
+        override fun get(): V = delegate.get()
+        override val versionSerial: Int get() = delegate.versionSerial
+        override val isStale: Boolean get() = delegate.isStale
+        override val isMutable: Boolean get() = delegate.isMutable
+        override val dependencies: Iterable<SmartVersion> get() = delegate.dependencies
+        override fun nextVersion() = delegate.nextVersion()
+        override var dataSnapshot: DataSnapshot<V>
+            get() = delegate.dataSnapshot
+            set(value) {
+                delegate.dataSnapshot = value
+            }
+    }
 }